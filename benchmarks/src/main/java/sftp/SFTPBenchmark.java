@@ -0,0 +1,132 @@
+package sftp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail Cost of SFTP.readInputStreamAsString, of reading a request as a text line or a binary frame
+ *         and of the String and File write paths, measured against in-memory streams so no network time is included
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SFTPBenchmark {
+
+    private SFTP _sftp;
+    private SFTP _binarySFTP;
+    private File _file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Path path = Files.createTempFile("sftp-bench", ".bin");
+        byte[] bytes = new byte[1024 * 1024];
+        new Random(42).nextBytes(bytes);
+        Files.write(path, bytes);
+
+        _file = path.toFile();
+        _sftp = new MemorySFTP(new RepeatingLineInputStream("LIST V text/\r\n"), OutputStream.nullOutputStream());
+
+        byte[] arguments = "V text/".getBytes(StandardCharsets.US_ASCII);
+        byte[] frame = ByteBuffer.allocate(Protocol.HEADER_SIZE + arguments.length)
+                .put((byte) Protocol.opcodeOf("LIST")).put((byte) 0).putLong(arguments.length)
+                .put(arguments).array();
+
+        _binarySFTP = new MemorySFTP(new RepeatingLineInputStream(frame), OutputStream.nullOutputStream());
+        _binarySFTP.setProtocol(Protocol.BINARY);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        _file.delete();
+    }
+
+    @Benchmark
+    public String readInputStreamAsString() throws IOException {
+        return _sftp.readInputStreamAsString();
+    }
+
+    @Benchmark
+    public String[] readRequestText() throws IOException {
+        return _sftp.readRequest();
+    }
+
+    @Benchmark
+    public String[] readRequestBinary() throws IOException {
+        return _binarySFTP.readRequest();
+    }
+
+    @Benchmark
+    public void writeResponse() {
+        _sftp.writeToOutputStream("+File exists, will create new generation of file");
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void writeFile1MB() {
+        _sftp.writeToOutputStream(_file);
+    }
+
+    /**
+     * @detail SFTP over in-memory streams. The unconnected Socket has no channel, so files take the buffered copy path
+     */
+    private static class MemorySFTP extends SFTP {
+
+        MemorySFTP(InputStream inputStream, OutputStream outputStream) {
+            super(new Socket(), inputStream, outputStream, false);
+        }
+    }
+
+    /**
+     * @detail Returns one whole command line per read and never reports more available bytes,
+     *         like a client that waits for each response
+     */
+    private static class RepeatingLineInputStream extends InputStream {
+
+        private final byte[] _line;
+
+        RepeatingLineInputStream(String line) {
+            this(line.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        RepeatingLineInputStream(byte[] line) {
+            this._line = line;
+        }
+
+        @Override
+        public int read() {
+            return _line[0];
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int count = Math.min(len, _line.length);
+            System.arraycopy(_line, 0, b, off, count);
+            return count;
+        }
+    }
+}
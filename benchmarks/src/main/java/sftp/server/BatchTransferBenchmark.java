@@ -0,0 +1,112 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail Time to move a directory of small files over loopback with one RETR/SEND or STOR/SIZE
+ *         per file compared to a single MGET or MPUT container stream
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchTransferBenchmark {
+
+    @Param({"100", "1000"})
+    public int files;
+
+    @Param({"1024"})
+    public int fileSize;
+
+    private BenchmarkServer _server;
+    private LoopbackClient _client;
+    private byte[] _payload;
+    private byte[] _container;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        _server = new BenchmarkServer();
+        _payload = new byte[fileSize];
+        new Random(42).nextBytes(_payload);
+
+        Path batchDir = Files.createDirectories(_server.serverDir().resolve("text/batch"));
+        ByteArrayOutputStream container = new ByteArrayOutputStream();
+
+        for (int i = 0; i < files; i++) {
+            Files.write(batchDir.resolve("file-" + i + ".txt"), _payload);
+            container.writeBytes(LoopbackClient.encodeContainerEntry("up-" + i + ".txt", _payload));
+        }
+
+        container.writeBytes(new byte[4]);
+        _container = container.toByteArray();
+
+        _client = _server.connect();
+        _client.command("USER admin");
+        _client.command("CDIR text");
+        _client.command("CDIR batch");
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        _client.close();
+        _server.close();
+    }
+
+    @Benchmark
+    public void retrPerFile() throws IOException {
+
+        for (int i = 0; i < files; i++) {
+            long size = Long.parseLong(_client.command("RETR file-" + i + ".txt"));
+            _client.write("SEND");
+            _client.readBytes(size);
+            _client.readResponse();
+        }
+    }
+
+    @Benchmark
+    public int mget() throws IOException {
+        _client.command("MGET *");
+        int received = _client.readContainer();
+        _client.readResponse();
+        return received;
+    }
+
+    @Benchmark
+    public void storPerFile() throws IOException {
+
+        for (int i = 0; i < files; i++) {
+            _client.command("STOR OLD up-" + i + ".txt");
+            _client.command("SIZE " + _payload.length);
+            _client.writeBytes(_payload);
+            _client.readResponse();
+        }
+    }
+
+    @Benchmark
+    public String mput() throws IOException {
+        _client.command("MPUT OLD");
+        _client.writeBytes(_container);
+        return _client.readResponse();
+    }
+}
@@ -0,0 +1,117 @@
+package sftp.server;
+
+import sftp.SFTP;
+import sftp.server.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * @detail Loopback server for benchmarks. Serves Sessions with login bypassed from a temporary
+ *         working directory, which is set as user.dir so FileSystem and CredentialsManager
+ *         resolve resources/ and users.csv inside it. Sessions run on the thread engine
+ *         or, if asked for, on a SelectorServer.
+ */
+final class BenchmarkServer implements AutoCloseable {
+
+    private static final ServerMetrics METRICS = new ServerMetrics(() -> 0, FileCache.isEnabled() ? FileCache.getInstance() : null);
+
+    private final Path _workingDir;
+    private final ServerSocketChannel _welcomeChannel;
+    private final ExecutorService _sessionPool;
+
+    BenchmarkServer() throws IOException {
+        this("threads");
+    }
+
+    /**
+     * @param engine threads or nio, as -Dsftp.server.engine
+     */
+    BenchmarkServer(String engine) throws IOException {
+        this(engine, socket -> new SFTP(socket, false));
+    }
+
+    /**
+     * @param newSftp Creates the SFTP every session of the thread engine runs on
+     */
+    BenchmarkServer(Function<Socket, SFTP> newSftp) throws IOException {
+        this("threads", newSftp);
+    }
+
+    private BenchmarkServer(String engine, Function<Socket, SFTP> newSftp) throws IOException {
+        _workingDir = Files.createTempDirectory("sftp-bench");
+        Files.createDirectories(_workingDir.resolve("resources/sftp.server/text"));
+        Files.createDirectories(_workingDir.resolve("resources/sftp.server/other"));
+        Files.createDirectories(_workingDir.resolve("src/sftp/server/credentials"));
+        Files.writeString(_workingDir.resolve("src/sftp/server/credentials/users.csv"), "admin\n");
+
+        System.setProperty("user.dir", _workingDir.toString());
+        System.setProperty("sftp.server.fileSizeLimit", String.valueOf(Long.MAX_VALUE));
+
+        _welcomeChannel = ServerSocketChannel.open();
+        _welcomeChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        _sessionPool = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "bench-session");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (engine.equals("nio")) {
+            _sessionPool.execute(new SelectorServer(_welcomeChannel, 2, 16, new Semaphore(Integer.MAX_VALUE),
+                    METRICS, "bench", false, true));
+        } else {
+            _sessionPool.execute(() -> acceptClients(newSftp));
+        }
+    }
+
+    private void acceptClients(Function<Socket, SFTP> newSftp) {
+
+        while (_welcomeChannel.isOpen()) {
+
+            try {
+                SocketChannel channel = _welcomeChannel.accept();
+                Session session = new Session(newSftp.apply(channel.socket()), "bench", true, METRICS);
+                _sessionPool.execute(session);
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @detail Server file system root, equivalent of resources/sftp.server
+     */
+    Path serverDir() {
+        return _workingDir.resolve("resources/sftp.server");
+    }
+
+    int port() {
+        return _welcomeChannel.socket().getLocalPort();
+    }
+
+    LoopbackClient connect() throws IOException {
+        return new LoopbackClient(port());
+    }
+
+    @Override
+    public void close() throws IOException {
+        _welcomeChannel.close();
+        _sessionPool.shutdownNow();
+
+        try (Stream<Path> paths = Files.walk(_workingDir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail RETR/SEND and STOR/SIZE throughput over loopback with the checksums -Dsftp.checksum selects.
+ *         retr sends a file whose checksum is recorded, retrUnrecorded one whose modification time
+ *         changes before every send, so the checksum is computed while it is sent. The bytes counter
+ *         reports the effective transfer rate in bytes per second
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChecksumOverheadBenchmark {
+
+    @Param({"none", "crc32c", "sha256"})
+    public String checksum;
+
+    @Param({"67108864"})
+    public int fileSize;
+
+    private BenchmarkServer _server;
+    private LoopbackClient _client;
+    private byte[] _payload;
+    private Path _unrecorded;
+    private long _lastModified;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // Read by every transfer of the server's Sessions
+        System.setProperty("sftp.checksum", checksum);
+        _server = new BenchmarkServer();
+        _client = _server.connect();
+        _client.command("USER admin");
+        _client.command("CDIR text");
+
+        _payload = new byte[fileSize];
+        new Random(42).nextBytes(_payload);
+        Path recorded = Files.write(_server.serverDir().resolve("text/retr.bin"), _payload);
+        // Files modified moments ago aren't recorded, as they may still be written to
+        Files.setLastModifiedTime(recorded, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+        _unrecorded = Files.write(_server.serverDir().resolve("text/unrecorded.bin"), _payload);
+        _lastModified = Files.getLastModifiedTime(_unrecorded).toMillis();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        _client.close();
+        _server.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void touchUnrecorded() throws IOException {
+        _lastModified += 1000;
+        Files.setLastModifiedTime(_unrecorded, FileTime.fromMillis(_lastModified));
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+    }
+
+    @Benchmark
+    public void retr(Bytes bytes) throws IOException {
+        retrieve("retr.bin", bytes);
+    }
+
+    @Benchmark
+    public void retrUnrecorded(Bytes bytes) throws IOException {
+        retrieve("unrecorded.bin", bytes);
+    }
+
+    @Benchmark
+    public void stor(Bytes bytes) throws IOException {
+        _client.command("STOR OLD stor.bin");
+        _client.command("SIZE " + fileSize);
+        _client.writeBytes(_payload);
+        _client.readResponse();
+        bytes.bytes += fileSize;
+    }
+
+    private void retrieve(String fileName, Bytes bytes) throws IOException {
+        long size = Long.parseLong(_client.command("RETR " + fileName));
+        _client.write("SEND");
+        _client.readBytes(size);
+        _client.readResponse();
+        bytes.bytes += size;
+    }
+}
@@ -0,0 +1,50 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail Cost of splitting a command line and validating it with Server.isValidRequestFormat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandParsingBenchmark {
+
+    private final String[] _commands = {
+            "USER admin",
+            "ACCT utri092",
+            "PASS study",
+            "TYPE B",
+            "LIST V text/",
+            "CDIR text",
+            "RETR example.txt",
+            "STOR NEW example.txt",
+            "SIZE 1048576",
+            "WRONG command",
+    };
+
+    private int _next;
+
+    @Benchmark
+    public void parseAndValidate(Blackhole blackhole) {
+        String message = _commands[_next];
+        _next = (_next + 1) % _commands.length;
+
+        String[] request = message.split(" ");
+        blackhole.consume(Server.isValidRequestFormat(request));
+    }
+}
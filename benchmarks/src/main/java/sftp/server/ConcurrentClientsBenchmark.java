@@ -0,0 +1,121 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail Aggregate RETR/SEND throughput of 1, 16, 256 and 4096 clients connected at once. Every
+ *         operation is one round in which each client downloads the file once, all of them at the
+ *         same time, so the bytes counter is the throughput the server sustains across its sessions
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentClientsBenchmark {
+
+    @Param({"1", "16", "256", "4096"})
+    public int clients;
+
+    @Param({"65536"})
+    public int fileSize;
+
+    private BenchmarkServer _server;
+    private LoopbackClient[] _clients;
+    private ExecutorService _clientThreads;
+    private List<Future<Long>> _downloads;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        _server = new BenchmarkServer();
+
+        byte[] payload = new byte[fileSize];
+        new Random(42).nextBytes(payload);
+        Files.write(_server.serverDir().resolve("other/send.bin"), payload);
+
+        _clients = new LoopbackClient[clients];
+
+        for (int i = 0; i < clients; i++) {
+            _clients[i] = _server.connect();
+            _clients[i].command("USER admin");
+            _clients[i].command("CDIR other");
+        }
+
+        // One thread per client so every download of a round is in flight at once
+        _clientThreads = Executors.newFixedThreadPool(clients, runnable -> {
+            Thread thread = new Thread(runnable, "bench-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _downloads = new ArrayList<>(clients);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        _clientThreads.shutdownNow();
+
+        for (LoopbackClient client : _clients) {
+            client.close();
+        }
+
+        _server.close();
+    }
+
+    @Benchmark
+    public void round(Bytes bytes) throws Exception {
+        _downloads.clear();
+
+        for (LoopbackClient client : _clients) {
+            _downloads.add(_clientThreads.submit(() -> retrieve(client)));
+        }
+
+        try {
+
+            for (Future<Long> download : _downloads) {
+                bytes.bytes += download.get();
+            }
+
+        } catch (ExecutionException e) {
+            throw new IOException("Download failed", e.getCause());
+        }
+    }
+
+    private static long retrieve(LoopbackClient client) throws IOException {
+        long size = Long.parseLong(client.command("RETR send.bin"));
+        client.write("SEND");
+        client.readBytes(size);
+        client.readResponse();
+        return size;
+    }
+}
@@ -0,0 +1,88 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import sftp.SFTP;
+import sftp.server.credentials.UserDirectory;
+import sftp.server.metrics.ServerMetrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail Cost of setting up a Session and logging in with USER, ACCT and PASS against a
+ *         users.csv with many users, measured against in-memory streams so no network time is included
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConnectionSetupBenchmark {
+
+    private static final ServerMetrics METRICS = new ServerMetrics(() -> 0);
+
+    @Param({"10", "100000"})
+    public int users;
+
+    private Path _workingDir;
+    private SFTP _sftp;
+    private String _lastUser;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        _workingDir = Files.createTempDirectory("sftp-bench");
+        Files.createDirectories(_workingDir.resolve("resources/sftp.server"));
+        Path usersFile = _workingDir.resolve("users.csv");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(usersFile)) {
+            writer.write("admin\n");
+
+            for (int i = 0; i < users; i++) {
+                writer.write("user" + i + ",acct" + i + ".pass" + i + ",other.secret,root\n");
+            }
+        }
+
+        System.setProperty("user.dir", _workingDir.toString());
+        System.setProperty("sftp.server.usersFile", usersFile.toString());
+        UserDirectory.reload();
+
+        _lastUser = "user" + (users - 1);
+        _sftp = new SFTP(new Socket(), InputStream.nullInputStream(), OutputStream.nullOutputStream(), false) {};
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        Files.delete(_workingDir.resolve("users.csv"));
+        Files.delete(_workingDir.resolve("resources/sftp.server"));
+        Files.delete(_workingDir.resolve("resources"));
+        Files.delete(_workingDir);
+    }
+
+    @Benchmark
+    public boolean setupAndLogin() {
+        Session session = new Session(_sftp, "bench", false, METRICS);
+        session.processClientRequest("USER " + _lastUser);
+        session.processClientRequest("ACCT acct" + (users - 1));
+        session.processClientRequest("PASS pass" + (users - 1));
+        return session.isConnected();
+    }
+}
@@ -0,0 +1,89 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail Time to upload the same file again with STOR OLD when uploads are stored as plain files
+ *         and when they are stored as chunks, and with its SHA-256 announced in SIZE so a chunk
+ *         store that holds it doesn't receive it
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DedupStorageBenchmark {
+
+    @Param({"files", "cas"})
+    public String storage;
+
+    @Param({"16777216"})
+    public int fileSize;
+
+    private BenchmarkServer _server;
+    private LoopbackClient _client;
+    private byte[] _payload;
+    private String _payloadHash;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // Read by every Session the server creates
+        System.setProperty("sftp.server.storage", storage);
+        _server = new BenchmarkServer();
+        _client = _server.connect();
+        _client.command("USER admin");
+
+        _payload = new byte[fileSize];
+        new Random(42).nextBytes(_payload);
+        _payloadHash = ChunkStore.toHex(MessageDigest.getInstance("SHA-256").digest(_payload));
+
+        // The first upload stores the chunks, the benchmarks upload the same bytes again
+        stor("SIZE " + fileSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        _client.close();
+        _server.close();
+    }
+
+    @Benchmark
+    public String storAgain() throws IOException {
+        return stor("SIZE " + fileSize);
+    }
+
+    @Benchmark
+    public String storAnnounced() throws IOException {
+        return stor("SIZE " + fileSize + ' ' + _payloadHash);
+    }
+
+    private String stor(String size) throws IOException {
+        _client.command("STOR OLD upload.bin");
+        String response = _client.command(size);
+
+        if (!response.startsWith("+ok")) {
+            return response;
+        }
+
+        _client.writeBytes(_payload);
+        return _client.readResponse();
+    }
+}
@@ -0,0 +1,147 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import sftp.Delta;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail Time and bytes on the wire to overwrite a file on the server with a version that has a
+ *         share of its bytes changed, sent whole with STOR OLD and as a delta with DELT and DPUT.
+ *         The changes are 64 runs spread over the file. The server's copy is put back before every
+ *         upload and the wire bytes per upload are printed when a trial ends
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeltaTransferBenchmark {
+
+    private static final int CHANGED_RUNS = 64;
+
+    @Param({"1", "10", "50"})
+    public int modifiedPercent;
+
+    @Param({"16777216"})
+    public int fileSize;
+
+    private BenchmarkServer _server;
+    private LoopbackClient _client;
+    private byte[] _original;
+    private byte[] _modified;
+    private File _modifiedFile;
+    private Path _serverCopy;
+    private long _wireBytes;
+    private long _uploads;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        _server = new BenchmarkServer();
+        _client = _server.connect();
+        _client.command("USER admin");
+
+        Random random = new Random(42);
+        _original = new byte[fileSize];
+        random.nextBytes(_original);
+        _modified = _original.clone();
+
+        int runLength = (int) ((long) fileSize * modifiedPercent / 100 / CHANGED_RUNS);
+        byte[] run = new byte[runLength];
+
+        for (int i = 0; i < CHANGED_RUNS; i++) {
+            random.nextBytes(run);
+            System.arraycopy(run, 0, _modified, (int) ((long) fileSize * i / CHANGED_RUNS), runLength);
+        }
+
+        _modifiedFile = File.createTempFile("sftp-delta", ".bin");
+        Files.write(_modifiedFile.toPath(), _modified);
+        _serverCopy = _server.serverDir().resolve("other/upload.bin");
+    }
+
+    @Setup(Level.Iteration)
+    public void resetCounters() {
+        _wireBytes = 0;
+        _uploads = 0;
+    }
+
+    @Setup(Level.Invocation)
+    public void restoreServerCopy() throws IOException {
+        Files.write(_serverCopy, _original);
+    }
+
+    @TearDown(Level.Iteration)
+    public void printWireBytes() {
+
+        if (_uploads > 0) {
+            System.out.printf("%n%d%% modified: %d wire bytes per upload%n", modifiedPercent, _wireBytes / _uploads);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        _client.close();
+        _server.close();
+        Files.deleteIfExists(_modifiedFile.toPath());
+    }
+
+    @Benchmark
+    public String full() throws IOException {
+        _client.command("STOR OLD upload.bin");
+        String response = _client.command("SIZE " + fileSize);
+
+        if (!response.startsWith("+ok")) {
+            return response;
+        }
+
+        _client.writeBytes(_modified);
+        _wireBytes += fileSize;
+        _uploads++;
+
+        return _client.readResponse();
+    }
+
+    @Benchmark
+    public String delta() throws IOException {
+        String response = _client.command("DELT upload.bin");
+
+        if (!response.startsWith("+Signatures")) {
+            return response;
+        }
+
+        byte[] signatures = _client.readFully(Integer.parseInt(response.split(" ")[1]));
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        String fileHash = Delta.encode(signatures, _modifiedFile, delta);
+
+        response = _client.command("DPUT " + delta.size() + ' ' + fileSize + ' ' + fileHash);
+
+        if (!response.startsWith("+ok")) {
+            return response;
+        }
+
+        _client.writeBytes(delta.toByteArray());
+        _wireBytes += signatures.length + delta.size();
+        _uploads++;
+
+        return _client.readResponse();
+    }
+}
@@ -0,0 +1,114 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail Time to RETR and SEND the same file over loopback with the file cache turned off
+ *         (fileCacheSize 0) and on, with uploads stored as files and as chunks. retrAfterScan sends it after another file of a scan, 128 MiB of files
+ *         sent in turn, that isn't measured. The segmented LRU keeps the scan from evicting the file
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileCacheBenchmark {
+
+    private static final int SCAN_FILES = 64;
+
+    @Param({"0", "67108864"})
+    public long fileCacheSize;
+
+    @Param({"4096", "65536", "1048576"})
+    public int fileSize;
+
+    @Param({"files", "cas"})
+    public String storage;
+
+    private BenchmarkServer _server;
+    private LoopbackClient _client;
+    private int _scanned;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // Read once when the cache is first used
+        System.setProperty("sftp.server.fileCacheSize", String.valueOf(fileCacheSize));
+        System.setProperty("sftp.server.storage", storage);
+        _server = new BenchmarkServer();
+        _client = _server.connect();
+        _client.command("USER admin");
+        _client.command("CDIR other");
+
+        byte[] payload = new byte[fileSize];
+        Random random = new Random(42);
+        random.nextBytes(payload);
+
+        // Uploaded so the chunk store holds it as a manifest
+        _client.command("STOR OLD hot.bin");
+        _client.command("SIZE " + fileSize);
+        _client.writeBytes(payload);
+        _client.readResponse();
+
+        // Together the scanned files are bigger than the cache
+        byte[] scanned = new byte[2 * 1024 * 1024];
+
+        for (int i = 0; i < SCAN_FILES; i++) {
+            random.nextBytes(scanned);
+            Files.write(_server.serverDir().resolve("other/scan" + i + ".bin"), scanned);
+        }
+
+        retrieve("hot.bin");
+        retrieve("hot.bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        _client.close();
+        _server.close();
+    }
+
+    @Benchmark
+    public long retrHot() throws IOException {
+        return retrieve("hot.bin");
+    }
+
+    @State(Scope.Thread)
+    public static class Scan {
+
+        @Setup(Level.Invocation)
+        public void scanNext(FileCacheBenchmark benchmark) throws IOException {
+            benchmark.retrieve("scan" + (benchmark._scanned++ % SCAN_FILES) + ".bin");
+        }
+    }
+
+    @Benchmark
+    public long retrAfterScan(Scan scan) throws IOException {
+        return retrieve("hot.bin");
+    }
+
+    private long retrieve(String fileName) throws IOException {
+        long size = Long.parseLong(_client.command("RETR " + fileName));
+        _client.write("SEND");
+        _client.readBytes(size);
+        _client.readResponse();
+        return size;
+    }
+}
@@ -0,0 +1,152 @@
+package sftp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * @detail Loopback TCP proxy that emulates a long link for benchmarks. Every chunk is held back for
+ *         the one way delay, and each direction of a connection has at most a window of bytes in
+ *         flight, so one connection tops out at window / delay like a TCP stream on a real link.
+ */
+final class LatencyProxy implements AutoCloseable {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final int _targetPort;
+    private final long _delayNanos;
+    private final int _windowBytes;
+    private final ServerSocket _welcomeSocket;
+    private final ExecutorService _pipes;
+
+    /**
+     * @param targetPort Loopback port connections are forwarded to
+     * @param delayMillis One way delay of every chunk
+     * @param windowBytes Bytes one direction of a connection may have in flight
+     */
+    LatencyProxy(int targetPort, long delayMillis, int windowBytes) throws IOException {
+        this._targetPort = targetPort;
+        this._delayNanos = delayMillis * 1_000_000;
+        this._windowBytes = windowBytes;
+        this._welcomeSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this._pipes = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "bench-proxy");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _pipes.execute(this::acceptClients);
+    }
+
+    private void acceptClients() {
+
+        while (!_welcomeSocket.isClosed()) {
+
+            try {
+                Socket client = _welcomeSocket.accept();
+                Socket server = new Socket(InetAddress.getLoopbackAddress(), _targetPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                pipe(client, server);
+                pipe(server, client);
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @detail Forwards one direction with a reader that queues chunks for their release time
+     *         and a writer that sends them once it has come
+     */
+    private void pipe(Socket from, Socket to) throws IOException {
+        InputStream in = from.getInputStream();
+        OutputStream out = to.getOutputStream();
+        Semaphore window = new Semaphore(_windowBytes);
+        BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+
+        _pipes.execute(() -> {
+            byte[] buffer = new byte[Math.min(CHUNK_SIZE, _windowBytes)];
+
+            try {
+                int read;
+
+                while ((read = in.read(buffer)) != -1) {
+                    window.acquire(read);
+                    queue.put(new Chunk(System.nanoTime() + _delayNanos, Arrays.copyOf(buffer, read)));
+                }
+
+            } catch (IOException | InterruptedException e) {
+                // Connection closed, the writer ends on the empty chunk
+            } finally {
+                queue.add(new Chunk(System.nanoTime() + _delayNanos, new byte[0]));
+            }
+        });
+
+        _pipes.execute(() -> {
+
+            try {
+
+                while (true) {
+                    Chunk chunk = queue.take();
+                    long wait = chunk.release - System.nanoTime();
+
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    }
+
+                    if (chunk.bytes.length == 0) {
+                        break;
+                    }
+
+                    out.write(chunk.bytes);
+                    window.release(chunk.bytes.length);
+                }
+
+            } catch (IOException | InterruptedException e) {
+                // Peer went away
+            } finally {
+                close(from);
+                close(to);
+            }
+        });
+    }
+
+    private static void close(Socket socket) {
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    InetSocketAddress address() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), _welcomeSocket.getLocalPort());
+    }
+
+    @Override
+    public void close() throws IOException {
+        _welcomeSocket.close();
+        _pipes.shutdownNow();
+    }
+
+    private static final class Chunk {
+        private final long release;
+        private final byte[] bytes;
+
+        private Chunk(long release, byte[] bytes) {
+            this.release = release;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail Latency of FileSystem.listDir in F and V modes on directories of 10 to 100k entries.
+ *         Rows are written through the same buffered Writer the Session streams them to.
+ *         Warm lists hit the DirectoryCache, cold ones drop the cached rows first.
+ *         100k entries are beyond the default sftp.server.listCacheMaxEntries and are never cached
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListDirBenchmark {
+
+    @Param({"10", "1000", "50000", "100000"})
+    public int entries;
+
+    @Param({"F", "V"})
+    public String mode;
+
+    private BenchmarkServer _server;
+    private FileSystem _fileSystem;
+    private String _dir;
+    private Path _dirPath;
+    private Writer _out;
+
+    @Setup(Level.Trial)
+    public void createDirectory() throws IOException {
+        _server = new BenchmarkServer();
+        _dir = "list-" + entries;
+
+        _dirPath = Files.createDirectories(_server.serverDir().resolve(_dir));
+
+        for (int i = 0; i < entries; i++) {
+            Files.createFile(_dirPath.resolve("entry-" + i + ".txt"));
+        }
+
+        _fileSystem = new FileSystem("sftp.server");
+        _out = new BufferedWriter(Writer.nullWriter(), 64 * 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDirectory() throws IOException {
+        _server.close();
+    }
+
+    @Benchmark
+    public void listDirWarm() throws IOException {
+        _fileSystem.listDir(_dir, mode, 0, 0, _out);
+    }
+
+    @Benchmark
+    public void listDirCold() throws IOException {
+        DirectoryCache.getInstance().invalidate(_dirPath);
+        _fileSystem.listDir(_dir, mode, 0, 0, _out);
+    }
+
+    /**
+     * @detail 100 entries from the middle of the directory, paged listings are not cached
+     */
+    @Benchmark
+    public void listDirPage() throws IOException {
+        _fileSystem.listDir(_dir, mode, 100, entries / 2, _out);
+    }
+}
@@ -0,0 +1,284 @@
+package sftp.server;
+
+import sftp.Protocol;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * @detail Minimal protocol client for benchmarks, it sends commands and reads responses and
+ *         file bytes without the interactive sftp.client.Client
+ */
+final class LoopbackClient implements AutoCloseable {
+
+    private final Socket _socket;
+    private final InputStream _input;
+    private final DataInputStream _frameInput;
+    private final OutputStream _output;
+    private final byte[] _buffer;
+    private final byte[] _inflated = new byte[64 * 1024];
+    // Type and length of a compressed (Z) frame
+    private final byte[] _frameHeader = new byte[5];
+    private boolean _isBinary;
+
+    LoopbackClient(int port) throws IOException {
+        _socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        _socket.setTcpNoDelay(true);
+        _input = new BufferedInputStream(_socket.getInputStream(), 64 * 1024);
+        _frameInput = new DataInputStream(_input);
+        _output = _socket.getOutputStream();
+        _buffer = new byte[64 * 1024];
+        readResponse();
+    }
+
+    /**
+     * @detail Negotiates binary frames (protocol 2), later commands and responses are sent as frames
+     */
+    void useBinaryFrames() throws IOException {
+        String response = command("VERS 2");
+
+        if (!response.startsWith("+")) {
+            throw new IOException("Server refused protocol 2: " + response);
+        }
+
+        _isBinary = true;
+    }
+
+    /**
+     * @detail Sends a command and returns its response
+     */
+    String command(String command) throws IOException {
+        write(command);
+        return readResponse();
+    }
+
+    /**
+     * @detail Sends a command without waiting for its response
+     */
+    void write(String command) throws IOException {
+        _output.write(encode(command));
+        _output.flush();
+    }
+
+    /**
+     * @detail Encodes a command as a CRLF terminated line or a binary frame
+     */
+    byte[] encode(String command) {
+
+        if (!_isBinary) {
+            return (command + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        int argumentsStart = command.indexOf(' ');
+        String name = argumentsStart == -1 ? command : command.substring(0, argumentsStart);
+        byte[] arguments = (argumentsStart == -1 ? "" : command.substring(argumentsStart + 1)).getBytes(StandardCharsets.UTF_8);
+
+        return ByteBuffer.allocate(Protocol.HEADER_SIZE + arguments.length)
+                .put((byte) Protocol.opcodeOf(name)).put((byte) 0).putLong(arguments.length)
+                .put(arguments).array();
+    }
+
+    /**
+     * @detail Reads one NUL terminated response without its terminator
+     */
+    String readResponse() throws IOException {
+
+        if (_isBinary) {
+            return readResponseFrames();
+        }
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        int b;
+
+        while ((b = _input.read()) != 0) {
+
+            if (b == -1) {
+                throw new EOFException("Server closed the connection");
+            }
+
+            response.write(b);
+        }
+
+        String message = response.toString(StandardCharsets.UTF_8);
+        return message.endsWith("\r\n") ? message.substring(0, message.length() - 2) : message;
+    }
+
+    /**
+     * @detail Reads response frames till one without FLAG_MORE
+     */
+    private String readResponseFrames() throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        int flags;
+
+        do {
+            int opcode = _frameInput.readUnsignedByte();
+            flags = _frameInput.readUnsignedByte();
+            long length = _frameInput.readLong();
+
+            if (opcode != Protocol.OP_RESPONSE || (flags & Protocol.FLAG_DATA) != 0) {
+                throw new IOException("Unexpected frame " + opcode + " with flags " + flags);
+            }
+
+            byte[] text = new byte[(int) length];
+            _frameInput.readFully(text);
+            response.write(text);
+
+        } while ((flags & Protocol.FLAG_MORE) != 0);
+
+        String message = response.toString(StandardCharsets.UTF_8);
+        return message.endsWith("\r\n") ? message.substring(0, message.length() - 2) : message;
+    }
+
+    /**
+     * @detail Reads and discards exactly size bytes of a file
+     */
+    void readBytes(long size) throws IOException {
+        long received = 0;
+
+        while (received < size) {
+            int read = _input.read(_buffer, 0, (int) Math.min(_buffer.length, size - received));
+
+            if (read == -1) {
+                throw new EOFException("Server closed the connection after " + received + " bytes");
+            }
+
+            received += read;
+        }
+    }
+
+    /**
+     * @detail Reads and discards the frames of a compressed (Z) file till its end frame
+     */
+    void readCompressedFrames() throws IOException {
+        readCompressedFrames(null);
+    }
+
+    /**
+     * @detail Reads the frames of a compressed (Z) file till its end frame and inflates the deflated ones
+     * @param inflater Inflater the deflated frames go through, reset afterwards. null discards them as they are
+     * @return Number of bytes the frames took on the wire
+     */
+    long readCompressedFrames(Inflater inflater) throws IOException {
+        long wireBytes = 5;
+        int frameType;
+
+        while ((frameType = _frameInput.readUnsignedByte()) != 0) {
+            int length = _frameInput.readInt();
+
+            if (frameType > 2 || length < 0 || length > _buffer.length) {
+                throw new IOException("Invalid frame " + frameType + " of " + length + " bytes");
+            }
+
+            _frameInput.readFully(_buffer, 0, length);
+            wireBytes += 5 + length;
+
+            // Type 1 frames are deflated, type 2 frames stored
+            if (inflater != null && frameType == 1) {
+                inflate(inflater, length);
+            }
+        }
+
+        _frameInput.readInt();
+
+        if (inflater != null) {
+            inflater.reset();
+        }
+
+        return wireBytes;
+    }
+
+    private void inflate(Inflater inflater, int length) throws IOException {
+        inflater.setInput(_buffer, 0, length);
+
+        try {
+
+            while (inflater.inflate(_inflated) > 0) {
+                // The inflated bytes are only needed to pay for inflating them
+            }
+
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed data", e);
+        }
+    }
+
+    /**
+     * @detail Sends bytes as the stored frames of a compressed (Z) file followed by its end frame
+     */
+    void writeStoredFrames(byte[] bytes) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(_frameHeader);
+
+        for (int offset = 0; offset < bytes.length; offset += _buffer.length) {
+            int length = Math.min(_buffer.length, bytes.length - offset);
+            header.clear();
+            header.put((byte) 2).putInt(length);
+            _output.write(_frameHeader);
+            _output.write(bytes, offset, length);
+        }
+
+        header.clear();
+        header.put((byte) 0).putInt(0);
+        _output.write(_frameHeader);
+        _output.flush();
+    }
+
+    /**
+     * @detail Reads exactly size bytes of a file
+     */
+    byte[] readFully(int size) throws IOException {
+        byte[] bytes = new byte[size];
+        new DataInputStream(_input).readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * @detail Reads and discards the files of a text protocol container stream
+     * @return Number of files in the container
+     */
+    int readContainer() throws IOException {
+        DataInputStream input = new DataInputStream(_input);
+        int files = 0;
+        int nameLength;
+
+        while ((nameLength = input.readInt()) != 0) {
+            input.readFully(new byte[nameLength]);
+            long size = input.readLong();
+            input.readLong();
+            readBytes(size);
+            files++;
+        }
+
+        return files;
+    }
+
+    /**
+     * @detail Encodes one file of a text protocol container stream
+     */
+    static byte[] encodeContainerEntry(String name, byte[] bytes) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+
+        return ByteBuffer.allocate(4 + nameBytes.length + 16 + bytes.length)
+                .putInt(nameBytes.length).put(nameBytes).putLong(bytes.length).putLong(System.currentTimeMillis())
+                .put(bytes).array();
+    }
+
+    void writeBytes(byte[] bytes) throws IOException {
+        _output.write(bytes);
+        _output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        _socket.close();
+    }
+}
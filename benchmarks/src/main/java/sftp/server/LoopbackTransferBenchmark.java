@@ -0,0 +1,100 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail End-to-end RETR/SEND and STOR/SIZE throughput over loopback against thread engine Sessions.
+ *         The bytes counter reports the effective transfer rate in bytes per second
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackTransferBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ServerState {
+
+        @Param({"1024", "1048576", "67108864"})
+        public int fileSize;
+
+        BenchmarkServer server;
+        byte[] payload;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            server = new BenchmarkServer();
+            payload = new byte[fileSize];
+            new Random(42).nextBytes(payload);
+            Files.write(server.serverDir().resolve("text/retr.bin"), payload);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            server.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ClientState {
+
+        LoopbackClient client;
+        String storName;
+
+        @Setup(Level.Trial)
+        public void connect(ServerState serverState) throws IOException {
+            client = serverState.server.connect();
+            client.command("USER admin");
+            client.command("CDIR text");
+            storName = "stor-" + Thread.currentThread().getId() + ".txt";
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            client.close();
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+    }
+
+    @Benchmark
+    public void retr(ServerState serverState, ClientState clientState, Bytes bytes) throws IOException {
+        long size = Long.parseLong(clientState.client.command("RETR retr.bin"));
+        clientState.client.write("SEND");
+        clientState.client.readBytes(size);
+        clientState.client.readResponse();
+        bytes.bytes += size;
+    }
+
+    @Benchmark
+    public void stor(ServerState serverState, ClientState clientState, Bytes bytes) throws IOException {
+        clientState.client.command("STOR OLD " + clientState.storName);
+        clientState.client.command("SIZE " + serverState.payload.length);
+        clientState.client.writeBytes(serverState.payload);
+        clientState.client.readResponse();
+        bytes.bytes += serverState.payload.length;
+    }
+}
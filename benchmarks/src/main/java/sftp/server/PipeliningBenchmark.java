@@ -0,0 +1,74 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail Time for a batch of commands over loopback when every command waits for its response
+ *         compared to sending the whole batch before reading the responses
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipeliningBenchmark {
+
+    @Param({"16"})
+    public int commands;
+
+    private BenchmarkServer _server;
+    private LoopbackClient _client;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        _server = new BenchmarkServer();
+        _client = _server.connect();
+        _client.command("USER admin");
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        _client.close();
+        _server.close();
+    }
+
+    @Benchmark
+    public void sequential(Blackhole blackhole) throws IOException {
+
+        for (int i = 0; i < commands; i++) {
+            blackhole.consume(_client.command("CDIR text"));
+        }
+    }
+
+    @Benchmark
+    public void pipelined(Blackhole blackhole) throws IOException {
+        StringBuilder batch = new StringBuilder();
+
+        for (int i = 0; i < commands; i++) {
+            batch.append("CDIR text\r\n");
+        }
+
+        _client.writeBytes(batch.toString().getBytes());
+
+        for (int i = 0; i < commands; i++) {
+            blackhole.consume(_client.readResponse());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail Commands per second over loopback with text lines (protocol 1) and binary frames (protocol 2),
+ *         one round trip per command and with a pipelined batch where parsing dominates
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProtocolBenchmark {
+
+    private static final int BATCH = 64;
+    private static final String COMMAND = "TYPE B";
+
+    @Param({"1", "2"})
+    public int protocol;
+
+    private BenchmarkServer _server;
+    private LoopbackClient _client;
+    private byte[] _batch;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        _server = new BenchmarkServer();
+        _client = _server.connect();
+
+        if (protocol == 2) {
+            _client.useBinaryFrames();
+        }
+
+        _client.command("USER admin");
+
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+
+        for (int i = 0; i < BATCH; i++) {
+            batch.writeBytes(_client.encode(COMMAND));
+        }
+
+        _batch = batch.toByteArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        _client.close();
+        _server.close();
+    }
+
+    @Benchmark
+    public String roundTrip() throws IOException {
+        return _client.command(COMMAND);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void pipelined(Blackhole blackhole) throws IOException {
+        _client.writeBytes(_batch);
+
+        for (int i = 0; i < BATCH; i++) {
+            blackhole.consume(_client.readResponse());
+        }
+    }
+}
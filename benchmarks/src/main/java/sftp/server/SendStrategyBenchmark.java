@@ -0,0 +1,106 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail RETR/SEND throughput over loopback for each way the server can send a file: a buffered
+ *         copy, FileChannel.transferTo and sliding memory mapped windows, by one reader and by four
+ *         readers of the same file. The results set the default of -Dsftp.mmapThreshold
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class SendStrategyBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ServerState {
+
+        @Param({"copy", "transfer", "mmap"})
+        public String strategy;
+
+        @Param({"1048576", "16777216", "268435456"})
+        public int fileSize;
+
+        BenchmarkServer server;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            // Read by every SFTP instance the server creates
+            System.setProperty("sftp.sendStrategy", strategy);
+            server = new BenchmarkServer();
+
+            byte[] payload = new byte[fileSize];
+            new Random(42).nextBytes(payload);
+            Files.write(server.serverDir().resolve("other/send.bin"), payload);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            server.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ClientState {
+
+        LoopbackClient client;
+
+        @Setup(Level.Trial)
+        public void connect(ServerState serverState) throws IOException {
+            client = serverState.server.connect();
+            client.command("USER admin");
+            client.command("CDIR other");
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            client.close();
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+    }
+
+    @Benchmark
+    public void retr(ClientState clientState, Bytes bytes) throws IOException {
+        bytes.bytes += retrieve(clientState.client);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void retrConcurrent(ClientState clientState, Bytes bytes) throws IOException {
+        bytes.bytes += retrieve(clientState.client);
+    }
+
+    private static long retrieve(LoopbackClient client) throws IOException {
+        long size = Long.parseLong(client.command("RETR send.bin"));
+        client.write("SEND");
+        client.readBytes(size);
+        client.readResponse();
+        return size;
+    }
+}
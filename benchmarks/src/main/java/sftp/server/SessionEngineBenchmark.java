@@ -0,0 +1,162 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail Thread engine against the Selector engine with many idle sessions open. Setup logs in the
+ *         idle sessions and prints the heap and resident memory they added per session, then starts
+ *         uploads that stall after their first bytes. The score is the latency distribution (p99 in
+ *         the percentiles) of a CDIR on one more session while the others sit idle or stalled
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionEngineBenchmark {
+
+    @Param({"threads", "nio"})
+    public String engine;
+
+    // Client and server end of every session share this process and its file descriptor limit
+    @Param({"1000", "8000"})
+    public int idleSessions;
+
+    // More than the Selector engine's 16 disk threads
+    @Param({"0", "32"})
+    public int stalledUploads;
+
+    private BenchmarkServer _server;
+    private final List<Socket> _sockets = new ArrayList<>();
+    private LoopbackClient _client;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // Stalled uploads wait till the trial ends
+        System.setProperty("sftp.transferTimeout", "0");
+        _server = new BenchmarkServer(engine);
+
+        long heapBefore = usedHeap();
+        long residentBefore = residentMemory();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        for (int i = 0; i < idleSessions; i++) {
+            _sockets.add(login());
+        }
+
+        long heap = usedHeap() - heapBefore;
+        long resident = residentMemory() - residentBefore;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+
+        System.out.printf("%s engine, %d idle sessions: %d bytes of heap and %d bytes resident per session, %d threads\n",
+                engine, idleSessions, heap / idleSessions, resident / idleSessions, threads);
+
+        for (int i = 0; i < stalledUploads; i++) {
+            Socket socket = login();
+            send(socket, "STOR NEW stalled" + i + ".bin");
+            send(socket, "SIZE 1000000");
+            socket.getOutputStream().write(new byte[1000]);
+            _sockets.add(socket);
+        }
+
+        _client = _server.connect();
+        _client.command("USER admin");
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        _client.close();
+
+        for (Socket socket : _sockets) {
+            socket.close();
+        }
+
+        _server.close();
+        System.clearProperty("sftp.transferTimeout");
+    }
+
+    @Benchmark
+    public String command() throws IOException {
+        return _client.command("CDIR /");
+    }
+
+    /**
+     * @detail Opens a session with a bare socket, so the client side adds little to the measured memory
+     */
+    private Socket login() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), _server.port());
+        readResponse(socket.getInputStream());
+        send(socket, "USER admin");
+        return socket;
+    }
+
+    private static void send(Socket socket, String command) throws IOException {
+        socket.getOutputStream().write((command + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        readResponse(socket.getInputStream());
+    }
+
+    private static void readResponse(InputStream input) throws IOException {
+        int b;
+
+        while ((b = input.read()) != 0) {
+
+            if (b == -1) {
+                throw new EOFException("Server closed the connection");
+            }
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        System.gc();
+        Thread.sleep(200);
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @detail Resident set size of the process, which includes thread stacks and native buffers
+     * @return -1 where /proc isn't available
+     */
+    private static long residentMemory() throws IOException {
+        Path status = Path.of("/proc/self/status");
+
+        if (!Files.isReadable(status)) {
+            return -1;
+        }
+
+        for (String line : Files.readAllLines(status)) {
+
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,111 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail CPU time spent while a STOR upload is stalled. The client announces a file, sends part of it
+ *         and stops, the session then waits for the rest till -Dsftp.transferTimeout closes it. The
+ *         score is how long that took, the CPU time of the server's session threads and of the whole
+ *         process over the same wait is printed for every stall. SessionTest in core fails the build
+ *         if the wait spins, this only reports the cost
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StalledUploadBenchmark {
+
+    @Param({"2"})
+    public int timeoutSeconds;
+
+    private final ThreadMXBean _threads = ManagementFactory.getThreadMXBean();
+    private final com.sun.management.OperatingSystemMXBean _os =
+            (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+    private BenchmarkServer _server;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // Read by every SFTP instance the server creates
+        System.setProperty("sftp.transferTimeout", String.valueOf(timeoutSeconds));
+        _server = new BenchmarkServer();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        _server.close();
+        System.clearProperty("sftp.transferTimeout");
+    }
+
+    @Benchmark
+    public long stall() throws IOException {
+
+        try (LoopbackClient client = _server.connect()) {
+            client.command("USER admin");
+            client.command("STOR NEW stalled.bin");
+            client.command("SIZE 1000000");
+            client.writeBytes(new byte[1000]);
+
+            Map<Long, Long> sessionCpuBefore = sessionCpuTimes();
+            long processCpuBefore = _os.getProcessCpuTime();
+            long start = System.nanoTime();
+
+            try {
+                client.readResponse();
+            } catch (EOFException e) {
+                // The session closes the connection once the timeout fires
+            }
+
+            long elapsed = System.nanoTime() - start;
+            long processCpu = _os.getProcessCpuTime() - processCpuBefore;
+            long sessionCpu = 0;
+
+            for (Map.Entry<Long, Long> thread : sessionCpuTimes().entrySet()) {
+                sessionCpu += thread.getValue() - sessionCpuBefore.getOrDefault(thread.getKey(), 0L);
+            }
+
+            System.out.printf("Stalled %d ms, session threads used %d ms of CPU, the process %d ms\n",
+                    elapsed / 1_000_000, sessionCpu / 1_000_000, processCpu / 1_000_000);
+
+            return sessionCpu;
+        }
+    }
+
+    /**
+     * @detail CPU time of every live server session thread by thread id
+     */
+    private Map<Long, Long> sessionCpuTimes() {
+        Map<Long, Long> cpuTimes = new HashMap<>();
+
+        for (ThreadInfo thread : _threads.getThreadInfo(_threads.getAllThreadIds())) {
+
+            if (thread != null && thread.getThreadName().equals("bench-session")) {
+                cpuTimes.put(thread.getThreadId(), _threads.getThreadCpuTime(thread.getThreadId()));
+            }
+        }
+
+        return cpuTimes;
+    }
+}
@@ -0,0 +1,179 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import sftp.SFTP;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail RETR/SEND throughput over loopback of the streaming send path against the one it replaced,
+ *         which read the whole file with Files.readAllBytes and wrote it through a DataOutputStream.
+ *         The server's session threads' heap allocation per download is printed after every trial.
+ *         readAllBytes can't hold a file of 2 GiB or more, so that path fails the 4 GiB case
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 4)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamingSendBenchmark {
+
+    private static final int PATTERN_SIZE = 16 * 1024 * 1024;
+
+    @Param({"readAllBytes", "transferTo"})
+    public String path;
+
+    @Param({"1048576", "104857600", "4294967296"})
+    public long fileSize;
+
+    private final com.sun.management.ThreadMXBean _threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private BenchmarkServer _server;
+    private LoopbackClient _client;
+    private long _allocatedBefore;
+    private long _downloads;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+
+        if (path.equals("readAllBytes") && fileSize >= Integer.MAX_VALUE) {
+            throw new IllegalStateException("Files.readAllBytes can't read a file of " + fileSize + " bytes");
+        }
+
+        // Both paths send the bytes as they are
+        System.setProperty("sftp.checksum", "none");
+        System.setProperty("sftp.sendStrategy", "transfer");
+        _server = path.equals("readAllBytes")
+                ? new BenchmarkServer(StreamingSendBenchmark::newReadAllBytesSftp)
+                : new BenchmarkServer();
+        writePayload(_server.serverDir().resolve("other/send.bin"));
+
+        _client = _server.connect();
+        _client.command("USER admin");
+        _client.command("CDIR other");
+        _allocatedBefore = sessionAllocatedBytes();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+
+        if (_server == null) {
+            return;
+        }
+
+        System.out.printf("%s, %d byte file: %d bytes of heap allocated by the session per download\n",
+                path, fileSize, (sessionAllocatedBytes() - _allocatedBefore) / Math.max(1, _downloads));
+
+        _client.close();
+        _server.close();
+        System.clearProperty("sftp.checksum");
+        System.clearProperty("sftp.sendStrategy");
+    }
+
+    @Benchmark
+    public void retr(Bytes bytes) throws IOException {
+        long size = Long.parseLong(_client.command("RETR send.bin"));
+
+        _client.write("SEND");
+        _client.readBytes(size);
+        _client.readResponse();
+        bytes.bytes += size;
+        _downloads++;
+    }
+
+    /**
+     * @detail SFTP that sends a file the way it did before sends were streamed
+     */
+    private static SFTP newReadAllBytesSftp(Socket socket) {
+
+        try {
+            socket.setTcpNoDelay(true);
+            DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+
+            return new SFTP(socket, socket.getInputStream(), output, false) {
+                @Override
+                public void writeToOutputStream(File fileToSend) {
+
+                    try {
+                        output.write(Files.readAllBytes(fileToSend.toPath()));
+                        output.flush();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @detail Writes fileSize random bytes without holding them all, a 16 MiB pattern is repeated
+     */
+    private void writePayload(Path file) throws IOException {
+        byte[] pattern = new byte[(int) Math.min(PATTERN_SIZE, fileSize)];
+        new Random(42).nextBytes(pattern);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long written = 0;
+
+            while (written < fileSize) {
+                ByteBuffer buffer = ByteBuffer.wrap(pattern, 0, (int) Math.min(pattern.length, fileSize - written));
+
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * @detail Heap allocated so far by the server's session threads
+     */
+    private long sessionAllocatedBytes() {
+        long allocated = 0;
+
+        for (ThreadInfo thread : _threads.getThreadInfo(_threads.getAllThreadIds())) {
+
+            if (thread != null && thread.getThreadName().equals("bench-session")) {
+                allocated += _threads.getThreadAllocatedBytes(thread.getThreadId());
+            }
+        }
+
+        return allocated;
+    }
+}
@@ -0,0 +1,88 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import sftp.client.StripedTransfer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail Time to download and upload one large file in 1 to 8 stripes through a proxy that adds
+ *         latency and limits the bytes in flight per connection, as a single TCP stream on a long link is
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StripedTransferBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int stripes;
+
+    @Param({"16777216"})
+    public int fileSize;
+
+    @Param({"10"})
+    public int delayMillis;
+
+    @Param({"262144"})
+    public int windowBytes;
+
+    private BenchmarkServer _server;
+    private LatencyProxy _proxy;
+    private StripedTransfer _transfer;
+    private Path _clientDir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        _server = new BenchmarkServer();
+        _proxy = new LatencyProxy(_server.port(), delayMillis, windowBytes);
+        _transfer = new StripedTransfer(_proxy.address(), List.of("USER admin", "CDIR other"), stripes);
+
+        byte[] payload = new byte[fileSize];
+        new Random(42).nextBytes(payload);
+        Files.write(_server.serverDir().resolve("other/striped.bin"), payload);
+
+        _clientDir = Files.createTempDirectory("sftp-bench-client");
+        Files.write(_clientDir.resolve("upload.bin"), payload);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        _proxy.close();
+        _server.close();
+        Files.deleteIfExists(_clientDir.resolve("upload.bin"));
+        Files.deleteIfExists(_clientDir.resolve("striped.bin"));
+        Files.deleteIfExists(_clientDir);
+    }
+
+    @Benchmark
+    public Path download() throws IOException {
+        Path target = _clientDir.resolve("striped.bin");
+        _transfer.download("striped.bin", fileSize, target);
+        return target;
+    }
+
+    @Benchmark
+    public String upload() throws IOException {
+        return _transfer.upload("OLD", _clientDir.resolve("upload.bin").toFile());
+    }
+}
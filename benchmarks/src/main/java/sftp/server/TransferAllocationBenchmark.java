@@ -0,0 +1,107 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail Heap allocated per RETR/SEND and STOR/SIZE over loopback, run with -prof gc and read
+ *         gc.alloc.rate.norm. Client and server share the JVM, so it counts both sides of a transfer.
+ *         If nothing is allocated per chunk it is the same for 1 MiB and 16 MiB files.
+ *         type B sends raw bytes, Z compressed frames, sendStrategy picks how RETR sends them
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferAllocationBenchmark {
+
+    @Param({"1048576", "16777216"})
+    public int fileSize;
+
+    @Param({"B", "Z"})
+    public String type;
+
+    @Param({"transfer", "copy"})
+    public String sendStrategy;
+
+    private BenchmarkServer _server;
+    private LoopbackClient _client;
+    private byte[] _payload;
+    private String _sizeCommand;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // Read by every SFTP instance the server creates
+        System.setProperty("sftp.sendStrategy", sendStrategy);
+        System.setProperty("sftp.checksum", "none");
+        _server = new BenchmarkServer();
+        _client = _server.connect();
+        _client.command("USER admin");
+        _client.command("TYPE " + type);
+        _client.command("CDIR other");
+
+        // Text compresses, so Z sends deflated frames
+        _payload = new byte[fileSize];
+        Random random = new Random(42);
+
+        for (int i = 0; i < fileSize; i++) {
+            _payload[i] = (byte) ('a' + random.nextInt(8));
+        }
+
+        Files.write(_server.serverDir().resolve("other/retr.bin"), _payload);
+        _sizeCommand = "SIZE " + fileSize;
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        _client.close();
+        _server.close();
+    }
+
+    @Benchmark
+    public long retr() throws IOException {
+        long size = Long.parseLong(_client.command("RETR retr.bin"));
+        _client.write("SEND");
+
+        if (type.equals("Z")) {
+            _client.readCompressedFrames();
+        } else {
+            _client.readBytes(size);
+        }
+
+        _client.readResponse();
+        return size;
+    }
+
+    @Benchmark
+    public String stor() throws IOException {
+        _client.command("STOR OLD stor.bin");
+        _client.command(_sizeCommand);
+
+        if (type.equals("Z")) {
+            _client.writeStoredFrames(_payload);
+        } else {
+            _client.writeBytes(_payload);
+        }
+
+        return _client.readResponse();
+    }
+}
@@ -0,0 +1,184 @@
+package sftp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @detail Time to receive a 32 MiB upload when the network and the disk are throttled to the MB/s
+ *         of link ("network:disk"). serial writes every 64 KiB block the socket read returns before
+ *         reading the next one, as FileSystem did with a FileOutputStream, pipelined receives through
+ *         an UploadPipeline. The network delivers blocks at its rate into a 256 KiB receive buffer that
+ *         stops filling while it is full, the disk writes a real file at its rate
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UploadPipelineBenchmark {
+
+    private static final int SOCKET_READ_SIZE = 64 * 1024;
+    // Bytes the network delivers while the reader is busy, then the sender waits for the window
+    private static final int SOCKET_BUFFER_SIZE = 256 * 1024;
+
+    @Param({"1000:200", "200:1000", "400:400"})
+    public String link;
+
+    @Param({"33554432"})
+    public int fileSize;
+
+    private byte[] _payload;
+    private Path _file;
+    private long _networkRate;
+    private long _diskRate;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        _payload = new byte[fileSize];
+        new Random(42).nextBytes(_payload);
+        _file = Files.createTempFile("sftp-upload", ".part");
+
+        String[] rates = link.split(":");
+        _networkRate = Long.parseLong(rates[0]) * 1_000_000;
+        _diskRate = Long.parseLong(rates[1]) * 1_000_000;
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        Files.deleteIfExists(_file);
+    }
+
+    @Benchmark
+    public long serial() throws IOException {
+
+        try (OutputStream os = Channels.newOutputStream(openDisk())) {
+            return receive(os);
+        }
+    }
+
+    @Benchmark
+    public long pipelined() throws IOException {
+
+        try (OutputStream os = new UploadPipeline(openDisk())) {
+            return receive(os);
+        }
+    }
+
+    private WritableByteChannel openDisk() throws IOException {
+        FileChannel channel = FileChannel.open(_file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new ThrottledChannel(channel, new Throttle(_diskRate, 0));
+    }
+
+    /**
+     * @detail Hands the payload to os in the blocks a socket read returns, at the network's rate
+     */
+    private long receive(OutputStream os) throws IOException {
+        Throttle network = new Throttle(_networkRate, SOCKET_BUFFER_SIZE);
+        byte[] block = new byte[SOCKET_READ_SIZE];
+        long received = 0;
+
+        while (received < fileSize) {
+            int length = (int) Math.min(block.length, fileSize - received);
+            network.acquire(length);
+            System.arraycopy(_payload, (int) received, block, 0, length);
+            os.write(block, 0, length);
+            received += length;
+        }
+
+        return received;
+    }
+
+    /**
+     * @detail Token bucket that lets bytes pass at a fixed rate. Up to burst bytes accumulate while
+     *         nobody waits, like a socket's receive buffer fills while the reader is busy
+     */
+    private static final class Throttle {
+
+        private final long _bytesPerSecond;
+        private final long _burst;
+        private long _tokens;
+        private long _refilled;
+
+        Throttle(long bytesPerSecond, long burst) {
+            this._bytesPerSecond = bytesPerSecond;
+            this._burst = burst;
+            this._refilled = System.nanoTime();
+        }
+
+        void acquire(int bytes) {
+            long now = System.nanoTime();
+            _tokens = Math.min(_burst, _tokens + (now - _refilled) * _bytesPerSecond / 1_000_000_000L);
+            _refilled = now;
+
+            if (_tokens >= bytes) {
+                _tokens -= bytes;
+                return;
+            }
+
+            long due = now + (bytes - _tokens) * 1_000_000_000L / _bytesPerSecond;
+            long wait;
+
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            _tokens = 0;
+            _refilled = due;
+        }
+    }
+
+    /**
+     * @detail Channel that writes at most the throttle's rate to a file
+     */
+    private static final class ThrottledChannel implements WritableByteChannel {
+
+        private final FileChannel _channel;
+        private final Throttle _throttle;
+
+        ThrottledChannel(FileChannel channel, Throttle throttle) {
+            this._channel = channel;
+            this._throttle = throttle;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            _throttle.acquire(src.remaining());
+            return _channel.write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return _channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            _channel.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package sftp.server;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sftp.server.metrics.ServerMetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChannelSFTPTest {
+
+    @TempDir
+    static Path _workingDir;
+
+    private static ServerSocketChannel _welcomeChannel;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        // FileSystem and CredentialsManager resolve their files against user.dir
+        System.setProperty("user.dir", _workingDir.toString());
+        Files.createDirectories(_workingDir.resolve("resources/sftp.server/text"));
+        Files.createDirectories(_workingDir.resolve("resources/sftp.server/other"));
+        Files.createDirectories(_workingDir.resolve("src/sftp/server/credentials"));
+        Files.writeString(_workingDir.resolve("src/sftp/server/credentials/users.csv"), "admin\n");
+
+        _welcomeChannel = ServerSocketChannel.open();
+        _welcomeChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        Thread acceptor = new Thread(new SelectorServer(_welcomeChannel, 1, 2, new Semaphore(Integer.MAX_VALUE),
+                new ServerMetrics(() -> 0, null), "test", false, true), "test-selector-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterAll
+    static void stopServer() throws IOException {
+        _welcomeChannel.close();
+    }
+
+    @Test
+    void commandPipelinedBehindCompressedUploadIsProcessed() throws IOException {
+        byte[] content = "hello".getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream pipelined = new ByteArrayOutputStream();
+        DataOutputStream frames = new DataOutputStream(pipelined);
+
+        frames.writeBytes("SIZE " + content.length + "\r\n");
+        // A stored frame with the file and the end frame, as a TYPE Z client sends them
+        frames.writeByte(2);
+        frames.writeInt(content.length);
+        frames.write(content);
+        frames.writeByte(0);
+        frames.writeInt(0);
+        frames.writeBytes("CDIR other\r\n");
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), _welcomeChannel.socket().getLocalPort())) {
+            InputStream input = socket.getInputStream();
+            socket.setSoTimeout(10_000);
+            readResponse(input);
+
+            command(socket, "USER admin");
+            command(socket, "TYPE Z");
+            command(socket, "STOR NEW pipelined.bin");
+
+            // The upload and the command after it arrive in one write
+            socket.getOutputStream().write(pipelined.toByteArray());
+
+            String waiting = readResponse(input);
+            String saved = readResponse(input);
+            String changed = readResponse(input);
+
+            assertTrue(waiting.startsWith("+"), waiting);
+            assertTrue(saved.startsWith("+Saved"), saved);
+            assertTrue(changed.startsWith("!Changed"), changed);
+            assertArrayEquals(content, Files.readAllBytes(_workingDir.resolve("resources/sftp.server/other/pipelined.bin")));
+        }
+    }
+
+    private static String command(Socket socket, String command) throws IOException {
+        socket.getOutputStream().write((command + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        return readResponse(socket.getInputStream());
+    }
+
+    private static String readResponse(InputStream input) throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        int b;
+
+        while ((b = input.read()) != 0) {
+
+            if (b == -1) {
+                throw new EOFException("Server closed the connection");
+            }
+
+            response.write(b);
+        }
+
+        return response.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,122 @@
+package sftp.server;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sftp.SFTP;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileSystemTest {
+
+    @TempDir
+    static Path _workingDir;
+
+    @BeforeAll
+    static void createServerDirs() throws IOException {
+        // FileSystem resolves resources/ against user.dir
+        System.setProperty("user.dir", _workingDir.toString());
+        Files.createDirectories(_workingDir.resolve("resources/sftp.server/text"));
+        Files.createDirectories(_workingDir.resolve("resources/sftp.server/other"));
+    }
+
+    @Test
+    void concurrentUploadsOfANewNameKeepEveryFile() throws Exception {
+        ExecutorService sessions = Executors.newFixedThreadPool(3);
+
+        try {
+
+            for (String mode : new String[]{"NEW", "OLD"}) {
+
+                for (int round = 0; round < 100; round++) {
+                    String fileName = "race-" + mode + '-' + round + ".bin";
+                    CyclicBarrier barrier = new CyclicBarrier(2);
+                    byte[][] contents = {("first " + round).getBytes(StandardCharsets.UTF_8),
+                            ("second upload " + round).getBytes(StandardCharsets.UTF_8)};
+
+                    Future<String> first = sessions.submit(() -> upload("alice", fileName, mode, contents[0], barrier));
+                    Future<String> second = sessions.submit(() -> upload("bob", fileName, mode, contents[1], barrier));
+                    Future<?> reader = sessions.submit(() -> readWhileUploading(fileName, contents, first, second));
+                    Path firstPath = savedPath(first.get());
+                    Path secondPath = savedPath(second.get());
+
+                    reader.get();
+
+                    if (mode.equals("NEW")) {
+                        // Neither upload may replace the other, one of them gets a new generation
+                        assertNotEquals(firstPath, secondPath);
+                        assertArrayEquals(contents[0], Files.readAllBytes(firstPath));
+                        assertArrayEquals(contents[1], Files.readAllBytes(secondPath));
+                    } else {
+                        // Both write the same file, which holds the whole upload that came last
+                        byte[] saved = Files.readAllBytes(firstPath);
+                        assertEquals(firstPath, secondPath);
+                        assertTrue(Arrays.equals(contents[0], saved) || Arrays.equals(contents[1], saved));
+                    }
+                }
+            }
+
+        } finally {
+            sessions.shutdownNow();
+        }
+    }
+
+    /**
+     * @detail Runs a STOR of mode on its own FileSystem, as a session would, once the other upload is ready too
+     */
+    private static String upload(String userName, String fileName, String mode, byte[] content, CyclicBarrier barrier) throws Exception {
+        FileSystem fileSystem = new FileSystem("sftp.server");
+        SFTP sftp = new SFTP(new Socket(), new ByteArrayInputStream(content), OutputStream.nullOutputStream(), false) {};
+
+        fileSystem.setFileOperation(fileName, mode);
+        barrier.await();
+
+        return fileSystem.processSTORSequence(sftp, fileName, content.length, userName);
+    }
+
+    /**
+     * @detail Reads the published file till both uploads are done. A reader must see no file or a whole upload
+     */
+    private static Void readWhileUploading(String fileName, byte[][] contents, Future<String> first, Future<String> second) throws IOException {
+        Path path = _workingDir.resolve("resources/sftp.server/other/" + fileName);
+
+        while (!first.isDone() || !second.isDone()) {
+            byte[] read;
+
+            try {
+                read = Files.readAllBytes(path);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+
+            assertTrue(Arrays.equals(contents[0], read) || Arrays.equals(contents[1], read),
+                    "Read " + read.length + " bytes of " + fileName + " before an upload was complete");
+        }
+
+        return null;
+    }
+
+    private static Path savedPath(String response) {
+        assertTrue(response.startsWith("+Saved "), response);
+
+        int checksumStart = response.indexOf(", ");
+        return Path.of(response.substring(7, checksumStart == -1 ? response.length() : checksumStart));
+    }
+}
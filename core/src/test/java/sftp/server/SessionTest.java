@@ -0,0 +1,128 @@
+package sftp.server;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sftp.SFTP;
+import sftp.server.metrics.ServerMetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class SessionTest {
+
+    // A wait that spins uses a whole core, one that blocks in the socket read next to nothing
+    private static final double MAX_CPU_SHARE = 0.05;
+
+    @TempDir
+    static Path _workingDir;
+
+    @BeforeAll
+    static void createServerDirs() throws IOException {
+        // FileSystem and CredentialsManager resolve their files against user.dir
+        System.setProperty("user.dir", _workingDir.toString());
+        Files.createDirectories(_workingDir.resolve("resources/sftp.server/text"));
+        Files.createDirectories(_workingDir.resolve("resources/sftp.server/other"));
+        Files.createDirectories(_workingDir.resolve("src/sftp/server/credentials"));
+        Files.writeString(_workingDir.resolve("src/sftp/server/credentials/users.csv"), "admin\n");
+        // Read by every FileSystem when it is created, the default limit is too small for the upload
+        System.setProperty("sftp.server.fileSizeLimit", String.valueOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    void stalledUploadWaitsWithoutUsingCpu() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isCurrentThreadCpuTimeSupported());
+
+        try (ServerSocket welcomeSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), welcomeSocket.getLocalPort());
+             Socket connection = welcomeSocket.accept()) {
+
+            Session session;
+
+            // Read by the SFTP instance when it is created
+            System.setProperty("sftp.transferTimeout", "2");
+
+            try {
+                session = new Session(new SFTP(connection, false), "test", true, new ServerMetrics(() -> 0, null));
+            } finally {
+                System.clearProperty("sftp.transferTimeout");
+            }
+
+            // A thread's CPU time can only be read while it runs
+            AtomicLong cpuAtEnd = new AtomicLong(-1);
+            Thread sessionThread = new Thread(() -> {
+                session.run();
+                cpuAtEnd.set(threads.getCurrentThreadCpuTime());
+            }, "test-session");
+            sessionThread.start();
+
+            InputStream input = client.getInputStream();
+            client.setSoTimeout(20_000);
+            readResponse(input);
+            command(client, "USER admin");
+            command(client, "STOR NEW stalled.bin");
+            String waiting = command(client, "SIZE 1000000");
+
+            assertTrue(waiting.startsWith("+"), waiting);
+            client.getOutputStream().write(new byte[1000]);
+
+            long cpuBefore = threads.getThreadCpuTime(sessionThread.getId());
+            long start = System.nanoTime();
+
+            try {
+                readResponse(input);
+            } catch (EOFException | SocketException e) {
+                // The session closes the connection once the timeout fires
+            }
+
+            long elapsed = System.nanoTime() - start;
+
+            client.close();
+            sessionThread.join(5_000);
+
+            long cpu = cpuAtEnd.get() - cpuBefore;
+
+            assertTrue(cpuAtEnd.get() != -1, "The session didn't end once the client left");
+            assertTrue(elapsed >= 1_000_000_000L, "The upload timed out after " + elapsed / 1_000_000 + " ms");
+            assertTrue(cpu <= elapsed * MAX_CPU_SHARE,
+                    "Stalled upload used " + cpu / 1_000_000 + " ms of CPU in " + elapsed / 1_000_000 + " ms");
+        }
+    }
+
+    private static String command(Socket socket, String command) throws IOException {
+        socket.getOutputStream().write((command + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        return readResponse(socket.getInputStream());
+    }
+
+    private static String readResponse(InputStream input) throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        int b;
+
+        while ((b = input.read()) != 0) {
+
+            if (b == -1) {
+                throw new EOFException("Server closed the connection");
+            }
+
+            response.write(b);
+        }
+
+        return response.toString(StandardCharsets.UTF_8);
+    }
+}
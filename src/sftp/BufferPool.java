@@ -0,0 +1,131 @@
+package sftp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @detail Buffers shared by every transfer, leased for one transfer and released when it ends so that
+ *         steady-state transfers allocate nothing. Requests are rounded up to size classes of 4 KiB,
+ *         16 KiB, 64 KiB, 256 KiB and 1 MiB. Direct buffers are for channels, heap buffers for the stream
+ *         and Deflater APIs that need an array. Each class keeps up to -Dsftp.bufferPoolSize bytes
+ *         (16 MiB by default) of released buffers of either kind, released buffers beyond that are
+ *         left to the garbage collector, as are requests larger than the largest class
+ */
+public final class BufferPool {
+
+    private static final int[] CLASS_SIZES = {4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+    private static final long BYTES_PER_CLASS = Long.getLong("sftp.bufferPoolSize", 16 * 1024 * 1024);
+
+    private static final FreeList[] _directBuffers = createFreeLists();
+    private static final FreeList[] _heapBuffers = createFreeLists();
+
+    private BufferPool() {
+    }
+
+    /**
+     * @detail Leases a direct buffer of at least size bytes
+     * @param size
+     * @return Cleared buffer whose limit is its capacity, which may exceed size
+     */
+    public static ByteBuffer lease(int size) {
+        int sizeClass = classOf(size);
+
+        if (sizeClass == -1) {
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        ByteBuffer buffer = _directBuffers[sizeClass].poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(CLASS_SIZES[sizeClass]);
+    }
+
+    /**
+     * @detail Leases a heap buffer of at least size bytes, whose array starts at offset 0
+     * @param size
+     * @return Cleared buffer whose limit is its capacity, which may exceed size
+     */
+    public static ByteBuffer leaseHeap(int size) {
+        int sizeClass = classOf(size);
+
+        if (sizeClass == -1) {
+            return ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer buffer = _heapBuffers[sizeClass].poll();
+        return buffer != null ? buffer : ByteBuffer.allocate(CLASS_SIZES[sizeClass]);
+    }
+
+    /**
+     * @detail Returns a leased buffer to the pool. It must not be used afterwards
+     * @param buffer null is ignored
+     */
+    public static void release(ByteBuffer buffer) {
+
+        if (buffer == null) {
+            return;
+        }
+
+        int sizeClass = classOf(buffer.capacity());
+
+        // Buffers of other sizes weren't leased from a class
+        if (sizeClass == -1 || CLASS_SIZES[sizeClass] != buffer.capacity()) {
+            return;
+        }
+
+        buffer.clear();
+        (buffer.isDirect() ? _directBuffers : _heapBuffers)[sizeClass].offer(buffer);
+    }
+
+    private static int classOf(int size) {
+
+        for (int i = 0; i < CLASS_SIZES.length; i++) {
+
+            if (size <= CLASS_SIZES[i]) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static FreeList[] createFreeLists() {
+        FreeList[] freeLists = new FreeList[CLASS_SIZES.length];
+
+        for (int i = 0; i < freeLists.length; i++) {
+            freeLists[i] = new FreeList((int) Math.max(1, Math.min(Integer.MAX_VALUE, BYTES_PER_CLASS / CLASS_SIZES[i])));
+        }
+
+        return freeLists;
+    }
+
+    /**
+     * @detail Bounded stack of released buffers of one class. The array is allocated once,
+     *         so leasing and releasing never allocate
+     */
+    private static final class FreeList {
+
+        private final ByteBuffer[] _buffers;
+        private int _count;
+
+        FreeList(int capacity) {
+            this._buffers = new ByteBuffer[capacity];
+        }
+
+        synchronized ByteBuffer poll() {
+
+            if (_count == 0) {
+                return null;
+            }
+
+            ByteBuffer buffer = _buffers[--_count];
+            _buffers[_count] = null;
+
+            return buffer;
+        }
+
+        synchronized void offer(ByteBuffer buffer) {
+
+            if (_count < _buffers.length) {
+                _buffers[_count++] = buffer;
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package sftp;
+
+import java.io.File;
+
+/**
+ * @detail Keeps the checksums of whole files sftp.SFTP sent, so a file whose checksum is known is
+ *         sent without passing its bytes through memory again
+ */
+public interface ChecksumCache {
+
+    /**
+     * @detail Returns the checksum of a file if it was recorded for the file as it is now
+     * @param file
+     * @param size Size of the file as the caller read it
+     * @param lastModified Modification time of the file as the caller read it
+     * @return Checksum as TransferChecksum formats it, null if none is recorded
+     */
+    String get(File file, long size, long lastModified);
+
+    /**
+     * @detail Records the checksum of a file, unless the file changed since it was read
+     * @param file
+     * @param size Size of the file when it was read
+     * @param lastModified Modification time of the file when it was read
+     * @param checksum Checksum as TransferChecksum formats it
+     */
+    void put(File file, long size, long lastModified, String checksum);
+}
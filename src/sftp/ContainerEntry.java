@@ -0,0 +1,44 @@
+package sftp;
+
+/**
+ * @detail Header of one file in a batch container stream (MGET and MPUT). The file's bytes follow
+ *         the header and are read with SFTP.readInputStreamToStream
+ */
+public final class ContainerEntry {
+
+    private final String _name;
+    private final long _size;
+    private final long _lastModified;
+
+    public ContainerEntry(String name, long size, long lastModified) {
+        this._name = name;
+        this._size = size;
+        this._lastModified = lastModified;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public long getSize() {
+        return _size;
+    }
+
+    /**
+     * @detail Returns the modification time of the file where it was sent from
+     * @return milliseconds since the epoch
+     */
+    public long getLastModified() {
+        return _lastModified;
+    }
+
+    /**
+     * @detail Checks that the name is a plain file name, so an entry can't be written outside
+     *         the directory it is received into
+     * @return
+     */
+    public boolean isSafeName() {
+        return !_name.isEmpty() && !_name.equals(".") && !_name.equals("..")
+                && _name.indexOf('/') == -1 && _name.indexOf('\\') == -1 && _name.indexOf(0) == -1;
+    }
+}
@@ -0,0 +1,508 @@
+package sftp;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @detail rsync style delta transfer for DELT and DPUT, which update a file the server already holds.
+ *         The server sends signatures of its copy: for every block a rolling weak checksum and a strong hash,
+ *         the first 16 bytes of its SHA-256.
+ *         The client slides a window over its version and sends copy instructions for the blocks the
+ *         server has and literal bytes for everything else, the server rebuilds the file from both.
+ *
+ *         Signatures are an int block size, a long file length, an int block count and per block an
+ *         int weak checksum and the 16 byte strong hash. A delta is the int block size followed by instructions,
+ *         COPY with an int first block and an int block count or LITERAL with an int length and the bytes.
+ */
+public final class Delta {
+
+    private static final int COPY = 1;
+    private static final int LITERAL = 2;
+    private static final int STRONG_LENGTH = 16;
+    private static final int MIN_BLOCK_SIZE = 512;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+    private Delta() {
+    }
+
+    /**
+     * @detail Returns the block size for a file, about its square root like rsync, so the signatures
+     *         and the blocks resent around a change both stay small
+     * @param fileLength
+     * @return
+     */
+    public static int blockSizeFor(long fileLength) {
+        long blockSize = ((long) Math.sqrt(fileLength) + 63) & ~63L;
+
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+    }
+
+    /**
+     * @detail Writes the block signatures of a file
+     * @param base Channel of the server's copy
+     * @param out
+     * @throws IOException if the file can't be read or shrank while it was read
+     */
+    public static void writeSignatures(FileChannel base, OutputStream out) throws IOException {
+        long length = base.size();
+        int blockSize = blockSizeFor(length);
+        int blocks = (int) ((length + blockSize - 1) / blockSize);
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        MessageDigest strongDigest = newDigest("SHA-256");
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+
+        data.writeInt(blockSize);
+        data.writeLong(length);
+        data.writeInt(blocks);
+
+        for (long position = 0; position < length; position += blockSize) {
+            block.clear();
+            block.limit((int) Math.min(blockSize, length - position));
+
+            while (block.hasRemaining()) {
+
+                if (base.read(block, position + block.position()) == -1) {
+                    throw new IOException("File shrank while its signatures were made");
+                }
+            }
+
+            data.writeInt(weakChecksum(block.array(), block.limit()));
+            strongDigest.update(block.array(), 0, block.limit());
+            data.write(strongDigest.digest(), 0, STRONG_LENGTH);
+        }
+
+        data.flush();
+    }
+
+    /**
+     * @detail Encodes a file as a delta against the file the signatures were made of
+     * @param signatures Signatures sent by the server
+     * @param file New version of the file, at most Integer.MAX_VALUE bytes
+     * @param out Delta stream
+     * @return SHA-256 of the file in lower case hex, for the server to check the rebuilt file against
+     * @throws IOException
+     */
+    public static String encode(byte[] signatures, File file, OutputStream out) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(signatures));
+        int blockSize = in.readInt();
+        long baseLength = in.readLong();
+        int blocks = in.readInt();
+        int[] weak = new int[blocks];
+        byte[][] strong = new byte[blocks][STRONG_LENGTH];
+        Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+        // Most windows match no block, this filter spares them the map lookup
+        boolean[] isKnownWeak = new boolean[1 << 16];
+
+        for (int i = 0; i < blocks; i++) {
+            weak[i] = in.readInt();
+            in.readFully(strong[i]);
+
+            // The last block is only matched at the end of the file, where it is checked directly
+            if (i < blocks - 1 || baseLength % blockSize == 0) {
+                blocksByWeak.computeIfAbsent(weak[i], key -> new ArrayList<>()).add(i);
+                isKnownWeak[filterIndex(weak[i])] = true;
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large for a delta");
+            }
+
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Encoder encoder = new Encoder(data, new DataOutputStream(new BufferedOutputStream(out)), blockSize);
+            MessageDigest strongDigest = newDigest("SHA-256");
+            MessageDigest sha256 = newDigest("SHA-256");
+            int length = data.limit();
+            int position = 0;
+            int checksum = 0;
+
+            sha256.update(data.duplicate());
+            encoder._out.writeInt(blockSize);
+
+            if (length >= blockSize) {
+                checksum = weakChecksum(data, 0, blockSize);
+            }
+
+            while (position + blockSize <= length) {
+                int match = -1;
+
+                if (isKnownWeak[filterIndex(checksum)] && blocksByWeak.containsKey(checksum)) {
+                    byte[] digest = strongHashOf(strongDigest, data, position, blockSize);
+
+                    for (int block : blocksByWeak.get(checksum)) {
+
+                        if (Arrays.equals(digest, strong[block])) {
+                            match = block;
+
+                            // The block after the last copied one extends the copy run
+                            if (block == encoder._copyStart + encoder._copyCount) {
+                                break;
+                            }
+                        }
+                    }
+                }
+
+                if (match >= 0) {
+                    encoder.copy(position, match);
+                    position += blockSize;
+
+                    if (position + blockSize <= length) {
+                        checksum = weakChecksum(data, position, blockSize);
+                    }
+
+                } else {
+
+                    if (position + blockSize < length) {
+                        checksum = roll(checksum, data.get(position) & 0xFF, data.get(position + blockSize) & 0xFF, blockSize);
+                    }
+
+                    position++;
+                }
+            }
+
+            int tail = (int) (baseLength % blockSize);
+
+            if (blocks > 0 && tail > 0 && length - position == tail && Arrays.equals(strongHashOf(strongDigest, data, position, tail), strong[blocks - 1])) {
+                encoder.copy(position, blocks - 1);
+                position += tail;
+            }
+
+            encoder.finish(length);
+
+            return toHex(sha256.digest());
+        }
+    }
+
+    /**
+     * @detail Writes instructions while the client's file is scanned. Bytes between matched blocks
+     *         become one literal and adjoining blocks one copy
+     */
+    private static final class Encoder {
+        private final ByteBuffer _data;
+        private final DataOutputStream _out;
+        private final int _blockSize;
+        private int _literalStart;
+        private int _copyStart = -1;
+        private int _copyCount;
+
+        private Encoder(ByteBuffer data, DataOutputStream out, int blockSize) {
+            this._data = data;
+            this._out = out;
+            this._blockSize = blockSize;
+        }
+
+        private void copy(int position, int block) throws IOException {
+            writeLiteral(position);
+
+            if (_copyCount > 0 && block == _copyStart + _copyCount) {
+                _copyCount++;
+            } else {
+                writeCopy();
+                _copyStart = block;
+                _copyCount = 1;
+            }
+
+            _literalStart = position + _blockSize;
+        }
+
+        private void writeLiteral(int end) throws IOException {
+
+            if (end <= _literalStart) {
+                return;
+            }
+
+            writeCopy();
+
+            ByteBuffer literal = _data.duplicate();
+            literal.position(_literalStart).limit(end);
+            byte[] bytes = new byte[Math.min(64 * 1024, end - _literalStart)];
+
+            _out.writeByte(LITERAL);
+            _out.writeInt(end - _literalStart);
+
+            while (literal.hasRemaining()) {
+                int length = Math.min(bytes.length, literal.remaining());
+                literal.get(bytes, 0, length);
+                _out.write(bytes, 0, length);
+            }
+
+            _literalStart = end;
+        }
+
+        private void writeCopy() throws IOException {
+
+            if (_copyCount > 0) {
+                _out.writeByte(COPY);
+                _out.writeInt(_copyStart);
+                _out.writeInt(_copyCount);
+                _copyStart = -1;
+                _copyCount = 0;
+            }
+        }
+
+        private void finish(int length) throws IOException {
+            writeLiteral(length);
+            writeCopy();
+            _out.flush();
+        }
+    }
+
+    /**
+     * @detail Rebuilds a file from the server's copy and a delta stream. The delta may arrive in pieces
+     *         of any size. A delta that can't be applied is read to its end without writing more,
+     *         finish then reports why
+     */
+    public static final class Applier extends OutputStream {
+        private final FileChannel _base;
+        private final OutputStream _out;
+        private final long _expectedLength;
+        private final MessageDigest _digest;
+        // Collects the fixed size fields of an instruction
+        private final ByteBuffer _field = ByteBuffer.allocate(8);
+        private final ByteBuffer _copyBuffer = ByteBuffer.allocate(64 * 1024);
+        private int _blockSize = -1;
+        private int _instruction;
+        private long _literalRemaining;
+        private long _written;
+        private String _failure;
+
+        /**
+         * @param base Channel of the server's copy the signatures were made of
+         * @param out Stream the rebuilt file is written to
+         * @param expectedLength Length of the rebuilt file announced by the client
+         */
+        public Applier(FileChannel base, OutputStream out, long expectedLength) {
+            this._base = base;
+            this._out = out;
+            this._expectedLength = expectedLength;
+            this._digest = newDigest("SHA-256");
+            this._field.limit(4);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+
+            try {
+
+                while (len > 0 && _failure == null) {
+
+                    if (_literalRemaining > 0) {
+                        int length = (int) Math.min(len, _literalRemaining);
+                        emit(b, off, length);
+                        _literalRemaining -= length;
+                        off += length;
+                        len -= length;
+                        continue;
+                    }
+
+                    int length = Math.min(len, _field.remaining());
+                    _field.put(b, off, length);
+                    off += length;
+                    len -= length;
+
+                    if (!_field.hasRemaining()) {
+                        _field.flip();
+                        readField();
+                    }
+                }
+
+            } catch (IOException e) {
+                _failure = e.toString();
+            }
+        }
+
+        /**
+         * @detail Acts on a complete field: the block size, an instruction byte or its arguments
+         */
+        private void readField() throws IOException {
+
+            if (_blockSize == -1) {
+                _blockSize = _field.getInt();
+
+                if (_blockSize < MIN_BLOCK_SIZE || _blockSize > MAX_BLOCK_SIZE) {
+                    throw new IOException("Invalid block size " + _blockSize);
+                }
+
+                expect(1);
+
+            } else if (_instruction == 0) {
+                _instruction = _field.get();
+
+                if (_instruction != COPY && _instruction != LITERAL) {
+                    throw new IOException("Invalid instruction " + _instruction);
+                }
+
+                expect(_instruction == COPY ? 8 : 4);
+
+            } else if (_instruction == COPY) {
+                copyBlocks(_field.getInt(), _field.getInt());
+                _instruction = 0;
+                expect(1);
+
+            } else {
+                _literalRemaining = _field.getInt();
+                _instruction = 0;
+
+                if (_literalRemaining <= 0) {
+                    throw new IOException("Invalid literal length " + _literalRemaining);
+                }
+
+                expect(1);
+            }
+        }
+
+        private void expect(int length) {
+            _field.clear();
+            _field.limit(length);
+        }
+
+        private void copyBlocks(int first, int count) throws IOException {
+            long position = (long) first * _blockSize;
+            long end = Math.min(_base.size(), position + (long) count * _blockSize);
+
+            if (first < 0 || count <= 0 || position >= _base.size()) {
+                throw new IOException("Invalid copy of blocks " + first + " to " + (first + count));
+            }
+
+            while (position < end) {
+                _copyBuffer.clear();
+                _copyBuffer.limit((int) Math.min(_copyBuffer.capacity(), end - position));
+
+                int read = _base.read(_copyBuffer, position);
+
+                if (read == -1) {
+                    throw new IOException("Server copy shrank while it was rebuilt");
+                }
+
+                emit(_copyBuffer.array(), 0, read);
+                position += read;
+            }
+        }
+
+        private void emit(byte[] b, int off, int len) throws IOException {
+
+            if (_written + len > _expectedLength) {
+                throw new IOException("Rebuilt file is longer than " + _expectedLength + " bytes");
+            }
+
+            _out.write(b, off, len);
+            _digest.update(b, off, len);
+            _written += len;
+        }
+
+        /**
+         * @detail Checks the rebuilt file once the whole delta was written
+         * @param expectedHash SHA-256 of the client's file in lower case hex
+         * @return null if the file was rebuilt exactly, else why it wasn't
+         */
+        public String finish(String expectedHash) {
+
+            if (_failure != null) {
+                return _failure;
+            } else if (_blockSize == -1 || _instruction != 0 || _literalRemaining > 0 || _field.position() != 0) {
+                return "delta ended in an instruction";
+            } else if (_written != _expectedLength) {
+                return "rebuilt " + _written + " of " + _expectedLength + " bytes";
+            } else if (!toHex(_digest.digest()).equals(expectedHash)) {
+                return "rebuilt file doesn't match its SHA-256";
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * @detail Weak checksum of a block as in rsync: the sum of its bytes in the low 16 bits and
+     *         the sum weighted by the distance to the block end in the high 16 bits
+     */
+    private static int weakChecksum(ByteBuffer data, int position, int length) {
+        int a = 0, b = 0;
+
+        // Adding the running sum for every byte weights each byte by its distance to the block end
+        for (int i = position; i < position + length; i++) {
+            a += data.get(i) & 0xFF;
+            b += a;
+        }
+
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    private static int weakChecksum(byte[] block, int length) {
+        int a = 0, b = 0;
+
+        for (int i = 0; i < length; i++) {
+            a += block[i] & 0xFF;
+            b += a;
+        }
+
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * @detail Moves the window of a weak checksum one byte on
+     * @param checksum Checksum of the window
+     * @param removed Byte leaving the window
+     * @param added Byte entering the window
+     * @param length Length of the window
+     */
+    private static int roll(int checksum, int removed, int added, int length) {
+        int a = (checksum & 0xFFFF) - removed + added;
+        int b = (checksum >>> 16) - length * removed + a;
+
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    private static int filterIndex(int checksum) {
+        return (checksum ^ (checksum >>> 16)) & 0xFFFF;
+    }
+
+    private static byte[] strongHashOf(MessageDigest digest, ByteBuffer data, int position, int length) {
+        ByteBuffer block = data.duplicate();
+        block.position(position).limit(position + length);
+        digest.update(block);
+
+        return Arrays.copyOf(digest.digest(), STRONG_LENGTH);
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return hex.toString();
+    }
+}
@@ -0,0 +1,19 @@
+package sftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * @detail Opens the files sftp.SFTP sends, e.g. to read files that are stored in chunks as one channel
+ */
+public interface FileOpener {
+
+    /**
+     * @detail Opens a file for reading
+     * @param file File to be sent
+     * @return Channel whose size is the number of bytes of the file
+     * @throws IOException if the file can't be read
+     */
+    FileChannel open(File file) throws IOException;
+}
@@ -0,0 +1,48 @@
+package sftp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @detail Writes into a FileChannel from a position onwards with positional writes, so several
+ *         streams can fill different byte ranges of one file at the same time
+ */
+public class PositionalOutputStream extends OutputStream {
+
+    private final FileChannel _channel;
+    private long _position;
+
+    /**
+     * @detail Constructor for a stream that writes from position onwards. Closing it leaves the channel open
+     * @param channel Channel opened for writing and shared with the other ranges
+     * @param position First byte of the range
+     */
+    public PositionalOutputStream(FileChannel channel, long position) {
+        this._channel = channel;
+        this._position = position;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(b, off, len);
+
+        while (source.hasRemaining()) {
+            _position += _channel.write(source, _position);
+        }
+    }
+
+    /**
+     * @detail Returns the position the next byte is written to
+     * @return
+     */
+    public long getPosition() {
+        return _position;
+    }
+}
@@ -0,0 +1,61 @@
+package sftp;
+
+/**
+ * @detail Constants of the binary protocol (version 2). A client switches to it with VERS 2 right
+ *         after the greeting, clients that never ask stay on the text protocol (version 1).
+ *         Every binary frame is an opcode byte, a flags byte, a 64 bit payload length and the payload.
+ *         Requests carry their arguments and responses their text as UTF-8. With FLAG_DATA the payload
+ *         is a 32 bit text length, the text and then file bytes, so a command or response and a file
+ *         travel in one frame. A response streamed in several frames sets FLAG_MORE on all but the last.
+ */
+public final class Protocol {
+
+    public static final int TEXT = 1;
+    public static final int BINARY = 2;
+
+    public static final int HEADER_SIZE = 10;
+    public static final int FLAG_DATA = 0x01;
+    public static final int FLAG_MORE = 0x02;
+    public static final int OP_RESPONSE = 0x40;
+    public static final int OP_DATA = 0x41;
+
+    private static final String[] COMMANDS = {
+            "USER", "ACCT", "PASS", "TYPE", "LIST", "CDIR", "KILL", "NAME", "TOBE",
+            "DONE", "RETR", "STOR", "SIZE", "SEND", "STOP", "REST", "STAT", "VERS",
+            "MGET", "MPUT", "RANG", "PSTR", "PPUT", "DELT", "DPUT", "CHKS"
+    };
+
+    private Protocol() {
+    }
+
+    /**
+     * @detail Returns the opcode of a command
+     * @param command
+     * @return -1 if the command is unknown
+     */
+    public static int opcodeOf(String command) {
+
+        for (int i = 0; i < COMMANDS.length; i++) {
+
+            if (COMMANDS[i].equals(command)) {
+                return i + 1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @detail Returns the command of an opcode
+     * @param opcode
+     * @return null if the opcode is not a command
+     */
+    public static String commandOf(int opcode) {
+
+        if (opcode < 1 || opcode > COMMANDS.length) {
+            return null;
+        }
+
+        return COMMANDS[opcode - 1];
+    }
+}
@@ -3,36 +3,84 @@ package sftp;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
-import java.nio.file.Files;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import java.util.logging.Logger;
 
 /**
  * @description Responsible for setting up/processing/terminatining data transfer sessions between a client and server
  */
 public class SFTP {
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    private static final int MAP_WINDOW_SIZE = 16 * 1024 * 1024;
+    // transferTo was at least as fast as mapping for every size SendStrategyBenchmark measured
+    private static final long DEFAULT_MMAP_THRESHOLD = Long.MAX_VALUE;
+    private static final String SEND_COPY = "copy";
+    private static final String SEND_TRANSFER = "transfer";
+    private static final String SEND_MMAP = "mmap";
+    private static final int DEFAULT_TRANSFER_TIMEOUT = 10;
+    private static final int FRAME_END = 0;
+    private static final int FRAME_DEFLATED = 1;
+    private static final int FRAME_STORED = 2;
+    private static final int FRAME_TERMINATOR = 0;
+    private static final int MAX_COMMAND_LENGTH = 1024;
+    private static final Set<String> PRECOMPRESSED_EXTENSIONS = Set.of("mp3", "pdf", "zip", "gz", "bz2", "xz", "7z", "jpg", "jpeg", "png", "mp4");
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
     private Socket _connectionSocket;
-    private BufferedReader _inputBufferedReader;
-    private InputStreamReader _inputStreamReader;
+    private InputStream _frameInput;
+    private InputStream _inputStream;
     private DataOutputStream _outputMessage;
     private Logger LOGGER = Logger.getLogger(SFTP.class.getName());
     private String _transmissionType;
     private boolean _isClient;
+    private int _transferTimeout;
+    private int _compressionLevel;
+    private TransferListener _transferListener;
+    private FileOpener _fileOpener = file -> FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    private ChecksumCache _checksumCache;
+    private String _lastChecksum;
+    private volatile int _protocol = Protocol.TEXT;
+    private DataInputStream _frameReader;
+    private ByteBuffer _requestFrame;
+    private final ByteBuffer _frameHeader = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+    private long _attachedDataLength = -1;
+    private DataInputStream _entryReader;
+    private boolean _isReadingContainer;
+    private String _sendStrategy;
+    private long _mmapThreshold;
+    // Created with the first compressed (Z) transfer and reset after each one
+    private Deflater _deflater;
+    private Inflater _inflater;
 
 
     /**
      * @detail Constructor for SFTP instance
      * @param connectionSocket for getting input/output streams
-     * @param isClient To determine if timeouts are required for file transfers
+     * @param isClient To determine if timeouts are announced to the user
      */
     public SFTP(Socket connectionSocket, boolean isClient) {
 
         try{
             this._connectionSocket = connectionSocket;
-            this._inputStreamReader = new InputStreamReader(this._connectionSocket.getInputStream());
-            this._inputBufferedReader = new BufferedReader(_inputStreamReader);
+            // Every frame is written whole, so Nagle would only hold back pipelined responses
+            this._connectionSocket.setTcpNoDelay(true);
+            this._inputStream = this._connectionSocket.getInputStream();
             this._outputMessage = new DataOutputStream(connectionSocket.getOutputStream());
             this._transmissionType = "B";
             this._isClient = isClient;
+            this._transferTimeout = Integer.getInteger("sftp.transferTimeout", DEFAULT_TRANSFER_TIMEOUT);
+            this._compressionLevel = Integer.getInteger("sftp.compressionLevel", Deflater.DEFAULT_COMPRESSION);
+            this._sendStrategy = System.getProperty("sftp.sendStrategy", "auto");
+            this._mmapThreshold = Long.getLong("sftp.mmapThreshold", DEFAULT_MMAP_THRESHOLD);
 
 
         }catch (Exception e){
@@ -42,19 +90,69 @@ public class SFTP {
     }
 
     /**
-     * @detail Returns bytes as a string
-     * @return String message to the Server
+     * @detail Constructor for SFTP instances whose socket is not read or written through its own streams,
+     *         such as a non-blocking SocketChannel served by a Selector
+     * @param connectionSocket for closing the session and transferTo
+     * @param inputStream Stream commands and files are read from
+     * @param outputStream Stream responses and files are written to
+     * @param isClient To determine if timeouts are announced to the user
+     */
+    protected SFTP(Socket connectionSocket, InputStream inputStream, OutputStream outputStream, boolean isClient) {
+        this._connectionSocket = connectionSocket;
+        this._inputStream = inputStream;
+        this._outputMessage = new DataOutputStream(outputStream);
+        this._transmissionType = "B";
+        this._isClient = isClient;
+        this._transferTimeout = Integer.getInteger("sftp.transferTimeout", DEFAULT_TRANSFER_TIMEOUT);
+        this._compressionLevel = Integer.getInteger("sftp.compressionLevel", Deflater.DEFAULT_COMPRESSION);
+        this._sendStrategy = System.getProperty("sftp.sendStrategy", "auto");
+        this._mmapThreshold = Long.getLong("sftp.mmapThreshold", DEFAULT_MMAP_THRESHOLD);
+    }
+
+    /**
+     * @detail Reads one frame. Commands sent to the server end with CRLF, LF or NUL,
+     *         responses sent to the client end with NUL and may span several lines.
+     *         Frames that arrive back to back are returned one at a time, in order
+     * @return String message without its terminator, null if the connection was closed
      */
     public String readInputStreamAsString() throws IOException {
-        String message = "";
+        String message = null;
 
         try {
 
-            message = this._inputBufferedReader.readLine();
+            // Created on first use so that idle sessions which never read frames here hold no buffer
+            if(this._frameInput == null){
+                this._frameInput = bufferFrameInput(this._inputStream);
+            }
+
+            if(_protocol == Protocol.BINARY){
+                return readResponseFrames();
+            }
+
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            int b;
+
+            while((b = _frameInput.read()) != -1){
+
+                if(b == FRAME_TERMINATOR || (!_isClient && b == '\n')){
+                    message = frame.toString(StandardCharsets.UTF_8);
+                    break;
+                }
+
+                if(!_isClient && frame.size() == MAX_COMMAND_LENGTH){
+                    throw new IOException("Command longer than " + MAX_COMMAND_LENGTH + " bytes");
+                }
+
+                frame.write(b);
+            }
+
+            if(message != null){
 
-            // For multiline reading
-            while (this._inputBufferedReader.ready()){
-                message += ('\n' + this._inputBufferedReader.readLine());
+                if(_isClient && message.endsWith("\r\n")){
+                    message = message.substring(0, message.length() - 2);
+                }else if(!_isClient && message.endsWith("\r")){
+                    message = message.substring(0, message.length() - 1);
+                }
             }
 
        }catch (SocketException e){
@@ -69,90 +167,1241 @@ public class SFTP {
     }
 
     /**
-     * @detail Returns Files as a byte array
-     * @param messageSize
+     * @detail Reads one request. Text commands are split into their words, binary frames are decoded
+     *         from their length prefix without scanning for a terminator. The file bytes of a frame
+     *         with FLAG_DATA are left in the stream for readInputStreamToStream
+     * @return Command followed by its arguments, empty for a blank line, null if the connection was closed
+     */
+    public String[] readRequest() throws IOException {
+
+        if(_protocol == Protocol.TEXT){
+            String message = readInputStreamAsString();
+
+            if(message == null){
+                return null;
+            }
+
+            return message.isEmpty() ? new String[0] : message.split(" ");
+        }
+
+        if(_requestFrame == null){
+            _requestFrame = ByteBuffer.allocate(Protocol.HEADER_SIZE + 4 + MAX_COMMAND_LENGTH);
+        }
+
+        try{
+            DataInputStream input = getFrameReader();
+            int prefixLength;
+
+            _requestFrame.clear();
+            input.readFully(_requestFrame.array(), 0, Protocol.HEADER_SIZE);
+            _requestFrame.limit(Protocol.HEADER_SIZE);
+
+            if((_requestFrame.get(1) & Protocol.FLAG_DATA) != 0){
+                input.readFully(_requestFrame.array(), Protocol.HEADER_SIZE, 4);
+                _requestFrame.limit(Protocol.HEADER_SIZE + 4);
+            }
+
+            prefixLength = getRequestPrefixLength(_requestFrame);
+            input.readFully(_requestFrame.array(), _requestFrame.limit(), prefixLength - _requestFrame.limit());
+            _requestFrame.limit(prefixLength);
+
+            return decodeRequest(_requestFrame);
+
+        }catch (EOFException e){
+            return null;
+        }
+    }
+
+    /**
+     * @detail Returns how many bytes of a binary request come before its file data
+     * @param frame Buffer holding the start of a frame from its position to its limit
+     * @return Length of the header, text length and text, -1 if not enough of the frame is buffered to tell
+     * @throws IOException if the lengths are invalid or the text is longer than a command may be
+     */
+    protected static int getRequestPrefixLength(ByteBuffer frame) throws IOException {
+        int start = frame.position();
+        int available = frame.limit() - start;
+        long length;
+
+        if(available < Protocol.HEADER_SIZE){
+            return -1;
+        }
+
+        length = frame.getLong(start + 2);
+
+        if((frame.get(start + 1) & Protocol.FLAG_DATA) == 0){
+
+            if(length < 0 || length > MAX_COMMAND_LENGTH){
+                throw new IOException("Invalid request length " + length);
+            }
+
+            return Protocol.HEADER_SIZE + (int) length;
+        }
+
+        if(available < Protocol.HEADER_SIZE + 4){
+            return -1;
+        }
+
+        int textLength = frame.getInt(start + Protocol.HEADER_SIZE);
+
+        if(textLength < 0 || textLength > MAX_COMMAND_LENGTH || length < 4 + textLength){
+            throw new IOException("Invalid request length " + length + " with " + textLength + " bytes of text");
+        }
+
+        return Protocol.HEADER_SIZE + 4 + textLength;
+    }
+
+    /**
+     * @detail Decodes a binary request whose header and text are buffered and remembers how many
+     *         bytes of file data follow it
+     * @param frame Buffer positioned at the start of the frame, left positioned after its text
+     * @return Command followed by its arguments, the command is empty if the opcode is unknown
+     */
+    protected String[] decodeRequest(ByteBuffer frame) {
+        String command = Protocol.commandOf(frame.get() & 0xFF);
+        int flags = frame.get();
+        long length = frame.getLong();
+        int textLength = (int) length;
+        int argumentCount = 0;
+        String[] request;
+
+        if((flags & Protocol.FLAG_DATA) != 0){
+            textLength = frame.getInt();
+            _attachedDataLength = length - 4 - textLength;
+        }else{
+            _attachedDataLength = -1;
+        }
+
+        String text = new String(frame.array(), frame.arrayOffset() + frame.position(), textLength, StandardCharsets.UTF_8);
+        frame.position(frame.position() + textLength);
+
+        if(!text.isEmpty()){
+            argumentCount = 1;
+
+            for(int i = text.indexOf(' '); i != -1; i = text.indexOf(' ', i + 1)){
+                argumentCount++;
+            }
+        }
+
+        request = new String[argumentCount + 1];
+        request[0] = command == null ? "" : command;
+
+        for(int i = 1, start = 0; i <= argumentCount; i++){
+            int end = text.indexOf(' ', start);
+
+            if(end == -1){
+                end = text.length();
+            }
+
+            request[i] = text.substring(start, end);
+            start = end + 1;
+        }
+
+        return request;
+    }
+
+    /**
+     * @detail Reads response frames till one without FLAG_MORE and joins their text.
+     *         The file bytes of a frame with FLAG_DATA are left in the stream for readInputStreamToStream
+     * @return Text of the response, null if the connection was closed
+     */
+    private String readResponseFrames() throws IOException {
+        DataInputStream input = getFrameReader();
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        int flags;
+
+        do{
+            int opcode = input.read();
+
+            if(opcode == -1){
+                return null;
+            }
+
+            flags = input.readUnsignedByte();
+            long length = input.readLong();
+            long textLength = length;
+
+            if(opcode != Protocol.OP_RESPONSE){
+                throw new IOException("Expected a response frame, received opcode " + opcode);
+            }
+
+            if((flags & Protocol.FLAG_DATA) != 0){
+                textLength = input.readInt();
+                _attachedDataLength = length - 4 - textLength;
+            }else{
+                _attachedDataLength = -1;
+            }
+
+            if(textLength < 0 || textLength > Integer.MAX_VALUE - text.size() || _attachedDataLength < -1){
+                throw new IOException("Invalid response length " + length);
+            }
+
+            byte[] bytes = new byte[(int) textLength];
+            input.readFully(bytes);
+            text.write(bytes);
+
+        }while((flags & Protocol.FLAG_MORE) != 0);
+
+        String message = text.toString(StandardCharsets.UTF_8);
+        return message.endsWith("\r\n") ? message.substring(0, message.length() - 2) : message;
+    }
+
+    private DataInputStream getFrameReader() {
+
+        if(_frameReader == null){
+
+            if(_frameInput == null){
+                _frameInput = bufferFrameInput(_inputStream);
+            }
+
+            _frameReader = new DataInputStream(_frameInput);
+        }
+
+        return _frameReader;
+    }
+
+    /**
+     * @detail Wraps the stream frames, and the files that follow them, are read from
+     * @param inputStream
+     * @return A buffered stream. Subclasses whose stream buffers already return it as it is,
+     *         so that no bytes read ahead are kept where they don't parse commands from
+     */
+    protected InputStream bufferFrameInput(InputStream inputStream){
+        return new BufferedInputStream(inputStream);
+    }
+
+    /**
+     * @detail Returns true if the last binary request or response read carried file data with FLAG_DATA
      * @return
      */
-    public byte[] readInputStreamAsBytes(int messageSize){
+    public boolean hasAttachedData() {
+        return _attachedDataLength >= 0;
+    }
 
-        byte[] bytesToSend = new byte[messageSize];
+    /**
+     * @detail Returns how many bytes of file data the last frame read carried
+     * @return -1 if it carried none or they were already read
+     */
+    public long getAttachedDataLength() {
+        return _attachedDataLength;
+    }
 
-        try {
+    /**
+     * @detail Discards file data attached to the last frame that no command read,
+     *         such as the file of a rejected STOR, so the next frame is read from its start
+     */
+    public void skipAttachedData() {
 
+        if(_attachedDataLength > 0){
 
-            while(!_inputStreamReader.ready()){
-                ;
+            try{
+                readRawBytes(OutputStream.nullOutputStream(), _attachedDataLength, null);
+            }catch (IOException e){
+                System.out.printf("Exception %s, error skipping %d bytes of file data!\n", e, _attachedDataLength);
+                terminateSession();
             }
+        }
+
+        _attachedDataLength = -1;
+    }
+
+    /**
+     * @detail Switches between the text protocol and binary frames. The response that agrees
+     *         to the switch is sent before calling this
+     * @param version Protocol.TEXT or Protocol.BINARY
+     */
+    public void setProtocol(int version) {
+        _protocol = version;
+        _attachedDataLength = -1;
+    }
+
+    public int getProtocol() {
+        return _protocol;
+    }
+
+    /**
+     * @detail Stream files are read from. Bytes already buffered while reading frames come first,
+     *         so a file that follows its command in the same packet is not lost
+     * @return
+     */
+    private InputStream getInput() {
+        return _frameInput != null ? _frameInput : _inputStream;
+    }
 
-            if(_isClient){
-                System.out.println("\nTimeout of 10 seconds set\n");
-                _connectionSocket.setSoTimeout(10*1000);
+    /**
+     * @detail Reads exactly messageSize bytes of a file straight from the socket's InputStream
+     *         in large blocks and writes each block to destination as it arrives.
+     *         Waiting for data blocks in the socket read, bounded by the transfer timeout,
+     *         so a stalled transfer uses no CPU. A transfer that times out or is cut short
+     *         leaves the byte stream out of sync, so the session is closed.
+     *         The checksum of the bytes is computed as they arrive, getLastChecksum returns it
+     * @param destination Stream the received bytes are written to
+     * @param messageSize Number of bytes announced with SIZE or RETR
+     * @return Number of bytes received
+     * @throws IOException if the connection closes or times out before messageSize bytes have arrived
+     */
+    public long readInputStreamToStream(OutputStream destination, long messageSize) throws IOException {
+        long received;
+        long start = System.nanoTime();
+        int previousTimeout = _connectionSocket.getSoTimeout();
+        TransferChecksum checksum = TransferChecksum.create();
+
+        _lastChecksum = null;
+
+        // Announced once per container rather than for each of its files
+        if(_isClient && _transferTimeout > 0 && !_isReadingContainer){
+            System.out.printf("\nTimeout of %d seconds set\n\n", _transferTimeout);
+        }
+
+        _connectionSocket.setSoTimeout(_transferTimeout * 1000);
+
+        try{
+
+            if(_protocol == Protocol.BINARY){
+                received = readDataFrame(destination, messageSize, checksum);
+            }else if(_transmissionType.equals("Z")){
+                received = readCompressedFrames(destination, messageSize, checksum);
+            }else{
+                received = readRawBytes(destination, messageSize, checksum);
+            }
+
+            if(checksum != null){
+                _lastChecksum = checksum.getValue();
+            }
+
+            if(_transferListener != null){
+                _transferListener.onFileReceived(received, System.nanoTime() - start);
+            }
+
+        }catch (SocketTimeoutException | EOFException e){
+            System.out.printf("Exception %s, transfer of %d bytes stalled!\n", e, messageSize);
+            terminateSession();
+            throw e;
+
+        }finally {
+
+            if(!_connectionSocket.isClosed()){
+                _connectionSocket.setSoTimeout(previousTimeout);
+            }
+        }
+
+        return received;
+    }
+
+    /**
+     * @detail Reads the file data attached to the last frame, or else the next data frame
+     * @param destination
+     * @param messageSize
+     * @param checksum Checksum the bytes are added to, null for none
+     * @return Number of bytes received
+     * @throws IOException if the frame holds a different number of bytes, which are skipped
+     */
+    private long readDataFrame(OutputStream destination, long messageSize, TransferChecksum checksum) throws IOException {
+        long length = _attachedDataLength;
+
+        if(length == -1){
+            DataInputStream input = getFrameReader();
+            int opcode = input.readUnsignedByte();
+            input.readUnsignedByte();
+            length = input.readLong();
+
+            if(opcode != Protocol.OP_DATA || length < 0){
+                // The frame can't be skipped, so the rest of the stream can't be read
+                terminateSession();
+                throw new IOException("Expected a data frame, received opcode " + opcode);
+            }
+
+            _attachedDataLength = length;
+        }
+
+        if(length != messageSize){
+            skipAttachedData();
+            throw new IOException("Frame holds " + length + " bytes, expected " + messageSize);
+        }
+
+        _attachedDataLength = -1;
+
+        return readRawBytes(destination, messageSize, checksum);
+    }
+
+    /**
+     * @detail Copies exactly messageSize bytes from the socket to destination in large blocks
+     * @param destination
+     * @param messageSize
+     * @param checksum Checksum the bytes are added to, null for none
+     * @return Number of bytes received
+     * @throws IOException
+     */
+    private long readRawBytes(OutputStream destination, long messageSize, TransferChecksum checksum) throws IOException {
+        ByteBuffer leased = BufferPool.leaseHeap(TRANSFER_BUFFER_SIZE);
+        byte[] buffer = leased.array();
+        long received = 0;
+
+        try{
+
+            while(received < messageSize){
+                int read = getInput().read(buffer, 0, (int) Math.min(TRANSFER_BUFFER_SIZE, messageSize - received));
+
+                if(read == -1){
+                    throw new EOFException("Connection closed after " + received + " of " + messageSize + " bytes");
+                }
+
+                destination.write(buffer, 0, read);
+                received += read;
+
+                if(checksum != null){
+                    checksum.update(buffer, 0, read);
+                }
             }
 
-            for(int i = 0; i < messageSize; i++){
+        }finally {
+            BufferPool.release(leased);
+        }
+
+        return received;
+    }
+
+    /**
+     * @detail Reads the frames of a compressed (Z) transfer till the end frame and writes the
+     *         inflated or stored bytes to destination
+     * @param destination
+     * @param messageSize Uncompressed size of the file
+     * @param checksum Checksum the inflated bytes are added to, null for none
+     * @return Number of bytes received after inflating
+     * @throws IOException if the frames are corrupt or do not add up to messageSize
+     */
+    private long readCompressedFrames(OutputStream destination, long messageSize, TransferChecksum checksum) throws IOException {
+        DataInputStream input = getFrameReader();
+        ByteBuffer frameBuffer = BufferPool.leaseHeap(TRANSFER_BUFFER_SIZE);
+        ByteBuffer outputBuffer = BufferPool.leaseHeap(TRANSFER_BUFFER_SIZE);
+        byte[] frame = frameBuffer.array();
+        byte[] output = outputBuffer.array();
+        long received = 0;
+
+        if(_inflater == null){
+            _inflater = new Inflater();
+        }
+
+        Inflater inflater = _inflater;
+
+        try{
+
+            while(true){
+                int frameType = input.readUnsignedByte();
+                int length = input.readInt();
+
+                if(frameType == FRAME_END){
+                    break;
+                }else if(length < 0 || length > TRANSFER_BUFFER_SIZE){
+                    throw new IOException("Invalid frame length " + length);
+                }
+
+                input.readFully(frame, 0, length);
+
+                if(frameType == FRAME_STORED){
+                    destination.write(frame, 0, length);
+                    received += length;
+
+                    if(checksum != null){
+                        checksum.update(frame, 0, length);
+                    }
+
+                }else if(frameType == FRAME_DEFLATED){
+                    int inflated;
+                    inflater.setInput(frame, 0, length);
+
+                    while((inflated = inflater.inflate(output, 0, TRANSFER_BUFFER_SIZE)) > 0){
+                        destination.write(output, 0, inflated);
+                        received += inflated;
+
+                        if(checksum != null){
+                            checksum.update(output, 0, inflated);
+                        }
+                    }
 
-                if(_inputStreamReader.ready()){
-                    bytesToSend[i] = (byte) _inputStreamReader.read();
                 }else{
+                    throw new IOException("Invalid frame type " + frameType);
+                }
+            }
+
+        }catch (DataFormatException e){
+            throw new IOException("Corrupt compressed data", e);
+        }finally {
+
+            // terminateSession ends it if the session closed meanwhile
+            if(inflater == _inflater){
+                inflater.reset();
+            }
+
+            BufferPool.release(frameBuffer);
+            BufferPool.release(outputBuffer);
+        }
+
+        if(received != messageSize){
+            throw new IOException("Received " + received + " of " + messageSize + " bytes");
+        }
+
+        return received;
+    }
+
+    /**
+     * @detail Sends a file as frames of a compressed (Z) transfer. Each frame is a type byte,
+     *         a length int and up to 64 KiB of deflated or stored bytes, followed by an end frame
+     * @param fileChannel
+     * @param position First byte to send
+     * @param end Byte after the last one to send
+     * @param isCompressible Stored frames are sent instead of deflated ones if false
+     * @param checksum Checksum the bytes read are added to, null for none
+     * @return Number of file bytes sent, less than requested if the file was truncated meanwhile
+     * @throws IOException
+     */
+    private long writeCompressedFrames(FileChannel fileChannel, long position, long end, boolean isCompressible, TransferChecksum checksum) throws IOException {
+        ByteBuffer input = BufferPool.leaseHeap(TRANSFER_BUFFER_SIZE);
+        ByteBuffer outputBuffer = BufferPool.leaseHeap(TRANSFER_BUFFER_SIZE);
+        byte[] output = outputBuffer.array();
+        Deflater deflater = null;
+
+        if(isCompressible){
+
+            if(_deflater == null){
+                _deflater = new Deflater(_compressionLevel);
+            }
+
+            deflater = _deflater;
+        }
+
+        try{
+            fileChannel.position(position);
+
+            while(fileChannel.position() < end){
+                input.limit((int) Math.min(TRANSFER_BUFFER_SIZE, end - fileChannel.position()));
+
+                if(fileChannel.read(input) == -1){
                     break;
                 }
+
+                if(checksum != null){
+                    checksum.update(input.array(), 0, input.position());
+                }
+
+                if(deflater == null){
+                    writeFrame(FRAME_STORED, input.array(), input.position());
+                }else{
+                    deflater.setInput(input.array(), 0, input.position());
+
+                    while(!deflater.needsInput()){
+                        writeFrame(FRAME_DEFLATED, output, deflater.deflate(output, 0, TRANSFER_BUFFER_SIZE));
+                    }
+                }
+
+                input.clear();
             }
 
-            if(_isClient){
-                _connectionSocket.setSoTimeout(0);
+            if(deflater != null){
+                deflater.finish();
+
+                while(!deflater.finished()){
+                    writeFrame(FRAME_DEFLATED, output, deflater.deflate(output, 0, TRANSFER_BUFFER_SIZE));
+                }
             }
 
+            writeFrame(FRAME_END, output, 0);
 
+            return fileChannel.position() - position;
 
-        }catch (SocketException e){
-            System.out.printf("Exception %s, check if server was reset!\n", e);
-        } catch (IOException e) {
-            System.out.printf("Exception %s, error reading message from server!\n", e);
-        }catch (Exception e){
-            e.printStackTrace();
+        }finally {
+
+            if(deflater != null && deflater == _deflater){
+                deflater.reset();
+            }
+
+            BufferPool.release(input);
+            BufferPool.release(outputBuffer);
+        }
+    }
+
+    /**
+     * @detail Writes one frame header and its bytes. Empty data frames are skipped
+     * @param frameType
+     * @param data
+     * @param length
+     * @throws IOException
+     */
+    private void writeFrame(int frameType, byte[] data, int length) throws IOException {
+
+        if(length == 0 && frameType != FRAME_END){
+            return;
+        }
+
+        // One write for the header, as the socket stream is unbuffered
+        _frameHeader.clear();
+        _frameHeader.put((byte) frameType).putInt(length);
+        _outputMessage.write(_frameHeader.array(), 0, _frameHeader.position());
+        _outputMessage.write(data, 0, length);
+    }
+
+    /**
+     * @detail Files that are already compressed are sent as stored frames in Z mode
+     * @param file
+     * @return
+     */
+    private static boolean isCompressible(File file){
+        String name = file.getName().toLowerCase();
+        int extensionStart = name.lastIndexOf('.');
+
+        return extensionStart == -1 || !PRECOMPRESSED_EXTENSIONS.contains(name.substring(extensionStart + 1));
+    }
+
+    /**
+     * @detail Sets a listener that is told about every completed file transfer
+     * @param transferListener null for none
+     */
+    public void setTransferListener(TransferListener transferListener){
+        _transferListener = transferListener;
+    }
+
+    /**
+     * @detail Sets how files are opened before they are sent
+     * @param fileOpener
+     */
+    public void setFileOpener(FileOpener fileOpener){
+        _fileOpener = fileOpener;
+    }
+
+    /**
+     * @detail Sets where the checksums of whole files that were sent are kept. A file whose current
+     *         checksum is kept is sent as it is, any other file has its checksum computed while it is sent
+     * @param checksumCache null to compute the checksum of every file
+     */
+    public void setChecksumCache(ChecksumCache checksumCache){
+        _checksumCache = checksumCache;
+    }
+
+    /**
+     * @detail Returns the checksum of the last file sent or received, computed while its bytes passed
+     *         or kept from an earlier transfer
+     * @return Checksum as TransferChecksum formats it, null if none is known or checksums are turned off
+     */
+    public String getLastChecksum(){
+        return _lastChecksum;
+    }
+
+    /**
+     * @detail Sets the Deflater level used for compressed (Z) transfers
+     * @param level 0 to 9, or -1 for the Deflater default
+     */
+    public void setCompressionLevel(int level){
+        _compressionLevel = level;
+
+        if(_deflater != null){
+            _deflater.setLevel(level);
         }
+    }
+
+    /**
+     * @detail Sets how long a file transfer may wait for data before it is abandoned
+     * @param seconds 0 waits indefinitely
+     */
+    public void setTransferTimeout(int seconds){
+        _transferTimeout = seconds;
+    }
 
-        return bytesToSend;
+    /**
+     * @detail Returns how long a file transfer may wait for data in seconds
+     * @return
+     */
+    public int getTransferTimeout(){
+        return _transferTimeout;
     }
 
     /**
-     * @detail Creates a byteStream from a string and sends to destination
+     * @detail Sends a string as one frame in a single write. Commands to the server end with CRLF,
+     *         responses to the client end with CRLF and NUL so multiline responses can be told apart
      */
     public void writeToOutputStream(String response) {
+        ByteBuffer frame = BufferPool.leaseHeap(getMaxFrameLength(response));
 
         try{
-
-            _outputMessage.writeBytes(response + "\r\n");
+            encodeMessage(frame, response, -1);
+            _outputMessage.write(frame.array(), 0, frame.position());
             _outputMessage.flush();
 
         }catch (IOException e){
             System.out.printf("Exception %s, check if connection is alive!\n", e);
+        }finally {
+            BufferPool.release(frame);
+        }
+
+    }
+
+    /**
+     * @detail Encodes a command or response as it is sent in the current protocol straight into a buffer.
+     *         Binary commands are an opcode and their arguments, binary responses their text
+     * @param frame Buffer with at least getMaxFrameLength bytes remaining, left positioned after the frame
+     * @param message
+     * @param dataLength Number of file bytes sent after it in the same frame, -1 for none
+     */
+    private void encodeMessage(ByteBuffer frame, String message, long dataLength) {
+
+        if(_protocol == Protocol.TEXT){
+            putUtf8(frame, message, 0);
+            frame.put((byte) '\r').put((byte) '\n');
+
+            if(!_isClient){
+                frame.put((byte) FRAME_TERMINATOR);
+            }
+
+            return;
+        }
+
+        int opcode = Protocol.OP_RESPONSE;
+        int textStart = 0;
+
+        if(_isClient){
+            int argumentsStart = message.indexOf(' ');
+            opcode = Protocol.opcodeOf(argumentsStart == -1 ? message : message.substring(0, argumentsStart));
+
+            // Unknown commands are sent whole so the server rejects them as it would in text
+            if(opcode == -1){
+                opcode = 0;
+            }else{
+                textStart = argumentsStart == -1 ? message.length() : argumentsStart + 1;
+            }
+        }
+
+        // The lengths are filled in once the text is encoded
+        int frameStart = frame.position();
+        int textOffset = dataLength == -1 ? Protocol.HEADER_SIZE : Protocol.HEADER_SIZE + 4;
+
+        frame.position(frameStart + textOffset);
+        putUtf8(frame, message, textStart);
+
+        int textLength = frame.position() - frameStart - textOffset;
+        frame.put(frameStart, (byte) opcode);
+
+        if(dataLength == -1){
+            frame.put(frameStart + 1, (byte) 0).putLong(frameStart + 2, textLength);
+        }else{
+            frame.put(frameStart + 1, (byte) Protocol.FLAG_DATA).putLong(frameStart + 2, 4 + textLength + dataLength);
+            frame.putInt(frameStart + Protocol.HEADER_SIZE, textLength);
+        }
+    }
+
+    /**
+     * @detail Returns how long the frame of a message can get, every char takes at most 3 bytes of UTF-8
+     * @param message
+     * @return
+     */
+    private static int getMaxFrameLength(String message) {
+        return Protocol.HEADER_SIZE + 4 + 3 * message.length() + 3;
+    }
+
+    /**
+     * @detail Encodes text as UTF-8 without the intermediate array of String.getBytes.
+     *         Unpaired surrogates become '?' as they do there
+     * @param buffer
+     * @param text
+     * @param start Index of the first char to encode
+     */
+    private static void putUtf8(ByteBuffer buffer, String text, int start) {
+
+        for(int i = start; i < text.length(); i++){
+            char c = text.charAt(i);
+
+            if(c < 0x80){
+                buffer.put((byte) c);
+            }else if(c < 0x800){
+                buffer.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            }else if(Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))){
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer.put((byte) (0xF0 | codePoint >> 18)).put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F)).put((byte) (0x80 | codePoint & 0x3F));
+            }else if(Character.isSurrogate(c)){
+                buffer.put((byte) '?');
+            }else{
+                buffer.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * @detail Writes the header of a binary frame
+     * @param opcode
+     * @param flags
+     * @param length Number of payload bytes that follow
+     * @throws IOException
+     */
+    private void writeFrameHeader(int opcode, int flags, long length) throws IOException {
+        _frameHeader.clear();
+        _frameHeader.put((byte) opcode).put((byte) flags).putLong(length);
+        _outputMessage.write(_frameHeader.array());
+    }
+
+    /**
+     * @detail Opens a buffered writer for a response that is too large to build in memory.
+     *         Text is sent whenever the buffer fills, closing the writer ends the frame and
+     *         flushes it but keeps the connection open
+     * @return
+     */
+    public Writer openResponseWriter() {
+        OutputStream connection = new FilterOutputStream(_outputMessage) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+
+                // Every buffer full is a frame of its own, the last one is empty and ends the response
+                if(_protocol == Protocol.BINARY){
+                    writeFrameHeader(Protocol.OP_RESPONSE, Protocol.FLAG_MORE, len);
+                }
+
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+
+                if(_protocol == Protocol.BINARY){
+                    writeFrameHeader(Protocol.OP_RESPONSE, 0, 0);
+                }else if(!_isClient){
+                    out.write(FRAME_TERMINATOR);
+                }
+
+                flush();
+            }
+        };
+
+        if(_protocol == Protocol.BINARY){
+            connection = new BufferedOutputStream(connection, TRANSFER_BUFFER_SIZE);
         }
 
+        return new BufferedWriter(new OutputStreamWriter(connection, StandardCharsets.UTF_8), TRANSFER_BUFFER_SIZE);
     }
 
     /**
-     * @detail Creates a byteStream from a File and sends to destination
+     * @detail Streams a File to destination without loading it onto the heap.
+     *         Uses FileChannel.transferTo when the socket has a channel (zero-copy where the
+     *         platform supports it) else copies through a fixed size buffer
      * @param fileToSend
      */
     public void writeToOutputStream(File fileToSend){
+        writeToOutputStream(fileToSend, 0);
+    }
+
+    /**
+     * @detail Streams a File to destination starting at offset, used to resume an interrupted upload
+     * @param fileToSend
+     * @param offset Number of bytes at the start of the file that are skipped
+     */
+    public void writeToOutputStream(File fileToSend, long offset){
+        writeToOutputStream(fileToSend, offset, -1);
+    }
+
+    /**
+     * @detail Streams a byte range of a File, used for the stripes of a parallel transfer
+     * @param fileToSend
+     * @param offset First byte to send
+     * @param length Number of bytes to send, -1 for all bytes after offset
+     */
+    public void writeToOutputStream(File fileToSend, long offset, long length){
+        sendFile(Protocol.HEADER_SIZE, (header, size) -> {
+
+            if(_protocol == Protocol.BINARY){
+                header.put((byte) Protocol.OP_DATA).put((byte) 0).putLong(size);
+            }
+        }, fileToSend, offset, length);
+    }
+
+    /**
+     * @detail Sends a command or response followed by a whole file. With binary frames both travel
+     *         in one frame with FLAG_DATA, saving the round trip of a separate SIZE or SEND
+     * @param message
+     * @param fileToSend
+     */
+    public void writeToOutputStream(String message, File fileToSend){
+        sendFile(getMaxFrameLength(message), (header, length) -> encodeMessage(header, message, length), fileToSend, 0, -1);
+    }
+
+    /**
+     * @detail Sends one file of a batch container stream: a header with its name, size and
+     *         modification time followed by its bytes. With binary frames every entry is a data frame
+     * @param fileToSend
+     * @return false if the file couldn't be read, then nothing was sent for it
+     */
+    public boolean writeContainerEntry(File fileToSend){
+        byte[] name = fileToSend.getName().getBytes(StandardCharsets.UTF_8);
+        long lastModified = fileToSend.lastModified();
+
+        int headerLength = 4 + name.length + 16;
+
+        return sendFile(Protocol.HEADER_SIZE + headerLength, (header, length) -> {
+
+            if(_protocol == Protocol.BINARY){
+                header.put((byte) Protocol.OP_DATA).put((byte) 0).putLong(headerLength + length);
+            }
+
+            header.putInt(name.length).put(name).putLong(length).putLong(lastModified);
+        }, fileToSend, 0, -1) != -1;
+    }
+
+    /**
+     * @detail Ends a batch container stream
+     */
+    public void writeContainerEnd(){
+
+        try{
+
+            if(_protocol == Protocol.BINARY){
+                writeFrameHeader(Protocol.OP_DATA, 0, 4);
+            }
+
+            _outputMessage.writeInt(0);
+            _outputMessage.flush();
+
+        }catch (IOException e){
+            System.out.printf("Exception %s, check if connection is alive!\n", e);
+        }
+    }
+
+    /**
+     * @detail Reads the header of the next file in a batch container stream. Its bytes are then
+     *         read with readInputStreamToStream, or skipped by reading them into a null stream
+     * @return null once the container ended
+     * @throws IOException if the header is invalid or doesn't arrive within the transfer timeout,
+     *         the session is closed as the stream can't be followed any more
+     */
+    public ContainerEntry readContainerEntry() throws IOException {
+        int previousTimeout = _connectionSocket.getSoTimeout();
+
+        if(_entryReader == null){
+            _entryReader = new DataInputStream(getInput());
+        }
+
+        _connectionSocket.setSoTimeout(_transferTimeout * 1000);
 
         try{
+            long frameLength = -1;
+
+            if(_protocol == Protocol.BINARY){
+                int opcode = _entryReader.readUnsignedByte();
+                _entryReader.readUnsignedByte();
+                frameLength = _entryReader.readLong();
+
+                if(opcode != Protocol.OP_DATA){
+                    throw new IOException("Expected a data frame, received opcode " + opcode);
+                }
+            }
+
+            int nameLength = _entryReader.readInt();
 
-            byte[] fileBytes = Files.readAllBytes(fileToSend.toPath());
+            if(nameLength == 0){
+                _isReadingContainer = false;
+                return null;
+            }else if(nameLength < 0 || nameLength > MAX_COMMAND_LENGTH){
+                throw new IOException("Invalid entry name length " + nameLength);
+            }
 
-            _outputMessage.write(fileBytes);
+            byte[] name = new byte[nameLength];
+            _entryReader.readFully(name);
+            long size = _entryReader.readLong();
+            long lastModified = _entryReader.readLong();
+
+            if(size < 0 || (frameLength != -1 && frameLength != 4 + nameLength + 16 + size)){
+                throw new IOException("Invalid entry size " + size);
+            }
+
+            if(_protocol == Protocol.BINARY){
+                _attachedDataLength = size;
+            }
+
+            if(_isClient && _transferTimeout > 0 && !_isReadingContainer){
+                System.out.printf("\nTimeout of %d seconds set\n\n", _transferTimeout);
+            }
+
+            _isReadingContainer = true;
+
+            return new ContainerEntry(new String(name, StandardCharsets.UTF_8), size, lastModified);
+
+        }catch (IOException e){
+            System.out.printf("Exception %s, batch transfer can't continue!\n", e);
+            terminateSession();
+            throw e;
+
+        }finally {
+
+            if(!_connectionSocket.isClosed()){
+                _connectionSocket.setSoTimeout(previousTimeout);
+            }
+        }
+    }
+
+    /**
+     * @detail Sends a file from offset, preceded by the bytes the header writer puts into a leased buffer
+     *         for the number of bytes that will be sent. The checksum of a whole file comes from the ChecksumCache
+     *         or is computed from the bytes sent, which then pass through memory instead of transferTo
+     * @param maxHeaderLength Number of bytes the header writer may put
+     * @param headerWriter Puts the bytes to send first, or nothing for none
+     * @param fileToSend
+     * @param offset Number of bytes at the start of the file that are skipped
+     * @param length Number of bytes to send after offset, -1 for the rest of the file
+     * @return Number of bytes sent, -1 if the file couldn't be sent
+     */
+    private long sendFile(int maxHeaderLength, HeaderWriter headerWriter, File fileToSend, long offset, long length){
+        ByteBuffer header = BufferPool.leaseHeap(maxHeaderLength);
+
+        _lastChecksum = null;
+
+        try(FileChannel fileChannel = _fileOpener.open(fileToSend)){
+            long start = System.nanoTime();
+            long lastModified = fileToSend.lastModified();
+            // Headers announce the length, so bytes appended during the transfer are not sent
+            long end = length == -1 ? fileChannel.size() : Math.min(fileChannel.size(), offset + length);
+            long sent;
+            boolean hasHeader;
+            SocketChannel socketChannel = _connectionSocket.getChannel();
+            String strategy = _transmissionType.equals("Z") ? SEND_COPY : selectSendStrategy(socketChannel, end - offset);
+            boolean isWholeFile = offset == 0 && end == fileChannel.size();
+            String knownChecksum = isWholeFile && _checksumCache != null ? _checksumCache.get(fileToSend, end, lastModified) : null;
+            TransferChecksum checksum = knownChecksum != null && TransferChecksum.isComplete(knownChecksum) ? null : TransferChecksum.create();
+
+            headerWriter.write(header, Math.max(0, end - offset));
+            header.flip();
+            hasHeader = header.hasRemaining();
+
+            // transferTo never hands the bytes to the JVM and is only used once the checksum is known,
+            // a mapping lets them be checksummed on the way so the file is read once
+            if(checksum != null && strategy.equals(SEND_TRANSFER)){
+                strategy = SEND_MMAP;
+            }
+
+            // Mapped windows are gathered with the header into one write
+            if(hasHeader && !strategy.equals(SEND_MMAP)){
+                _outputMessage.write(header.array(), 0, header.limit());
+            }
+
+            _outputMessage.flush();
+
+            if(_transmissionType.equals("Z")){
+                sent = writeCompressedFrames(fileChannel, offset, end, isCompressible(fileToSend), checksum);
+            }else if(strategy.equals(SEND_MMAP)){
+                sent = mapFileToChannel(fileChannel, socketChannel, header, offset, end, checksum);
+            }else if(strategy.equals(SEND_TRANSFER)){
+                sent = transferFileToChannel(fileChannel, socketChannel, offset, end);
+            }else{
+                sent = copyFileToStream(fileChannel, offset, end, checksum);
+            }
 
             _outputMessage.flush();
 
+            if(checksum == null){
+                _lastChecksum = knownChecksum;
+            }else if(sent == end - offset){
+                _lastChecksum = checksum.getValue();
+
+                if(isWholeFile && _checksumCache != null){
+                    _checksumCache.put(fileToSend, end, lastModified, _lastChecksum);
+                }
+            }
+
+            if((hasHeader || length != -1) && sent < end - offset){
+                // The peer waits for bytes the header announced and that no longer exist
+                terminateSession();
+                throw new EOFException(fileToSend + " was truncated after " + sent + " of " + (end - offset) + " bytes");
+            }
+
+            if(_transferListener != null){
+                _transferListener.onFileSent(sent, System.nanoTime() - start);
+            }
+
+            return sent;
+
         }catch (IOException e){
             e.printStackTrace();
+            return -1;
+        }finally {
+            BufferPool.release(header);
+        }
+
+    }
+
+    /**
+     * @detail Puts the bytes a file is preceded by once it is known how many bytes will be sent
+     */
+    private interface HeaderWriter {
+
+        void write(ByteBuffer header, long length);
+    }
+
+    /**
+     * @detail Picks how a file is sent. Sockets without a channel can only be copied to, otherwise
+     *         -Dsftp.sendStrategy=copy|transfer|mmap forces a strategy. Otherwise files of at least
+     *         -Dsftp.mmapThreshold bytes are mapped and all others use transferTo, by default no file is mapped
+     * @param socketChannel Channel of the connection, null if there is none
+     * @param length Number of bytes to send
+     * @return
+     */
+    private String selectSendStrategy(SocketChannel socketChannel, long length){
+
+        if(socketChannel == null){
+            return SEND_COPY;
         }
 
+        switch (_sendStrategy) {
+
+            case SEND_COPY:
+            case SEND_TRANSFER:
+            case SEND_MMAP:
+                return _sendStrategy;
+
+            default:
+                return length >= _mmapThreshold ? SEND_MMAP : SEND_TRANSFER;
+        }
     }
 
     /**
-     * @detail Sets Transmission type for file transfers
+     * @detail Sends a file from read-only mappings of MAP_WINDOW_SIZE bytes that slide over it.
+     *         Every window is written straight from the page cache with a gathering write, the first
+     *         one together with the header. Readers of the same file share its cached pages
+     * @param fileChannel
+     * @param socketChannel
+     * @param headerBuffer Bytes sent before the file from its position to its limit
+     * @param position First byte to send
+     * @param end Size of the file when the transfer started
+     * @param checksum Checksum every window is added to before it is written, null for none
+     * @return Number of bytes sent, less than requested if the file was truncated meanwhile
+     * @throws IOException
+     */
+    private long mapFileToChannel(FileChannel fileChannel, SocketChannel socketChannel, ByteBuffer headerBuffer, long position, long end, TransferChecksum checksum) throws IOException {
+        long first = position;
+        ByteBuffer[] buffers = {headerBuffer, EMPTY};
+
+        do{
+            // Mapping past the end of a truncated file fails, so every window is clamped to its current size
+            long windowEnd = Math.min(Math.min(end, fileChannel.size()), position + MAP_WINDOW_SIZE);
+
+            if(windowEnd <= position && !headerBuffer.hasRemaining()){
+                break;
+            }
+
+            ByteBuffer window;
+
+            try{
+                window = windowEnd > position
+                        ? fileChannel.map(FileChannel.MapMode.READ_ONLY, position, windowEnd - position)
+                        : EMPTY;
+            }catch (UnsupportedOperationException e){
+                // Channels that aren't backed by one file send the rest with transferTo, or copy it to checksum it
+                while(headerBuffer.hasRemaining()){
+
+                    if(socketChannel.write(headerBuffer) == 0){
+                        awaitWritable(socketChannel);
+                    }
+                }
+
+                if(checksum != null){
+                    return position - first + copyFileToStream(fileChannel, position, end, checksum);
+                }
+
+                return position - first + transferFileToChannel(fileChannel, socketChannel, position, end);
+            }
+
+            buffers[1] = window;
+
+            if(checksum != null){
+                checksum.update(window);
+            }
+
+            while(headerBuffer.hasRemaining() || window.hasRemaining()){
+
+                if(socketChannel.write(buffers) == 0){
+                    awaitWritable(socketChannel);
+                }
+            }
+
+            position = Math.max(position, windowEnd);
+
+        }while(position < end);
+
+        return position - first;
+    }
+
+    /**
+     * @detail Sends a file with FileChannel.transferTo till every byte up to end is written
+     * @param fileChannel
+     * @param socketChannel
+     * @param position First byte to send
+     * @param end Size of the file when the transfer started
+     * @return Number of bytes sent, less than requested if the file was truncated meanwhile
+     * @throws IOException
+     */
+    private long transferFileToChannel(FileChannel fileChannel, SocketChannel socketChannel, long position, long end) throws IOException {
+        long first = position;
+
+        while(position < end){
+            long transferred = fileChannel.transferTo(position, end - position, socketChannel);
+
+            if(transferred <= 0 && position >= fileChannel.size()){
+                break;
+            }else if(transferred == 0){
+                awaitWritable(socketChannel);
+            }
+
+            position += transferred;
+        }
+
+        return Math.max(0, position - first);
+    }
+
+    /**
+     * @detail Called when a transferTo wrote nothing because the socket's send buffer is full.
+     *         A blocking channel never needs to wait here, non-blocking subclasses wait for OP_WRITE
+     * @param socketChannel
+     * @throws IOException
+     */
+    protected void awaitWritable(SocketChannel socketChannel) throws IOException {
+    }
+
+    /**
+     * @detail Sends a file through a bounded buffer for sockets that have no channel
+     * @param fileChannel
+     * @param position First byte to send
+     * @param end Size of the file when the transfer started
+     * @param checksum Checksum the bytes sent are added to, null for none
+     * @return Number of bytes sent
+     * @throws IOException
+     */
+    private long copyFileToStream(FileChannel fileChannel, long position, long end, TransferChecksum checksum) throws IOException {
+        ByteBuffer buffer = BufferPool.leaseHeap(TRANSFER_BUFFER_SIZE);
+        long sent = 0;
+
+        try{
+            fileChannel.position(position);
+
+            while(sent < end - position){
+                buffer.limit((int) Math.min(TRANSFER_BUFFER_SIZE, end - position - sent));
+
+                if(fileChannel.read(buffer) == -1){
+                    break;
+                }
+
+                _outputMessage.write(buffer.array(), 0, buffer.position());
+                sent += buffer.position();
+
+                if(checksum != null){
+                    checksum.update(buffer.array(), 0, buffer.position());
+                }
+
+                buffer.clear();
+            }
+
+        }finally {
+            BufferPool.release(buffer);
+        }
+
+        return sent;
+    }
+
+    /**
+     * @detail Sets Transmission type for file transfers.
+     *         Z streams files through a Deflater/Inflater pipeline, the others send raw bytes
      * @param type
      * @return
      */
@@ -175,17 +1424,35 @@ public class SFTP {
 
                 break;
 
+            case "Z":
+                // Compressed frames have no length known up front, which binary frames need
+                if(_protocol == Protocol.BINARY){
+                    response = "-Compressed mode is not available with protocol 2";
+                }else{
+                    response = "+Using Compressed mode";
+                }
+
+                break;
+
             default:
                 response = "-Type not valid";
                 break;
 
         }
 
+        if(response.startsWith("+")){
+            _transmissionType = type;
+        }
+
         return response;
     }
 
+    public String getTransmissionType(){
+        return _transmissionType;
+    }
+
     /**
-     * @detail Closes session for DONE command
+     * @detail Closes session for DONE command and frees its compression state
      */
     public void terminateSession(){
 
@@ -194,6 +1461,17 @@ public class SFTP {
         }catch (IOException e){
             System.out.printf("Exception %s, error closing session!\n", e);
         }
+
+        // Their native zlib memory is only freed by end() or much later by the Cleaner
+        if(_deflater != null){
+            _deflater.end();
+            _deflater = null;
+        }
+
+        if(_inflater != null){
+            _inflater.end();
+            _inflater = null;
+        }
     }
 
 
@@ -0,0 +1,147 @@
+package sftp;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+/**
+ * @detail Checksums of a file computed while its bytes stream through a transfer. CRC32C is
+ *         computed with the CPU's CRC instructions where the JVM has them, SHA-256 optionally as well.
+ *         -Dsftp.checksum=none|crc32c|sha256 selects them, sha256 computes both.
+ *         Checksums are passed around as text, "crc32c 1a2b3c4d" followed by " sha256 <hex>" if computed
+ */
+public final class TransferChecksum {
+
+    public static final String CRC32C = "crc32c";
+    public static final String SHA256 = "sha256";
+    private static final String NONE = "none";
+
+    private final CRC32C _crc32c = new CRC32C();
+    private final MessageDigest _sha256;
+
+    private TransferChecksum(boolean isSha256) {
+
+        try {
+            this._sha256 = isSha256 ? MessageDigest.getInstance("SHA-256") : null;
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @detail Starts the checksums -Dsftp.checksum selects
+     * @return null if checksums are turned off
+     */
+    public static TransferChecksum create() {
+        String algorithm = System.getProperty("sftp.checksum", CRC32C);
+
+        if (algorithm.equals(NONE)) {
+            return null;
+        }
+
+        return new TransferChecksum(algorithm.equals(SHA256));
+    }
+
+    public void update(byte[] bytes, int offset, int length) {
+        _crc32c.update(bytes, offset, length);
+
+        if (_sha256 != null) {
+            _sha256.update(bytes, offset, length);
+        }
+    }
+
+    /**
+     * @detail Adds the bytes of a buffer from its position to its limit, the buffer is left unchanged
+     * @param buffer
+     */
+    public void update(ByteBuffer buffer) {
+        _crc32c.update(buffer.duplicate());
+
+        if (_sha256 != null) {
+            _sha256.update(buffer.duplicate());
+        }
+    }
+
+    /**
+     * @detail Returns the checksums of the bytes added, to be called once all were added
+     * @return
+     */
+    public String getValue() {
+        String value = String.format("%s %08x", CRC32C, _crc32c.getValue());
+
+        if (_sha256 != null) {
+            StringBuilder hex = new StringBuilder(value).append(' ').append(SHA256).append(' ');
+
+            for (byte b : _sha256.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+
+            value = hex.toString();
+        }
+
+        return value;
+    }
+
+    /**
+     * @detail Checks if a recorded checksum holds every checksum -Dsftp.checksum selects
+     * @param checksum
+     * @return
+     */
+    public static boolean isComplete(String checksum) {
+        String algorithm = System.getProperty("sftp.checksum", CRC32C);
+
+        return algorithm.equals(NONE) || valueOf(checksum, CRC32C) != null
+                && (!algorithm.equals(SHA256) || valueOf(checksum, SHA256) != null);
+    }
+
+    /**
+     * @detail Compares the checksums two sides computed of the same bytes. Only the algorithms
+     *         both of them computed are compared
+     * @param checksum Checksum computed on this side
+     * @param text Response holding the checksum the other side computed
+     * @return false if any of them differs
+     */
+    public static boolean matches(String checksum, String text) {
+
+        for (String algorithm : new String[]{CRC32C, SHA256}) {
+            String value = valueOf(checksum, algorithm);
+            String other = valueOf(text, algorithm);
+
+            if (value != null && other != null && !value.equals(other)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @detail Returns the value that follows the name of an algorithm in a text
+     * @param text
+     * @param algorithm
+     * @return null if the text doesn't hold it
+     */
+    public static String valueOf(String text, String algorithm) {
+
+        if (text == null) {
+            return null;
+        }
+
+        int start = text.indexOf(algorithm + ' ');
+
+        if (start == -1) {
+            return null;
+        }
+
+        start += algorithm.length() + 1;
+        int end = start;
+
+        while (end < text.length() && Character.digit(text.charAt(end), 16) != -1) {
+            end++;
+        }
+
+        return end > start ? text.substring(start, end) : null;
+    }
+}
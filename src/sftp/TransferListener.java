@@ -0,0 +1,21 @@
+package sftp;
+
+/**
+ * @detail Notified by sftp.SFTP after every file transfer, e.g. to record transfer metrics
+ */
+public interface TransferListener {
+
+    /**
+     * @detail Called after a file was sent
+     * @param bytes File bytes sent
+     * @param nanos Duration of the transfer
+     */
+    void onFileSent(long bytes, long nanos);
+
+    /**
+     * @detail Called after a file was received
+     * @param bytes File bytes received
+     * @param nanos Duration of the transfer
+     */
+    void onFileReceived(long bytes, long nanos);
+}
@@ -0,0 +1,390 @@
+package sftp.client;
+
+import sftp.Protocol;
+import sftp.SFTP;
+import sftp.TransferChecksum;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @detail Runs a list of RETR and STOR jobs without user input over several sessions at once.
+ *         Every session is a connection of its own that replays the commands that log the user in.
+ *         The jobs are dealt to the sessions in turn, each session works through its own queue from
+ *         the front and, once it is empty, steals from the back of the others' queues, so a session
+ *         that drew large files doesn't hold up the batch while the others are idle. Downloads name a
+ *         path relative to the server's root directory, uploads only a name as the server files them
+ *         into text or other by their type. Every job is reported with its time when it ends
+ */
+public final class BatchTransfer {
+
+    private final InetSocketAddress _server;
+    private final List<String> _sessionCommands;
+    private final int _sessions;
+    private final AtomicLong _bytes = new AtomicLong();
+    private final AtomicInteger _failures = new AtomicInteger();
+    private final AtomicInteger _steals = new AtomicInteger();
+
+    /**
+     * @detail Constructor for batches run against one server
+     * @param server Address of the server
+     * @param sessionCommands USER, ACCT, PASS and TYPE commands sent on every session first
+     * @param sessions Number of concurrent sessions
+     */
+    public BatchTransfer(InetSocketAddress server, List<String> sessionCommands, int sessions) {
+        this._server = server;
+        this._sessionCommands = List.copyOf(sessionCommands);
+        this._sessions = Math.max(1, sessions);
+    }
+
+    /**
+     * @detail Runs every job and prints a line for each one followed by the batch's throughput
+     * @param jobs
+     * @return true if every job succeeded
+     */
+    public boolean run(List<Job> jobs) {
+        int sessions = Math.max(1, Math.min(_sessions, jobs.size()));
+        Worker[] workers = new Worker[sessions];
+        Thread[] threads = new Thread[sessions];
+        long start = System.nanoTime();
+
+        for (int i = 0; i < sessions; i++) {
+            workers[i] = new Worker(i, workers);
+        }
+
+        for (int i = 0; i < jobs.size(); i++) {
+            workers[i % sessions]._jobs.add(jobs.get(i));
+        }
+
+        for (int i = 0; i < sessions; i++) {
+            threads[i] = new Thread(workers[i], "sftp-batch-" + i);
+            threads[i].start();
+        }
+
+        try {
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.printf("Exception %s, batch was interrupted\n", e);
+            return false;
+        }
+
+        long elapsed = Math.max(1, System.nanoTime() - start);
+
+        System.out.printf("Batch of %d files on %d sessions: %d failed, %d bytes in %d ms, %.2f MB/s, %d jobs stolen\n",
+                jobs.size(), sessions, _failures.get(), _bytes.get(), elapsed / 1_000_000,
+                _bytes.get() * 1e3 / elapsed, _steals.get());
+
+        return _failures.get() == 0;
+    }
+
+    /**
+     * @detail One file to download or upload
+     */
+    public static final class Job {
+
+        private final String _command;
+        private final String _mode;
+        // Path of a download, name of an upload
+        private final String _remotePath;
+        private final Path _localPath;
+
+        private Job(String command, String mode, String remotePath, Path localPath) {
+            this._command = command;
+            this._mode = mode;
+            this._remotePath = remotePath;
+            this._localPath = localPath;
+        }
+
+        /**
+         * @param remotePath File relative to the server's root, with / between directories
+         * @param localPath File the download replaces once it arrived whole
+         * @return
+         */
+        public static Job retrieve(String remotePath, Path localPath) {
+            return new Job("RETR", null, remotePath, localPath);
+        }
+
+        /**
+         * @param mode NEW, OLD or APP as for STOR
+         * @param localPath File to upload
+         * @param remoteName Name the file is saved under
+         * @return
+         */
+        public static Job store(String mode, Path localPath, String remoteName) {
+            return new Job("STOR", mode, remoteName, localPath);
+        }
+
+        @Override
+        public String toString() {
+            return _command + ' ' + _remotePath;
+        }
+    }
+
+    /**
+     * @detail One session and the queue of jobs it was dealt. The connection is opened with the first
+     *         job and opened again after a job broke it
+     */
+    private final class Worker implements Runnable {
+
+        private final int _index;
+        private final Worker[] _workers;
+        private final ConcurrentLinkedDeque<Job> _jobs = new ConcurrentLinkedDeque<>();
+        private Socket _socket;
+        private SFTP _sftp;
+        private String _directory;
+
+        Worker(int index, Worker[] workers) {
+            this._index = index;
+            this._workers = workers;
+        }
+
+        @Override
+        public void run() {
+            Job job;
+
+            while ((job = nextJob()) != null) {
+                long start = System.nanoTime();
+
+                try {
+                    long bytes = job._command.equals("RETR") ? retrieve(job) : store(job);
+                    _bytes.addAndGet(bytes);
+                    System.out.printf("%s: %d bytes in %d ms on session %d\n", job, bytes,
+                            (System.nanoTime() - start) / 1_000_000, _index);
+
+                } catch (IOException e) {
+                    _failures.incrementAndGet();
+                    System.out.printf("%s failed on session %d after %d ms: %s\n", job, _index,
+                            (System.nanoTime() - start) / 1_000_000, e.getMessage());
+
+                    // A response that wasn't read leaves the stream out of sync
+                    if (!(e instanceof RejectedException)) {
+                        close();
+                    }
+                }
+            }
+
+            if (_sftp != null) {
+                _sftp.writeToOutputStream("DONE");
+
+                try {
+                    _sftp.readInputStreamAsString();
+                } catch (IOException e) {
+                    System.out.printf("Exception %s, session %d ended without a goodbye\n", e, _index);
+                }
+            }
+
+            close();
+        }
+
+        /**
+         * @detail Takes the next job from the front of this session's queue, or steals one from
+         *         the back of another session's queue
+         * @return null once every queue is empty
+         */
+        private Job nextJob() {
+            Job job = _jobs.pollFirst();
+
+            for (int i = 1; job == null && i < _workers.length; i++) {
+                job = _workers[(_index + i) % _workers.length]._jobs.pollLast();
+
+                if (job != null) {
+                    _steals.incrementAndGet();
+                }
+            }
+
+            return job;
+        }
+
+        /**
+         * @detail Downloads a file into a part file next to its target, which replaces the target
+         *         once the checksum matched
+         * @return Number of bytes received
+         */
+        private long retrieve(Job job) throws IOException {
+            String name = changeDirectory(job._remotePath);
+            Path partFile = job._localPath.resolveSibling(job._localPath.getFileName() + ".part");
+            long size;
+
+            try {
+                size = Long.parseLong(request("RETR " + name));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid size", e);
+            }
+
+            Files.createDirectories(job._localPath.toAbsolutePath().getParent());
+            _sftp.writeToOutputStream("SEND");
+
+            try {
+
+                try (OutputStream os = Files.newOutputStream(partFile)) {
+                    _sftp.readInputStreamToStream(os, size);
+                }
+
+                String receivedChecksum = _sftp.getLastChecksum();
+                String response = expectPositive(_sftp.readInputStreamAsString());
+
+                if (receivedChecksum != null && !TransferChecksum.matches(receivedChecksum, response)) {
+                    throw new RejectedException("Arrived damaged (" + receivedChecksum + ")");
+                }
+
+                Files.move(partFile, job._localPath, StandardCopyOption.REPLACE_EXISTING);
+
+            } finally {
+                Files.deleteIfExists(partFile);
+            }
+
+            return size;
+        }
+
+        /**
+         * @detail Uploads a file with STOR and SIZE
+         * @return Number of bytes sent
+         */
+        private long store(Job job) throws IOException {
+            File file = job._localPath.toFile();
+
+            if (!file.isFile()) {
+                throw new RejectedException("File does not exist on Client System");
+            }
+
+            if (_sftp == null) {
+                open();
+            }
+
+            long size = file.length();
+
+            request("STOR " + job._mode + ' ' + job._remotePath);
+
+            if (!request("SIZE " + size).startsWith("+ok")) {
+                throw new IOException("Server didn't wait for the file");
+            }
+
+            _sftp.writeToOutputStream(file);
+            String sentChecksum = _sftp.getLastChecksum();
+            String response = expectPositive(_sftp.readInputStreamAsString());
+
+            if (sentChecksum != null && !TransferChecksum.matches(sentChecksum, response)) {
+                throw new RejectedException("Arrived damaged on the server (" + sentChecksum + ")");
+            }
+
+            return size;
+        }
+
+        /**
+         * @detail Connects if needed and moves to the directory of a remote path
+         * @return Name of the file within its directory
+         */
+        private String changeDirectory(String remotePath) throws IOException {
+            int nameStart = remotePath.lastIndexOf('/');
+            String directory = nameStart == -1 ? "" : remotePath.substring(0, nameStart);
+
+            if (_sftp == null) {
+                open();
+            }
+
+            if (!directory.equals(_directory)) {
+                _directory = null;
+                request("CDIR /");
+
+                if (!directory.isEmpty()) {
+                    request("CDIR " + directory);
+                }
+
+                _directory = directory;
+            }
+
+            return remotePath.substring(nameStart + 1);
+        }
+
+        /**
+         * @detail Opens the session, switches to binary frames with -Dsftp.client.protocol=2 and
+         *         replays the session commands
+         */
+        private void open() throws IOException {
+            _socket = SocketChannel.open(_server).socket();
+            _sftp = new SFTP(_socket, true);
+            _directory = null;
+
+            try {
+                expectPositive(_sftp.readInputStreamAsString());
+
+                if (Integer.getInteger("sftp.client.protocol", Protocol.TEXT) == Protocol.BINARY) {
+                    _sftp.writeToOutputStream("VERS 2");
+
+                    // A server that doesn't know VERS keeps the text protocol
+                    if (!_sftp.readInputStreamAsString().startsWith("-")) {
+                        _sftp.setProtocol(Protocol.BINARY);
+                    }
+                }
+
+                for (String command : _sessionCommands) {
+                    _sftp.writeToOutputStream(command);
+                    expectPositive(_sftp.readInputStreamAsString());
+
+                    // Both ends have to agree on the type as Z changes how files are framed
+                    if (command.startsWith("TYPE ")) {
+                        _sftp.setTransmissionType(command.substring(5));
+                    }
+                }
+
+            } catch (IOException e) {
+                close();
+                throw new IOException("Session couldn't be started: " + e.getMessage(), e);
+            }
+        }
+
+        private String request(String command) throws IOException {
+            _sftp.writeToOutputStream(command);
+            return expectPositive(_sftp.readInputStreamAsString());
+        }
+
+        private void close() {
+
+            if (_socket != null) {
+                _sftp.terminateSession();
+            }
+
+            _socket = null;
+            _sftp = null;
+        }
+    }
+
+    private static String expectPositive(String response) throws IOException {
+
+        if (response == null) {
+            throw new IOException("Connection closed");
+        } else if (response.startsWith("-")) {
+            throw new RejectedException(response);
+        }
+
+        return response;
+    }
+
+    /**
+     * @detail A job the server turned down or that arrived damaged, the session can go on
+     */
+    private static final class RejectedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        RejectedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -1,20 +1,40 @@
 package sftp.client;
 
+import sftp.ContainerEntry;
+import sftp.Delta;
+import sftp.Protocol;
 import sftp.SFTP;
+import sftp.TransferChecksum;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class Client {
 
@@ -23,13 +43,24 @@ public class Client {
     private static InetAddress _localHost;
     private static BufferedReader _inputFromUser;
     private static SFTP _sftp;
-    private static int _fileReceiveSize;
+    private static long _fileReceiveSize;
     private static Socket _clientSocket;
-    private static boolean _isExit, _isResponseFileSize, _isResponseBytes, _isRequestSendingFile;
+    private static boolean _isExit, _isResponseFileSize, _isResponseBytes, _isRequestSendingFile, _isResponseResumeOffset;
     private static Path _clientDir;
     private static String _fileReceiveName;
     private static File _fileToSend;
+    private static String _fileToResume;
+    private static String _requestedType;
+    private static String _requestedProtocol;
+    private static String _batchToSend;
+    private static boolean _isResponseBatch, _isRequestSendingBatch;
+    private static long _fileSendOffset;
+    private static String _lastResponse;
+    private static final List<String> _sessionCommands = new ArrayList<>();
     private static Logger LOGGER = Logger.getLogger(Client.class.getName());
+    private static final Set<String> PIPELINE_EXCLUDED = Set.of("RETR", "SEND", "STOP", "STOR", "SIZE", "REST", "TYPE", "MGET", "MPUT", "PRTR", "PSTR", "DELT");
+    private static final Set<String> SESSION_COMMANDS = Set.of("USER", "ACCT", "PASS", "TYPE");
+    private static final Set<String> STORE_MODES = Set.of("NEW", "OLD", "APP");
 
     /**
      * @detail Attempts a connection to a specified sftp.server port and ip address
@@ -38,7 +69,7 @@ public class Client {
 
         try{
             _localHost = InetAddress.getLocalHost();
-            _clientSocket = new Socket(_localHost, _serverPort);
+            _clientSocket = SocketChannel.open(new InetSocketAddress(_localHost, _serverPort)).socket();
             _isConnected = true;
             LOGGER.info("Connected to TCP Server INetAddress:" + ' ' + _clientSocket.getInetAddress());
         }catch (IOException e){
@@ -49,39 +80,128 @@ public class Client {
 
     /**
      * @detail Instantiates a sftp object and input Reader from the User.
-     *         Server confirms if data transfers can be conducted
+     *         Server confirms if data transfers can be conducted.
+     *         With -Dsftp.client.protocol=2 binary frames are negotiated right after the greeting,
+     *         a server that doesn't know VERS rejects it and the text protocol is kept
      */
     private static void setupIO(){
 
         _inputFromUser = new BufferedReader(new InputStreamReader(System.in));
         _sftp = new SFTP(_clientSocket, true);
         getServerResponse();
+
+        if(!_isExit && Integer.getInteger("sftp.client.protocol", Protocol.TEXT) == Protocol.BINARY){
+            _requestedProtocol = "2";
+            _sftp.writeToOutputStream("VERS 2");
+            getServerResponse();
+        }
     }
 
     /**
-     * @detail Receives File and/or String response from the Server
+     * @detail Receives File and/or String response from the Server.
+     *         A received file whose checksum differs from the one the server sent is deleted
      */
     private static void getServerResponse() {
 
         try {
+            Path receivedFile = null;
+            String receivedChecksum = null;
             
             if (_isResponseBytes) {
-                byte[] fileBytes = _sftp.readInputStreamAsBytes(_fileReceiveSize);
-                Files.write(Path.of(_clientDir + "/" + _fileReceiveName), fileBytes);
+                receivedFile = Path.of(_clientDir + "/" + _fileReceiveName);
+
+                try(OutputStream os = Files.newOutputStream(receivedFile)){
+                    _sftp.readInputStreamToStream(os, _fileReceiveSize);
+                }
+                receivedChecksum = _sftp.getLastChecksum();
                 _isResponseBytes = false;
                 _fileReceiveName = null;
             }
 
             String response = _sftp.readInputStreamAsString();
             System.out.println("Server response: " + response);
+            _lastResponse = response;
             processStringResponse(response);
 
+            if (receivedChecksum != null && response != null && !TransferChecksum.matches(receivedChecksum, response)) {
+                Files.deleteIfExists(receivedFile);
+                System.out.printf("Error: %s arrived damaged (%s), it was deleted\n", receivedFile.getFileName(), receivedChecksum);
+            }
+
+            // The container follows its response, the batch result comes after the container
+            if (_isResponseBatch) {
+                _isResponseBatch = false;
+                receiveBatch();
+                getServerResponse();
+
+            } else if (_isRequestSendingBatch) {
+                _isRequestSendingBatch = false;
+                sendBatch();
+                getServerResponse();
+            }
+
         } catch (IOException e) {
             System.out.printf("Exception %s, error reading message to Server\n", e);
         }
 
     }
 
+    /**
+     * @detail Saves every file of the container stream sent for MGET in the client directory,
+     *         keeping the modification time it had on the server
+     */
+    private static void receiveBatch() throws IOException {
+        ContainerEntry entry;
+        int receivedFiles = 0;
+
+        while ((entry = _sftp.readContainerEntry()) != null) {
+
+            if (!entry.isSafeName()) {
+                System.out.println("Skipped file with invalid name " + entry.getName());
+                _sftp.readInputStreamToStream(OutputStream.nullOutputStream(), entry.getSize());
+                continue;
+            }
+
+            Path path = Path.of(_clientDir + "/" + entry.getName());
+
+            try (OutputStream os = Files.newOutputStream(path)) {
+                _sftp.readInputStreamToStream(os, entry.getSize());
+            }
+
+            Files.setLastModifiedTime(path, FileTime.fromMillis(entry.getLastModified()));
+            receivedFiles++;
+        }
+
+        System.out.printf("Received %d files\n", receivedFiles);
+    }
+
+    /**
+     * @detail Streams every file in the client directory that matches the MPUT glob in one container
+     */
+    private static void sendBatch() throws IOException {
+        int sentFiles = 0;
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(_clientDir, _batchToSend)) {
+
+            for (Path entry : entries) {
+
+                if (Files.isRegularFile(entry) && _sftp.writeContainerEntry(entry.toFile())) {
+                    sentFiles++;
+                }
+            }
+
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: Invalid pattern " + _batchToSend);
+        } catch (DirectoryIteratorException e) {
+            System.out.printf("Exception %s, batch ended early\n", e);
+        } finally {
+            _sftp.writeContainerEnd();
+            _batchToSend = null;
+        }
+
+        System.out.printf("Sent %d files\n", sentFiles);
+    }
+
     /**
      * @detail Sends a client Request to Server
      */
@@ -95,19 +215,42 @@ public class Client {
                 System.out.printf("Input command: ");
                 String message = _inputFromUser.readLine();
 
-                isValidRequest = processUserCommand(message);
+                String[] commands = message.split(";");
+
+                if(commands.length > 1 && isPipelinable(commands)){
+                    pipelineCommands(commands);
+                }else{
 
-                if(!isValidRequest.equals("-")){
-                    _sftp.writeToOutputStream(isValidRequest);
-                    getServerResponse();
+                    for(String command : commands){
+                        isValidRequest = processUserCommand(command);
+
+                        if(!isValidRequest.equals("-")){
+                            _sftp.writeToOutputStream(isValidRequest);
+                            getServerResponse();
+                            recordSessionCommand(isValidRequest);
+                        }
+
+                        if(_isExit || _isRequestSendingFile){
+                            break;
+                        }
+                    }
                 }
 
             }else{
-                
-                _sftp.writeToOutputStream(_fileToSend);
+                String fileName = _fileToSend.getName();
+
+                _sftp.writeToOutputStream(_fileToSend, _fileSendOffset);
+                // A resumed upload is only checksummed from where it resumed, the server doesn't report it
+                String sentChecksum = _fileSendOffset == 0 ? _sftp.getLastChecksum() : null;
                 _fileToSend = null;
+                _fileToResume = null;
+                _fileSendOffset = 0;
                 _isRequestSendingFile = false;
                 getServerResponse();
+
+                if (sentChecksum != null && _lastResponse != null && !TransferChecksum.matches(sentChecksum, _lastResponse)) {
+                    System.out.printf("Error: %s arrived damaged on the server (%s), send it again\n", fileName, sentChecksum);
+                }
             }
 
 
@@ -118,6 +261,304 @@ public class Client {
 
     }
 
+    /**
+     * @detail Checks if none of the commands take part in a file transfer, as those
+     *         need the previous response before the next command can be sent
+     * @param commands
+     * @return
+     */
+    private static boolean isPipelinable(String[] commands) {
+
+        for(String command : commands){
+            String cmd = command.strip().split(" ")[0];
+
+            if(PIPELINE_EXCLUDED.contains(cmd)){
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @detail Sends all commands at once and then reads their responses in order,
+     *         so a batch costs one round trip instead of one per command
+     * @param commands
+     */
+    private static void pipelineCommands(String[] commands) {
+
+        for(String command : commands){
+            _sftp.writeToOutputStream(command.strip());
+        }
+
+        for(int i = 0; i < commands.length && !_isExit; i++){
+            getServerResponse();
+            recordSessionCommand(commands[i].strip());
+        }
+    }
+
+    /**
+     * @detail Remembers the accepted commands that log in and select the directory,
+     *         striped transfers replay them on every connection they open
+     * @param command
+     */
+    private static void recordSessionCommand(String command) {
+
+        if(_lastResponse == null || _lastResponse.startsWith("-")){
+            return;
+        }
+
+        switch (command.split(" ")[0]) {
+
+            case "USER":
+                _sessionCommands.clear();
+                _sessionCommands.add(command);
+
+                break;
+
+            case "ACCT":
+            case "PASS":
+            case "CDIR":
+                _sessionCommands.add(command);
+
+                break;
+        }
+    }
+
+    /**
+     * @detail Downloads a file in stripes over -Dsftp.client.stripes connections (default 4).
+     *         RETR on this connection asks for the size and STOP cancels it again
+     * @param fileName
+     */
+    private static void retrieveStriped(String fileName) {
+
+        try {
+            _sftp.writeToOutputStream("RETR " + fileName);
+            String response = _sftp.readInputStreamAsString();
+            System.out.println("Server response: " + response);
+
+            if(response == null || response.startsWith("-")){
+                return;
+            }
+
+            long fileSize = Long.parseLong(response);
+            _sftp.writeToOutputStream("STOP");
+            System.out.println("Server response: " + _sftp.readInputStreamAsString());
+
+            long start = System.nanoTime();
+            openStripedTransfer().download(fileName, fileSize, _clientDir.resolve(fileName));
+            System.out.printf("Received %s, %d bytes in %d ms\n", fileName, fileSize, (System.nanoTime() - start) / 1_000_000);
+
+        } catch (IOException e) {
+            System.out.printf("Exception %s, striped download failed\n", e);
+        }
+    }
+
+    /**
+     * @detail Uploads a file in stripes over -Dsftp.client.stripes connections (default 4)
+     * @param mode NEW, OLD or APP as for STOR
+     * @param fileName
+     */
+    private static void storeStriped(String mode, String fileName) {
+
+        try {
+            long start = System.nanoTime();
+            String response = openStripedTransfer().upload(mode, new File(_clientDir + "/" + fileName));
+            System.out.println("Server response: " + response);
+            System.out.printf("Sent %s in %d ms\n", fileName, (System.nanoTime() - start) / 1_000_000);
+
+        } catch (IOException e) {
+            System.out.printf("Exception %s, striped upload failed\n", e);
+        }
+    }
+
+    /**
+     * @detail Overwrites the server's copy of a file like STOR OLD but only sends what changed.
+     *         DELT fetches the block signatures of the server's copy, DPUT sends a delta of copy
+     *         instructions and literal bytes. A file the server doesn't hold is sent whole
+     * @param fileName
+     */
+    private static void storeDelta(String fileName) {
+        File file = new File(_clientDir + "/" + fileName);
+        Path delta = null;
+
+        try {
+            _sftp.writeToOutputStream("DELT " + fileName);
+            String response = _sftp.readInputStreamAsString();
+            System.out.println("Server response: " + response);
+
+            if(response != null && response.startsWith("-No copy")){
+                storeWhole(file);
+                return;
+            }else if(response == null || !response.startsWith("+Signatures")){
+                return;
+            }
+
+            ByteArrayOutputStream signatures = new ByteArrayOutputStream();
+            _sftp.readInputStreamToStream(signatures, Long.parseLong(response.split(" ")[1]));
+
+            delta = Files.createTempFile("sftp-delta", ".bin");
+            String fileHash;
+
+            try(OutputStream os = Files.newOutputStream(delta)){
+                fileHash = Delta.encode(signatures.toByteArray(), file, os);
+            }
+
+            _sftp.writeToOutputStream("DPUT " + Files.size(delta) + ' ' + file.length() + ' ' + fileHash);
+            response = _sftp.readInputStreamAsString();
+            System.out.println("Server response: " + response);
+
+            if(response != null && response.startsWith("+ok")){
+                _sftp.writeToOutputStream(delta.toFile());
+                System.out.println("Server response: " + _sftp.readInputStreamAsString());
+                System.out.printf("Sent %s, %d bytes as a %d byte delta\n", fileName, file.length(), Files.size(delta));
+            }
+
+        } catch (IOException e) {
+            System.out.printf("Exception %s, delta upload failed\n", e);
+
+        } finally {
+
+            try {
+
+                if(delta != null){
+                    Files.deleteIfExists(delta);
+                }
+
+            } catch (IOException e) {
+                System.out.printf("Exception %s, error deleting delta\n", e);
+            }
+        }
+    }
+
+    /**
+     * @detail Sends a whole file with STOR OLD and SIZE
+     * @param file
+     * @throws IOException
+     */
+    private static void storeWhole(File file) throws IOException {
+        _sftp.writeToOutputStream("STOR OLD " + file.getName());
+        String response = _sftp.readInputStreamAsString();
+        System.out.println("Server response: " + response);
+
+        if(response == null || !response.startsWith("+")){
+            return;
+        }
+
+        _sftp.writeToOutputStream("SIZE " + file.length());
+        response = _sftp.readInputStreamAsString();
+        System.out.println("Server response: " + response);
+
+        if(response != null && response.startsWith("+ok")){
+            _sftp.writeToOutputStream(file);
+            System.out.println("Server response: " + _sftp.readInputStreamAsString());
+        }
+    }
+
+    private static StripedTransfer openStripedTransfer() {
+        return new StripedTransfer(new InetSocketAddress(_localHost, _serverPort), _sessionCommands,
+                Integer.getInteger("sftp.client.stripes", 4));
+    }
+
+    /**
+     * @detail Runs RETR and STOR jobs without user input over -Dsftp.client.sessions sessions (default 4).
+     *         The jobs come from a manifest, or every file of a directory tree is uploaded with
+     *         STOR -Dsftp.client.storeMode (default OLD). -Dsftp.client.login holds the commands that log
+     *         in, separated by ';' as typed at the prompt, a manifest may list them as well
+     * @param argv batch followed by a manifest or a directory
+     * @return true if every job succeeded
+     */
+    private static boolean runBatch(String[] argv) throws IOException {
+
+        if(argv.length != 2 || !argv[0].equals("batch")){
+            System.out.println("Error: Usage is batch { <manifest> | <directory> }");
+            return false;
+        }
+
+        Path source = Paths.get(argv[1]);
+        List<String> sessionCommands = new ArrayList<>();
+        List<BatchTransfer.Job> jobs = new ArrayList<>();
+
+        for(String command : System.getProperty("sftp.client.login", "").split(";")){
+
+            if(!command.isBlank()){
+                sessionCommands.add(command.strip());
+            }
+        }
+
+        if(Files.isDirectory(source)){
+            String mode = System.getProperty("sftp.client.storeMode", "OLD");
+            Set<String> names = new HashSet<>();
+            List<Path> files;
+
+            try(Stream<Path> tree = Files.walk(source)){
+                files = tree.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+
+            for(Path file : files){
+                String name = file.getFileName().toString();
+
+                // Requests are split at spaces and the server files uploads by name alone
+                if(name.contains(" ")){
+                    System.out.println("Skipped file with a space in its name " + file);
+                }else if(!names.add(name)){
+                    System.out.println("Skipped file whose name another file of the tree has " + file);
+                }else{
+                    jobs.add(BatchTransfer.Job.store(mode, file, name));
+                }
+            }
+
+        }else if(!readManifest(source, sessionCommands, jobs)){
+            return false;
+        }
+
+        return new BatchTransfer(new InetSocketAddress(InetAddress.getLocalHost(), _serverPort), sessionCommands,
+                Integer.getInteger("sftp.client.sessions", 4)).run(jobs);
+    }
+
+    /**
+     * @detail Reads a batch manifest with one command per line. USER, ACCT, PASS and TYPE are sent on
+     *         every session first, RETR <remote path> [<local path>] and STOR { NEW | OLD | APP } <local path>
+     *         [<remote name>] are jobs. Local paths are relative to the client directory, remote paths to
+     *         the server's root. A download is saved under its remote path and an upload under the name of
+     *         its local file unless given. Blank lines and lines starting with # are skipped
+     * @param manifest
+     * @param sessionCommands Session commands are added here
+     * @param jobs Jobs are added here in the order they are listed
+     * @return false if a line is invalid, then nothing should be transferred
+     */
+    private static boolean readManifest(Path manifest, List<String> sessionCommands, List<BatchTransfer.Job> jobs) throws IOException {
+        int lineNumber = 0;
+
+        for(String line : Files.readAllLines(manifest)){
+            String[] args = line.strip().split("\\s+");
+            lineNumber++;
+
+            if(args[0].isEmpty() || args[0].startsWith("#")){
+                continue;
+            }else if(SESSION_COMMANDS.contains(args[0]) && args.length == 2){
+                sessionCommands.add(args[0] + ' ' + args[1]);
+            }else if(args[0].equals("RETR") && (args.length == 2 || args.length == 3)){
+                jobs.add(BatchTransfer.Job.retrieve(args[1], _clientDir.resolve(args[args.length - 1])));
+            }else if(args[0].equals("STOR") && (args.length == 3 || args.length == 4) && STORE_MODES.contains(args[1])){
+                Path localPath = _clientDir.resolve(args[2]);
+                String remoteName = args.length == 4 ? args[3] : localPath.getFileName().toString();
+
+                if(remoteName.contains("/")){
+                    System.out.printf("Error: Uploads are named without a directory on line %d: %s\n", lineNumber, line);
+                    return false;
+                }
+
+                jobs.add(BatchTransfer.Job.store(args[1], localPath, remoteName));
+            }else{
+                System.out.printf("Error: Invalid manifest line %d: %s\n", lineNumber, line);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     /**
      * @detail Checks if a user command is valid as a request to the server
      *         and anticipates certain responses by setting flags
@@ -127,7 +568,44 @@ public class Client {
     private static String processUserCommand(String message) throws IOException {
         String isValidRequest = message.strip();
 
-        if (message.contains("STOR")) {
+        // Striped and delta transfers send their own requests, nothing is sent on this connection afterwards
+        if (isValidRequest.startsWith("PRTR")) {
+            String[] args = isValidRequest.split(" ");
+            isValidRequest = "-";
+
+            if(args.length == 2){
+                retrieveStriped(args[1]);
+            }else{
+                System.out.println("Error: Usage is PRTR <file>");
+            }
+
+        } else if (isValidRequest.startsWith("PSTR")) {
+            String[] args = isValidRequest.split(" ");
+            isValidRequest = "-";
+
+            if(args.length != 3){
+                System.out.println("Error: Usage is PSTR { NEW | OLD | APP } <file>");
+            }else if(!Files.isRegularFile(Paths.get(_clientDir + "/" + args[2]))){
+                System.out.println("Error: File does not exist on Client System. Try again");
+            }else{
+                storeStriped(args[1], args[2]);
+            }
+
+        } else if (isValidRequest.startsWith("DELT")) {
+            String[] args = isValidRequest.split(" ");
+            isValidRequest = "-";
+
+            if(args.length != 2){
+                System.out.println("Error: Usage is DELT <file>");
+            }else if(!Files.isRegularFile(Paths.get(_clientDir + "/" + args[1]))){
+                System.out.println("Error: File does not exist on Client System. Try again");
+            }else if(Files.size(Paths.get(_clientDir + "/" + args[1])) > Integer.MAX_VALUE){
+                System.out.println("Error: File is too large for a delta, send it with STOR OLD");
+            }else{
+                storeDelta(args[1]);
+            }
+
+        } else if (message.contains("STOR")) {
             String[] args = message.split(" ");
 
             if(args.length == 3){
@@ -139,9 +617,54 @@ public class Client {
                     System.out.println("Error: File does not exist on Client System. Try again");
                 }else{
                     _fileToSend = new File(_clientDir + "/" + fileName);
+
+                    if(!fileName.equals(_fileToResume) || _fileSendOffset > _fileToSend.length()){
+                        _fileSendOffset = 0;
+                    }
                 }
             }
 
+        } else if (message.contains("TYPE")) {
+            String[] args = message.split(" ");
+
+            if(args.length == 2){
+                _requestedType = args[1];
+            }
+
+        } else if (message.contains("MGET")) {
+            String[] args = message.strip().split(" ");
+
+            if(args.length == 2){
+                _isResponseBatch = true;
+            }
+
+        } else if (message.contains("MPUT")) {
+            String[] args = message.strip().split(" ");
+
+            // The glob is only used on the client, the server needs the mode
+            if(args.length == 3){
+                _batchToSend = args[2];
+                isValidRequest = args[0] + ' ' + args[1];
+            }else{
+                isValidRequest = "-";
+                System.out.println("Error: Usage is MPUT { NEW | OLD | APP } <glob>");
+            }
+
+        } else if (message.contains("VERS")) {
+            String[] args = message.split(" ");
+
+            if(args.length == 2){
+                _requestedProtocol = args[1];
+            }
+
+        } else if (message.contains("REST")) {
+            String[] args = message.split(" ");
+
+            if(args.length == 2){
+                _isResponseResumeOffset = true;
+                _fileToResume = args[1];
+            }
+
         } else if (message.contains("RETR")) {
             String[] args = message.split(" ");
 
@@ -163,12 +686,47 @@ public class Client {
 
             if (args.length == 1 && _fileToSend != null) {
                 isValidRequest = message + ' ' + String.valueOf(_fileToSend.length());
+
+                // A server storing uploads as chunks saves a file it already holds without receiving it
+                if (Boolean.getBoolean("sftp.client.dedup")) {
+                    isValidRequest += ' ' + hashFile(_fileToSend);
+                }
             }
         }
 
         return isValidRequest;
     }
 
+    /**
+     * @detail Returns the SHA-256 of a file in lower case hex
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    private static String hashFile(File file) throws IOException {
+
+        try (InputStream is = Files.newInputStream(file.toPath())) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+
+            while ((read = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+
+            StringBuilder hex = new StringBuilder();
+
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+
+            return hex.toString();
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
     /**
      * @detail Conducts actions like exiting or setting flags for receiving files
      *         based on the Server Response
@@ -186,6 +744,22 @@ public class Client {
                 }else if(_isResponseFileSize){
                     _isResponseFileSize = false;
                     _fileReceiveName = null;
+
+                }else if(_isResponseResumeOffset){
+                    _isResponseResumeOffset = false;
+                    _fileToResume = null;
+
+                }else if(_requestedType != null){
+                    _requestedType = null;
+
+                }else if(_requestedProtocol != null){
+                    _requestedProtocol = null;
+
+                }else if(_isResponseBatch){
+                    _isResponseBatch = false;
+
+                }else if(_batchToSend != null){
+                    _batchToSend = null;
                 }
 
             }else {
@@ -194,9 +768,26 @@ public class Client {
                     _isExit = true;
 
                 }else if(_isResponseFileSize){
-                    _fileReceiveSize = Integer.parseInt(response);
+                    _fileReceiveSize = Long.parseLong(response);
                     _isResponseFileSize = false;
 
+                }else if(_isResponseResumeOffset){
+                    _fileSendOffset = Long.parseLong(response.substring(1, response.indexOf(' ')));
+                    _isResponseResumeOffset = false;
+
+                }else if(_requestedType != null){
+                    // Both ends have to agree on the type as Z changes how files are framed
+                    _sftp.setTransmissionType(_requestedType);
+                    _requestedType = null;
+
+                }else if(_requestedProtocol != null){
+                    // The server switches after this response, so both ends read the next frame alike
+                    _sftp.setProtocol(_requestedProtocol.equals("2") ? Protocol.BINARY : Protocol.TEXT);
+                    _requestedProtocol = null;
+
+                }else if(response.equals("+Send files") && _batchToSend != null){
+                    _isRequestSendingBatch = true;
+
                 }else if(response.contains("+ok, waiting for file")){
                     _isRequestSendingFile = true;
 
@@ -216,10 +807,17 @@ public class Client {
         _isRequestSendingFile = false;
         _isResponseBytes = false;
         _isResponseFileSize = false;
+        _isResponseResumeOffset = false;
+        _fileSendOffset = 0;
         LOGGER.setLevel(Level.INFO);
         _fileReceiveSize = 0;
         _clientDir = Paths.get(System.getProperty("user.dir") + "/resources/sftp.client/");
 
+        // Arguments run a batch instead of reading commands from the user
+        if(argv.length > 0){
+            System.exit(runBatch(argv) ? 0 : 1);
+        }
+
         while (true) {
 
             try {
@@ -0,0 +1,203 @@
+package sftp.client;
+
+import sftp.PositionalOutputStream;
+import sftp.SFTP;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @detail Moves one large file as byte ranges (stripes) over several connections at once, so the
+ *         transfer isn't limited to what a single TCP stream gets out of a long, fast link.
+ *         Every stripe opens its own connection and replays the commands that logged the user in
+ *         and selected the directory. Downloads are written with positional writes into a part file
+ *         that replaces the target only once every stripe arrived, uploads are assembled by the server.
+ */
+public final class StripedTransfer {
+
+    // Smaller stripes cost more in connection setup and login than they gain
+    private static final long MIN_STRIPE_SIZE = 1024 * 1024;
+
+    private final InetSocketAddress _server;
+    private final List<String> _sessionCommands;
+    private final int _stripes;
+
+    /**
+     * @detail Constructor for striped transfers to one server
+     * @param server Address of the server
+     * @param sessionCommands USER, ACCT, PASS and CDIR commands sent on every stripe connection first
+     * @param stripes Largest number of connections used for one file
+     */
+    public StripedTransfer(InetSocketAddress server, List<String> sessionCommands, int stripes) {
+        this._server = server;
+        this._sessionCommands = List.copyOf(sessionCommands);
+        this._stripes = Math.max(1, stripes);
+    }
+
+    /**
+     * @detail Downloads a file in stripes with RANG
+     * @param fileName Name of the file in the server's current directory
+     * @param fileSize Size of the file as reported by RETR
+     * @param target File the download replaces once it is complete
+     * @throws IOException if any stripe failed, then target is left as it was
+     */
+    public void download(String fileName, long fileSize, Path target) throws IOException {
+        Path partFile = target.resolveSibling(target.getFileName() + ".part");
+
+        try (FileChannel channel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            runStripes(fileSize, (offset, length) -> {
+
+                try (Socket socket = openSession()) {
+                    SFTP sftp = new SFTP(socket, true);
+                    startSession(sftp);
+
+                    sftp.writeToOutputStream("RANG " + fileName + ' ' + offset + ' ' + length);
+                    expectPositive(sftp.readInputStreamAsString());
+                    sftp.readInputStreamToStream(new PositionalOutputStream(channel, offset), length);
+
+                    sftp.writeToOutputStream("DONE");
+                    return null;
+                }
+            });
+
+        } catch (IOException e) {
+            Files.deleteIfExists(partFile);
+            throw e;
+        }
+
+        Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @detail Uploads a file in stripes, PSTR starts the assembly on the server and every stripe
+     *         sends its range with PPUT
+     * @param mode NEW, OLD or APP as for STOR
+     * @param file
+     * @return Response of the stripe that completed the file
+     * @throws IOException if the upload couldn't be started or any stripe failed
+     */
+    public String upload(String mode, File file) throws IOException {
+        long fileSize = file.length();
+        String assemblyId;
+
+        try (Socket socket = openSession()) {
+            SFTP sftp = new SFTP(socket, true);
+            startSession(sftp);
+
+            sftp.writeToOutputStream("PSTR " + mode + ' ' + file.getName() + ' ' + fileSize);
+            String response = expectPositive(sftp.readInputStreamAsString());
+            assemblyId = response.substring(response.lastIndexOf(' ') + 1);
+
+            sftp.writeToOutputStream("DONE");
+        }
+
+        List<String> responses = runStripes(fileSize, (offset, length) -> {
+
+            try (Socket socket = openSession()) {
+                SFTP sftp = new SFTP(socket, true);
+                startSession(sftp);
+
+                sftp.writeToOutputStream("PPUT " + assemblyId + ' ' + offset + ' ' + length);
+                expectPositive(sftp.readInputStreamAsString());
+                sftp.writeToOutputStream(file, offset, length);
+                String response = expectPositive(sftp.readInputStreamAsString());
+
+                sftp.writeToOutputStream("DONE");
+                return response;
+            }
+        });
+
+        for (String response : responses) {
+
+            if (response.startsWith("+Saved")) {
+                return response;
+            }
+        }
+
+        throw new IOException("No stripe completed " + file.getName());
+    }
+
+    /**
+     * @detail Splits fileSize bytes into stripes of at least MIN_STRIPE_SIZE and runs each on its own thread
+     * @return Result of every stripe in order
+     * @throws IOException the first failure of any stripe
+     */
+    private List<String> runStripes(long fileSize, Stripe stripe) throws IOException {
+        int stripes = (int) Math.max(1, Math.min(_stripes, fileSize / MIN_STRIPE_SIZE));
+        long stripeSize = (fileSize + stripes - 1) / stripes;
+        ExecutorService executor = Executors.newFixedThreadPool(stripes);
+        List<Future<String>> results = new ArrayList<>();
+        List<String> responses = new ArrayList<>();
+
+        try {
+
+            for (long offset = 0; offset < fileSize || results.isEmpty(); offset += stripeSize) {
+                long start = offset;
+                long length = Math.min(stripeSize, fileSize - offset);
+                results.add(executor.submit(() -> stripe.transfer(start, length)));
+            }
+
+            for (Future<String> result : results) {
+                responses.add(result.get());
+            }
+
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for stripes", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return responses;
+    }
+
+    private Socket openSession() throws IOException {
+        return SocketChannel.open(_server).socket();
+    }
+
+    /**
+     * @detail Reads the greeting and replays the session commands on a new stripe connection
+     */
+    private void startSession(SFTP sftp) throws IOException {
+        expectPositive(sftp.readInputStreamAsString());
+
+        for (String command : _sessionCommands) {
+            sftp.writeToOutputStream(command);
+            expectPositive(sftp.readInputStreamAsString());
+        }
+    }
+
+    private static String expectPositive(String response) throws IOException {
+
+        if (response == null || response.startsWith("-")) {
+            throw new IOException("Stripe failed: " + response);
+        }
+
+        return response;
+    }
+
+    /**
+     * @detail Moves one byte range over a connection of its own
+     */
+    private interface Stripe {
+        String transfer(long offset, long length) throws IOException;
+    }
+}
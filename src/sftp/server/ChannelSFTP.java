@@ -0,0 +1,447 @@
+package sftp.server;
+
+import sftp.Protocol;
+import sftp.SFTP;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @detail sftp.SFTP instance for a non-blocking SocketChannel served by a SelectorServer.
+ *         The I/O thread reads command lines, or binary request frames once protocol 2 was negotiated,
+ *         into a small per-connection buffer and hands each complete command to the disk executor. While a command is in flight the I/O thread
+ *         stops reading, so the command (e.g. a STOR upload) owns the channel and reads or writes
+ *         it through streams that wait for readiness on a per-thread Selector. Commands that stream
+ *         file data, listings or signatures wait for the client as long as it takes, so they run on
+ *         the transfer executor instead and slow clients can't take every disk thread.
+ */
+class ChannelSFTP extends SFTP {
+
+    // Fits the longest binary request: header, text length and 1024 bytes of text
+    private static final int COMMAND_BUFFER_SIZE = 1024 + Protocol.HEADER_SIZE + 4;
+    // Send or receive more than fits the socket buffers, as does any binary request with file data attached
+    private static final Set<String> STREAMING_COMMANDS = Set.of("SEND", "SIZE", "LIST", "MGET", "MPUT", "RANG", "PPUT", "DELT", "DPUT");
+    // Opened by the first wait of a thread
+    private static final ThreadLocal<Selector> _waitSelector = new ThreadLocal<>();
+
+    private final SocketChannel _channel;
+    private final ByteBuffer _commandBuffer;
+    private final ChannelOutputStream _channelOutput;
+    private final Executor _diskExecutor;
+    private final Executor _transferExecutor;
+    private final Runnable _onClose;
+    private final AtomicBoolean _isClosed;
+    private SelectionKey _key;
+    private Session _session;
+    private boolean _isCommandInFlight;
+
+    /**
+     * @detail Constructor for a non-blocking connection
+     * @param channel Accepted SocketChannel in non-blocking mode
+     * @param diskExecutor Executor that processes commands and FileSystem operations
+     * @param transferExecutor Executor that processes commands streaming data, which wait on the client
+     * @param onClose Called once when the session is terminated
+     */
+    ChannelSFTP(SocketChannel channel, Executor diskExecutor, Executor transferExecutor, Runnable onClose) {
+        this(channel, ByteBuffer.allocate(COMMAND_BUFFER_SIZE), new ChannelOutputStream(channel), diskExecutor, transferExecutor, onClose);
+    }
+
+    private ChannelSFTP(SocketChannel channel, ByteBuffer commandBuffer, ChannelOutputStream channelOutput,
+                        Executor diskExecutor, Executor transferExecutor, Runnable onClose) {
+        super(channel.socket(), new ChannelInputStream(channel, commandBuffer), channelOutput, false);
+        this._channel = channel;
+        this._commandBuffer = commandBuffer;
+        this._channelOutput = channelOutput;
+        this._channelOutput.setTimeout(getTransferTimeout());
+        this._diskExecutor = diskExecutor;
+        this._transferExecutor = transferExecutor;
+        this._onClose = onClose;
+        this._isClosed = new AtomicBoolean(false);
+    }
+
+    /**
+     * @detail Registers the connection with an I/O thread's Selector and greets the client on the disk executor
+     * @param selector Selector of the I/O thread that reads commands for this connection
+     * @param session Session that processes the commands
+     */
+    synchronized void register(Selector selector, Session session) throws IOException {
+        _session = session;
+        _key = _channel.register(selector, 0, this);
+        _isCommandInFlight = true;
+
+        _diskExecutor.execute(() -> {
+            _session.greet();
+            processCommands();
+        });
+    }
+
+    /**
+     * @detail Called by the I/O thread when the channel is readable.
+     *         Hands the next complete command line to the disk executor
+     */
+    synchronized void onReadable() {
+
+        if (_isCommandInFlight) {
+            _key.interestOps(0);
+            return;
+        }
+
+        try {
+            int read = _channel.read(_commandBuffer);
+
+            if (read == -1) {
+                System.out.printf("Check if Client is alive! Closing session for %s\n", _channel.socket().getInetAddress());
+                terminateSession();
+
+            } else if (hasCommand()) {
+                _isCommandInFlight = true;
+                _key.interestOps(0);
+                _diskExecutor.execute(this::processCommands);
+
+            } else if (!_commandBuffer.hasRemaining()) {
+                System.out.printf("Command longer than %d bytes, closing session for %s\n", COMMAND_BUFFER_SIZE, _channel.socket().getInetAddress());
+                terminateSession();
+            }
+
+        } catch (IOException e) {
+            System.out.printf("Exception %s, check if connection is alive!\n", e);
+            terminateSession();
+        }
+    }
+
+    /**
+     * @detail Runs on the disk executor. Processes buffered commands in order and
+     *         gives the channel back to the I/O thread once none are left. A streaming command is
+     *         handed to the transfer executor, the commands after it continue on the disk executor
+     */
+    private void processCommands() {
+        String[] request;
+
+        while ((request = nextCommand()) != null) {
+
+            if (isStreaming(request)) {
+                String[] transfer = request;
+
+                _transferExecutor.execute(() -> {
+
+                    if (process(transfer)) {
+                        _diskExecutor.execute(this::processCommands);
+                    }
+                });
+                return;
+            }
+
+            if (!process(request)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @detail Processes one command and closes the session if it ended it
+     * @return false once the session is closed
+     */
+    private boolean process(String[] request) {
+        _session.processRequest(request);
+
+        if (!_session.isConnected()) {
+            terminateSession();
+            return false;
+        }
+
+        return true;
+    }
+
+    private boolean isStreaming(String[] request) {
+        return (request.length > 0 && STREAMING_COMMANDS.contains(request[0])) || hasAttachedData();
+    }
+
+    /**
+     * @detail Takes the next complete command out of the command buffer. The file data of a binary
+     *         request stays in the buffer, the command reads it through the input stream.
+     *         If there is none, read interest is restored and null is returned
+     * @return Command followed by its arguments
+     */
+    private synchronized String[] nextCommand() {
+        String[] request = null;
+
+        if (!hasCommand()) {
+            restoreReadInterest();
+
+        } else if (getProtocol() == Protocol.BINARY) {
+            _commandBuffer.flip();
+            request = decodeRequest(_commandBuffer);
+            _commandBuffer.compact();
+
+        } else {
+            _commandBuffer.flip();
+            byte[] line = new byte[indexOfLineEnd(_commandBuffer) - _commandBuffer.position()];
+            _commandBuffer.get(line);
+            _commandBuffer.get();
+            _commandBuffer.compact();
+
+            String message = new String(line, StandardCharsets.UTF_8);
+
+            if (message.endsWith("\r")) {
+                message = message.substring(0, message.length() - 1);
+            }
+
+            request = message.isEmpty() ? new String[0] : message.split(" ");
+        }
+
+        return request;
+    }
+
+    private void restoreReadInterest() {
+        _isCommandInFlight = false;
+
+        if (_key.isValid()) {
+            _key.interestOps(SelectionKey.OP_READ);
+            _key.selector().wakeup();
+        }
+    }
+
+    /**
+     * @detail Checks if the command buffer holds a command terminated by LF or NUL,
+     *         or with protocol 2 the header and text of a request frame
+     * @return
+     */
+    private boolean hasCommand() {
+        boolean hasCommand;
+
+        _commandBuffer.flip();
+
+        if (getProtocol() == Protocol.BINARY) {
+
+            try {
+                int prefixLength = getRequestPrefixLength(_commandBuffer);
+                hasCommand = prefixLength != -1 && _commandBuffer.remaining() >= prefixLength;
+            } catch (IOException e) {
+                System.out.printf("Exception %s, closing session for %s\n", e, _channel.socket().getInetAddress());
+                hasCommand = false;
+                terminateSession();
+            }
+
+        } else {
+            hasCommand = indexOfLineEnd(_commandBuffer) != -1;
+        }
+
+        _commandBuffer.position(_commandBuffer.limit());
+        _commandBuffer.limit(_commandBuffer.capacity());
+        return hasCommand;
+    }
+
+    private static int indexOfLineEnd(ByteBuffer buffer) {
+
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+
+            if (buffer.get(i) == '\n' || buffer.get(i) == 0) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @detail Frames are read straight from the ChannelInputStream, which buffers in the command buffer,
+     *         so commands pipelined behind a frame stay where the I/O thread parses them
+     */
+    @Override
+    protected InputStream bufferFrameInput(InputStream inputStream) {
+        return inputStream;
+    }
+
+    @Override
+    protected void awaitWritable(SocketChannel socketChannel) throws IOException {
+        awaitReady(socketChannel, SelectionKey.OP_WRITE, getTransferTimeout() * 1000);
+    }
+
+    @Override
+    public void setTransferTimeout(int seconds) {
+        super.setTransferTimeout(seconds);
+        _channelOutput.setTimeout(seconds);
+    }
+
+    /**
+     * @detail Closes the channel and releases the session once
+     */
+    @Override
+    public void terminateSession() {
+        super.terminateSession();
+
+        if (_isClosed.compareAndSet(false, true)) {
+            _onClose.run();
+        }
+    }
+
+    /**
+     * @detail Closes the calling thread's wait Selector if it opened one. Called by threads of pools
+     *         that end idle threads, as a Selector holds file descriptors till it is closed
+     */
+    static void closeWaitSelector() {
+        Selector selector = _waitSelector.get();
+
+        if (selector != null) {
+            _waitSelector.remove();
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.out.printf("Exception %s, wait selector couldn't be closed\n", e);
+            }
+        }
+    }
+
+    /**
+     * @detail Blocks the calling thread, not the I/O thread, till the channel is ready for an operation
+     * @param channel
+     * @param operation SelectionKey.OP_READ or OP_WRITE
+     * @param timeoutMillis 0 waits indefinitely
+     * @throws SocketTimeoutException if the channel did not become ready in time
+     */
+    private static void awaitReady(SocketChannel channel, int operation, int timeoutMillis) throws IOException {
+        Selector selector = _waitSelector.get();
+
+        if (selector == null) {
+            selector = Selector.open();
+            _waitSelector.set(selector);
+        }
+
+        SelectionKey key = channel.register(selector, operation);
+
+        try {
+
+            if (selector.select(timeoutMillis) == 0) {
+                throw new SocketTimeoutException("Channel not ready after " + timeoutMillis + " ms");
+            }
+
+        } finally {
+            key.cancel();
+            selector.selectedKeys().clear();
+            selector.selectNow();
+        }
+    }
+
+    /**
+     * @detail Reads bytes left over in the command buffer first, then waits on the channel
+     *         for as long as the socket's SO_TIMEOUT allows. Reads smaller than the command buffer,
+     *         such as frame headers, fill it first, so bytes read past the end of a frame or file are
+     *         left in it for the I/O thread. Larger reads go straight into the destination
+     */
+    private static class ChannelInputStream extends InputStream {
+
+        private final SocketChannel _channel;
+        private final ByteBuffer _commandBuffer;
+        private final byte[] _single = new byte[1];
+        private ByteBuffer _destination;
+
+        ChannelInputStream(SocketChannel channel, ByteBuffer commandBuffer) {
+            this._channel = channel;
+            this._commandBuffer = commandBuffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(_single, 0, 1) == -1 ? -1 : _single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+
+            if (len == 0) {
+                return 0;
+            }
+
+            // Only the command in flight reads here, the I/O thread leaves the buffer alone till it completes
+            if (_commandBuffer.position() == 0 && len < _commandBuffer.capacity()) {
+                int filled;
+
+                while ((filled = _channel.read(_commandBuffer)) == 0) {
+                    awaitReady(_channel, SelectionKey.OP_READ, _channel.socket().getSoTimeout());
+                }
+
+                if (filled == -1) {
+                    return -1;
+                }
+            }
+
+            if (_commandBuffer.position() > 0) {
+                _commandBuffer.flip();
+                int count = Math.min(len, _commandBuffer.remaining());
+                _commandBuffer.get(b, off, count);
+                _commandBuffer.compact();
+                return count;
+            }
+
+            // Transfers read into the same pooled array every time, so its wrapper is kept
+            if (_destination == null || _destination.array() != b) {
+                _destination = ByteBuffer.wrap(b);
+            }
+
+            ByteBuffer destination = _destination;
+            int read;
+
+            destination.clear().position(off).limit(off + len);
+
+            while ((read = _channel.read(destination)) == 0) {
+                awaitReady(_channel, SelectionKey.OP_READ, _channel.socket().getSoTimeout());
+            }
+
+            return read;
+        }
+    }
+
+    /**
+     * @detail Writes every byte to the channel, waiting for OP_WRITE when the send buffer is full
+     */
+    private static class ChannelOutputStream extends OutputStream {
+
+        private final SocketChannel _channel;
+        private final byte[] _single = new byte[1];
+        private ByteBuffer _source;
+        private int _timeout;
+
+        ChannelOutputStream(SocketChannel channel) {
+            this._channel = channel;
+        }
+
+        void setTimeout(int seconds) {
+            _timeout = seconds;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            _single[0] = (byte) b;
+            write(_single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+
+            if (_source == null || _source.array() != b) {
+                _source = ByteBuffer.wrap(b);
+            }
+
+            ByteBuffer source = _source;
+            source.clear().position(off).limit(off + len);
+
+            while (source.hasRemaining()) {
+
+                if (_channel.write(source) == 0) {
+                    awaitReady(_channel, SelectionKey.OP_WRITE, _timeout * 1000);
+                }
+            }
+        }
+    }
+}
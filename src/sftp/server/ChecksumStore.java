@@ -0,0 +1,293 @@
+package sftp.server;
+
+import sftp.ChecksumCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * @detail Checksums of the server's files, held in memory and kept on disk under resources/sftp.checksums
+ *         with the same relative path. A record holds the size and modification time the file had when its
+ *         checksum was computed, a file that changed since then has no checksum until it is read again.
+ *         The size is that of the file's content, for a manifest in CAS mode the size of the file it stands for.
+ *         Uploads record the checksum computed while they were received, RETR the one computed while
+ *         a file was sent, so CHKS and later RETRs don't read the file for it. Records are checked against
+ *         the size and modification time the caller already read, so looking one up does no I/O. They are
+ *         loaded once and written to disk by a background thread. The FileSystem drops the record of
+ *         every file it publishes, appends to, renames or deletes, like the FileCache entries. A file
+ *         read within RACY_MILLIS of its modification time is not recorded, as it may change again
+ *         without its size or modification time changing
+ */
+final class ChecksumStore implements ChecksumCache {
+
+    // Coarser than the modification time of any common file system
+    private static final long RACY_MILLIS = 2000;
+
+    private static ChecksumStore _shared;
+
+    private final Path _rootDir;
+    private final Path _recordDir;
+    private final Map<Path, Record> _records;
+    private final ExecutorService _writer;
+
+    private ChecksumStore(Path rootDir, Path recordDir) {
+        this._rootDir = rootDir;
+        this._recordDir = recordDir;
+        this._records = new ConcurrentHashMap<>();
+        this._writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sftp-checksum-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @detail Returns the store of the server, for the files under resources
+     * @return
+     */
+    static synchronized ChecksumStore getInstance() {
+
+        if (_shared == null) {
+            Path rootDir = Paths.get(System.getProperty("user.dir") + "/resources").toAbsolutePath().normalize();
+            _shared = new ChecksumStore(rootDir, rootDir.resolve("sftp.checksums"));
+            _shared.load();
+        }
+
+        return _shared;
+    }
+
+    @Override
+    public String get(File file, long size, long lastModified) {
+        Path key = getKey(file);
+        Record record = key == null ? null : _records.get(key);
+
+        if (record == null || record._size != size || record._lastModified != lastModified) {
+            return null;
+        }
+
+        return record._checksum;
+    }
+
+    @Override
+    public void put(File file, long size, long lastModified, String checksum) {
+
+        if (System.currentTimeMillis() - lastModified < RACY_MILLIS) {
+            return;
+        }
+
+        // The file must not have changed since it was read
+        if (FileSystem.getStoredSize(file) != size || file.lastModified() != lastModified) {
+            return;
+        }
+
+        record(file, new Record(size, lastModified, checksum));
+    }
+
+    /**
+     * @detail Records the checksum of a file the FileSystem just published. The server wrote its
+     *         bytes, so the record is kept however recently it was modified
+     * @param file
+     * @param checksum
+     */
+    void put(File file, String checksum) {
+        record(file, new Record(FileSystem.getStoredSize(file), file.lastModified(), checksum));
+    }
+
+    /**
+     * @detail Moves the records of a renamed file or directory, renaming keeps their size and modification time
+     * @param source
+     * @param target
+     */
+    void move(File source, File target) {
+        Path sourceKey = getKey(source);
+        Path targetKey = getKey(target);
+        boolean isDirectory = target.isDirectory();
+
+        // Records of a file the rename replaced
+        invalidate(target.toPath());
+
+        for (Path key : isDirectory ? getKeys(sourceKey) : sourceKey == null ? List.<Path>of() : List.of(sourceKey)) {
+            Record record = _records.remove(key);
+
+            if (record == null) {
+                continue;
+            }
+
+            if (targetKey != null) {
+                Path movedKey = targetKey.resolve(sourceKey.relativize(key));
+                _records.put(movedKey, record);
+                persist(movedKey);
+            }
+
+            persist(key);
+        }
+    }
+
+    /**
+     * @detail Drops the record of a file the FileSystem published, appended to or deleted
+     * @param path
+     */
+    void invalidate(Path path) {
+        Path key = getKey(path.toFile());
+
+        if (key != null && _records.remove(key) != null) {
+            persist(key);
+        }
+    }
+
+    /**
+     * @detail Drops the records of every file under a directory the FileSystem deleted
+     * @param dir
+     */
+    void invalidateTree(Path dir) {
+
+        for (Path key : getKeys(getKey(dir.toFile()))) {
+
+            if (_records.remove(key) != null) {
+                persist(key);
+            }
+        }
+    }
+
+    private void record(File file, Record record) {
+        Path key = getKey(file);
+
+        if (key != null) {
+            _records.put(key, record);
+            persist(key);
+        }
+    }
+
+    /**
+     * @detail Returns the keys recorded under a directory
+     * @param key
+     * @return
+     */
+    private List<Path> getKeys(Path key) {
+        List<Path> keys = new ArrayList<>();
+
+        if (key == null) {
+            return keys;
+        }
+
+        for (Path recorded : _records.keySet()) {
+
+            if (recorded.startsWith(key)) {
+                keys.add(recorded);
+            }
+        }
+
+        return keys;
+    }
+
+    /**
+     * @detail Brings the record file of a key in line with the record in memory once the writer gets to it,
+     *         so writes queued in any order leave the latest record on disk
+     * @param key
+     */
+    private void persist(Path key) {
+        _writer.execute(() -> {
+            Path recordFile = _recordDir.resolve(_rootDir.relativize(key));
+            Record record = _records.get(key);
+
+            try {
+
+                if (record == null) {
+                    Files.deleteIfExists(recordFile);
+                    return;
+                }
+
+                Files.createDirectories(recordFile.getParent());
+                Path temp = Files.createTempFile(recordFile.getParent(), recordFile.getFileName().toString(), ".tmp");
+                Files.writeString(temp, record._size + " " + record._lastModified + " " + record._checksum + "\n", StandardCharsets.UTF_8);
+
+                try {
+                    Files.move(temp, recordFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, recordFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+
+            } catch (IOException e) {
+                System.out.printf("Exception %s, checksum of %s wasn't recorded\n", e, key);
+            }
+        });
+    }
+
+    /**
+     * @detail Reads every record kept on disk
+     */
+    private void load() {
+
+        if (!Files.isDirectory(_recordDir)) {
+            return;
+        }
+
+        try (Stream<Path> recordFiles = Files.walk(_recordDir)) {
+            recordFiles.filter(Files::isRegularFile).forEach(recordFile -> {
+
+                if (recordFile.getFileName().toString().endsWith(".tmp")) {
+                    return;
+                }
+
+                try {
+                    String[] fields = Files.readString(recordFile, StandardCharsets.UTF_8).split(" ", 3);
+
+                    if (fields.length == 3) {
+                        _records.put(_rootDir.resolve(_recordDir.relativize(recordFile)),
+                                new Record(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2].strip()));
+                    }
+
+                } catch (IOException | NumberFormatException e) {
+                    System.out.printf("Exception %s, checksum record %s is unreadable\n", e, recordFile);
+                }
+            });
+
+        } catch (IOException e) {
+            System.out.printf("Exception %s, checksum records weren't loaded\n", e);
+        }
+    }
+
+    /**
+     * @detail Returns the key a file is recorded under
+     * @param file
+     * @return null for files outside resources
+     */
+    private Path getKey(File file) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+
+        if (!path.startsWith(_rootDir) || path.startsWith(_recordDir)) {
+            return null;
+        }
+
+        return path;
+    }
+
+    /**
+     * @detail Checksum of a file as it was when the checksum was computed
+     */
+    private static final class Record {
+
+        private final long _size;
+        private final long _lastModified;
+        private final String _checksum;
+
+        Record(long size, long lastModified, String checksum) {
+            this._size = size;
+            this._lastModified = lastModified;
+            this._checksum = checksum;
+        }
+    }
+}
@@ -0,0 +1,615 @@
+package sftp.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * @detail Content addressed storage for uploads, used with -Dsftp.server.storage=cas.
+ *         A published upload is split into chunks of CHUNK_SIZE bytes named by their SHA-256, every
+ *         chunk is stored once under resources/sftp.cas/chunks however many files contain it. The file
+ *         itself becomes a manifest listing its chunks. Chunks are counted by the manifests that refer
+ *         to them and deleted with the last one. The counts are kept in memory and rebuilt from the
+ *         manifests when the server starts. The SHA-256 of every whole upload is indexed as well,
+ *         so an upload whose hash is announced with SIZE can be stored from chunks already held.
+ */
+final class ChunkStore {
+
+    private static final String MAGIC = "SFTP-CAS 1\n";
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    // Manifests the server makes for announced hashes are staged under this suffix, user uploads end in .part
+    private static final String STAGED_MANIFEST = ".manifest";
+    private static ChunkStore _shared;
+
+    private final Path _chunkDir;
+    private final Path _fileIndexDir;
+    // Number of manifest entries that refer to each chunk
+    private final Map<String, Integer> _references = new HashMap<>();
+
+    private ChunkStore(Path rootDir) {
+        this._chunkDir = rootDir.resolve("chunks");
+        this._fileIndexDir = rootDir.resolve("files");
+    }
+
+    /**
+     * @detail Returns the store of the server, kept under resources/sftp.cas
+     * @return
+     */
+    static synchronized ChunkStore getInstance() {
+
+        if (_shared == null) {
+            _shared = new ChunkStore(Paths.get(System.getProperty("user.dir") + "/resources/sftp.cas"));
+        }
+
+        return _shared;
+    }
+
+    /**
+     * @detail Checks if uploads are stored as chunks, only then manifests are read as such
+     * @return
+     */
+    static boolean isEnabled() {
+        return "cas".equals(System.getProperty("sftp.server.storage"));
+    }
+
+    /**
+     * @detail Counts the chunk references of every manifest under baseDir and deletes the chunks
+     *         none refers to, such as those of uploads that were cut off by a restart.
+     *         Indexed files with a chunk that is gone are dropped from the index
+     * @param baseDir
+     */
+    synchronized void recover(Path baseDir) {
+        _references.clear();
+
+        try (Stream<Path> files = Files.walk(baseDir)) {
+            Iterator<Path> iterator = files.filter(Files::isRegularFile).iterator();
+
+            while (iterator.hasNext()) {
+                List<Chunk> chunks = readManifest(iterator.next());
+
+                if (chunks != null) {
+                    retain(chunks);
+                }
+            }
+
+            Files.createDirectories(_chunkDir);
+
+        } catch (IOException e) {
+            System.out.printf("Exception %s, chunk references of %s are incomplete\n", e, baseDir);
+            return;
+        }
+
+        try (Stream<Path> chunks = Files.walk(_chunkDir)) {
+            Iterator<Path> iterator = chunks.filter(Files::isRegularFile).iterator();
+
+            while (iterator.hasNext()) {
+                Path chunk = iterator.next();
+
+                if (!_references.containsKey(chunk.getFileName().toString())) {
+                    Files.delete(chunk);
+                }
+            }
+
+        } catch (IOException e) {
+            System.out.printf("Exception %s, error removing unused chunks\n", e);
+        }
+
+        try (Stream<Path> entries = Files.walk(Files.createDirectories(_fileIndexDir))) {
+            Iterator<Path> iterator = entries.filter(Files::isRegularFile).iterator();
+
+            while (iterator.hasNext()) {
+                Path entry = iterator.next();
+                List<Chunk> chunks;
+
+                try {
+                    chunks = readManifest(entry);
+                } catch (IOException e) {
+                    chunks = null;
+                }
+
+                if (chunks == null || !chunks.stream().allMatch(chunk -> _references.containsKey(chunk.hash))) {
+                    Files.delete(entry);
+                }
+            }
+
+        } catch (IOException e) {
+            System.out.printf("Exception %s, error removing stale index entries\n", e);
+        }
+    }
+
+    /**
+     * @detail Stores a complete upload as chunks and puts its manifest at path, replacing the file
+     *         that is there. Chunks of a replaced manifest lose a reference. A staged manifest is moved as it is
+     * @param partFile Staged upload, removed once it is published
+     * @param path
+     * @throws IOException
+     */
+    void publish(Path partFile, Path path) throws IOException {
+        replace(stage(partFile), path);
+    }
+
+    /**
+     * @detail Stores a complete upload as chunks and stages its manifest next to it, so it can be
+     *         published by linking the manifest under its final name. A staged manifest is returned as it is
+     * @param partFile Staged upload, removed once its manifest is staged
+     * @return Staged manifest
+     * @throws IOException
+     */
+    Path stage(Path partFile) throws IOException {
+
+        if (isStagedManifest(partFile)) {
+            return partFile;
+        }
+
+        MessageDigest fileDigest = newDigest();
+        List<Chunk> chunks = storeChunks(partFile, fileDigest);
+        Path manifest = partFile.resolveSibling(partFile.getFileName() + STAGED_MANIFEST);
+
+        writeOrRelease(manifest, chunks);
+        Files.setLastModifiedTime(manifest, Files.getLastModifiedTime(partFile));
+        indexFile(toHex(fileDigest.digest()), manifest);
+        Files.delete(partFile);
+
+        return manifest;
+    }
+
+    /**
+     * @detail Appends a complete upload to the file at path. A file that isn't a manifest yet is
+     *         stored as chunks first, the chunks of the upload are then added to its manifest
+     * @param partFile Staged upload, removed once it is appended
+     * @param path
+     * @throws IOException
+     */
+    void append(Path partFile, Path path) throws IOException {
+
+        if (readManifest(path) == null) {
+            // Files stored before chunks were used become a manifest first
+            Path converted = partFile.resolveSibling(partFile.getFileName() + ".converted");
+            List<Chunk> chunks = storeChunks(path, null);
+
+            writeOrRelease(converted, chunks);
+            replace(converted, path);
+        }
+
+        List<Chunk> appended = isStagedManifest(partFile) ? readManifest(partFile) : storeChunks(partFile, null);
+        Path manifest = partFile.resolveSibling(partFile.getFileName() + ".appended");
+
+        synchronized (this) {
+            List<Chunk> existing;
+
+            try {
+                existing = readManifest(path);
+            } catch (IOException e) {
+                existing = null;
+            }
+
+            try {
+
+                if (existing == null) {
+                    throw new IOException(path + " is no longer a manifest");
+                }
+
+                // Chunks already in the file are referred to by both manifests till the old one is replaced
+                retain(existing);
+
+                List<Chunk> chunks = new ArrayList<>(existing);
+                chunks.addAll(appended);
+                writeManifest(manifest, chunks);
+
+            } catch (IOException e) {
+                release(appended);
+
+                if (existing != null) {
+                    release(existing);
+                }
+
+                Files.deleteIfExists(manifest);
+
+                // The references of a staged manifest are gone, a part file can be sent again
+                if (isStagedManifest(partFile)) {
+                    Files.deleteIfExists(partFile);
+                }
+
+                throw e;
+            }
+
+            Files.delete(partFile);
+            replace(manifest, path);
+        }
+    }
+
+    /**
+     * @detail Stages a manifest for an upload whose SHA-256 was announced, if a file with that hash
+     *         and size was stored and all of its chunks still are
+     * @param fileHash SHA-256 of the whole file in lower case hex
+     * @param size Announced size
+     * @param stagingDir Directory the manifest is staged in
+     * @return Staged manifest to publish instead of a part file, null if the bytes have to be sent
+     * @throws IOException if the manifest can't be staged
+     */
+    Path stageKnownFile(String fileHash, long size, Path stagingDir) throws IOException {
+        Path index = _fileIndexDir.resolve(fileHash);
+        List<Chunk> chunks;
+
+        synchronized (this) {
+
+            try {
+                chunks = readManifest(index);
+            } catch (IOException e) {
+                chunks = null;
+            }
+
+            if (chunks == null || sizeOf(chunks) != size) {
+                return null;
+            }
+
+            for (Chunk chunk : chunks) {
+
+                if (!_references.containsKey(chunk.hash)) {
+                    // A chunk was deleted with the last file that had it
+                    Files.deleteIfExists(index);
+                    return null;
+                }
+            }
+
+            retain(chunks);
+        }
+
+        Path manifest = null;
+
+        try {
+            manifest = Files.createDirectories(stagingDir).resolve(fileHash + '.' + UUID.randomUUID() + STAGED_MANIFEST);
+            writeManifest(manifest, chunks);
+            return manifest;
+        } catch (IOException e) {
+            release(chunks);
+
+            if (manifest != null) {
+                Files.deleteIfExists(manifest);
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * @detail Deletes a staged upload that isn't published, releasing the chunks of a staged manifest
+     * @param partFile
+     * @throws IOException
+     */
+    void discard(Path partFile) throws IOException {
+
+        if (isStagedManifest(partFile)) {
+            List<Chunk> chunks = readManifest(partFile);
+
+            if (chunks != null) {
+                release(chunks);
+            }
+        }
+
+        Files.delete(partFile);
+    }
+
+    /**
+     * @detail Deletes a file, the chunks of a manifest lose their reference
+     * @param path
+     * @throws IOException
+     */
+    synchronized void delete(Path path) throws IOException {
+        List<Chunk> chunks = readManifest(path);
+
+        Files.delete(path);
+
+        if (chunks != null) {
+            release(chunks);
+        }
+    }
+
+    /**
+     * @detail Returns the size of the file a manifest stands for, or of any other file
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    long size(Path path) throws IOException {
+        List<Chunk> chunks = readManifest(path);
+
+        return chunks == null ? Files.size(path) : sizeOf(chunks);
+    }
+
+    /**
+     * @detail Opens a file for reading. A manifest is read through its chunks as one file
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    FileChannel open(File file) throws IOException {
+        List<Chunk> chunks = readManifest(file.toPath());
+
+        if (chunks == null) {
+            return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        Path[] paths = new Path[chunks.size()];
+        long[] lengths = new long[chunks.size()];
+
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = chunkPath(chunks.get(i).hash);
+            lengths[i] = chunks.get(i).length;
+        }
+
+        return new ChunkedFileChannel(paths, lengths);
+    }
+
+    /**
+     * @detail Reads the chunks of a file while they are hashed and stores every chunk not held yet.
+     *         Each chunk gains one reference
+     * @param file
+     * @param fileDigest Digest updated with every byte of the file, null for none
+     * @return Chunks of the file in order
+     * @throws IOException
+     */
+    private List<Chunk> storeChunks(Path file, MessageDigest fileDigest) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        MessageDigest chunkDigest = newDigest();
+        byte[] buffer = new byte[CHUNK_SIZE];
+
+        try (InputStream in = Files.newInputStream(file)) {
+            int length;
+
+            while ((length = in.readNBytes(buffer, 0, CHUNK_SIZE)) > 0) {
+                chunkDigest.update(buffer, 0, length);
+
+                if (fileDigest != null) {
+                    fileDigest.update(buffer, 0, length);
+                }
+
+                String hash = toHex(chunkDigest.digest());
+                addChunk(hash, buffer, length);
+                chunks.add(new Chunk(hash, length));
+            }
+
+        } catch (IOException e) {
+            release(chunks);
+            throw e;
+        }
+
+        return chunks;
+    }
+
+    /**
+     * @detail Adds a reference to a chunk, writing it first if it isn't stored. The bytes are written
+     *         outside the lock into a temporary file that is only moved into place if no other upload
+     *         stored the same chunk meanwhile
+     */
+    private void addChunk(String hash, byte[] data, int length) throws IOException {
+
+        synchronized (this) {
+
+            if (_references.computeIfPresent(hash, (key, count) -> count + 1) != null) {
+                return;
+            }
+        }
+
+        Path chunk = chunkPath(hash);
+        Path temp = Files.createTempFile(Files.createDirectories(chunk.getParent()), hash, ".tmp");
+
+        try {
+
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                out.write(data, 0, length);
+            }
+
+            synchronized (this) {
+
+                if (_references.computeIfPresent(hash, (key, count) -> count + 1) == null) {
+                    move(temp, chunk);
+                    _references.put(hash, 1);
+                }
+            }
+
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private synchronized void retain(List<Chunk> chunks) {
+
+        for (Chunk chunk : chunks) {
+            _references.merge(chunk.hash, 1, Integer::sum);
+        }
+    }
+
+    private synchronized void release(List<Chunk> chunks) {
+
+        for (Chunk chunk : chunks) {
+            Integer count = _references.computeIfPresent(chunk.hash, (key, value) -> value == 1 ? null : value - 1);
+
+            if (count == null) {
+
+                try {
+                    Files.deleteIfExists(chunkPath(chunk.hash));
+                } catch (IOException e) {
+                    System.out.printf("Exception %s, error removing chunk %s\n", e, chunk.hash);
+                }
+            }
+        }
+    }
+
+    /**
+     * @detail Moves a manifest to path and releases the chunks of the manifest it replaces
+     */
+    private synchronized void replace(Path manifest, Path path) throws IOException {
+        List<Chunk> replaced = Files.exists(path) ? readManifest(path) : null;
+
+        try {
+            move(manifest, path);
+        } catch (IOException e) {
+            discard(manifest);
+            throw e;
+        }
+
+        if (replaced != null) {
+            release(replaced);
+        }
+    }
+
+    /**
+     * @detail Remembers the chunks of a whole file by its hash, the index holds no references
+     */
+    private void indexFile(String fileHash, Path manifest) {
+
+        try {
+            Path index = _fileIndexDir.resolve(fileHash);
+            Path temp = Files.createTempFile(Files.createDirectories(_fileIndexDir), fileHash, ".tmp");
+
+            Files.copy(manifest, temp, StandardCopyOption.REPLACE_EXISTING);
+            move(temp, index);
+
+        } catch (IOException e) {
+            System.out.printf("Exception %s, %s is stored but not indexed\n", e, fileHash);
+        }
+    }
+
+    /**
+     * @detail Reads the chunks listed in a manifest
+     * @param path
+     * @return null if the file is not a manifest
+     * @throws IOException if the file can't be read or is a damaged manifest
+     */
+    private static List<Chunk> readManifest(Path path) throws IOException {
+
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] magic = in.readNBytes(MAGIC.length());
+
+            if (!MAGIC.equals(new String(magic, StandardCharsets.ISO_8859_1))) {
+                return null;
+            }
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.ISO_8859_1));
+            List<Chunk> chunks = new ArrayList<>();
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(' ');
+
+                if (separator != 64 || !line.substring(0, separator).matches("[0-9a-f]{64}")) {
+                    throw new IOException("Damaged manifest " + path);
+                }
+
+                chunks.add(new Chunk(line.substring(0, separator), Long.parseLong(line.substring(separator + 1))));
+            }
+
+            return chunks;
+
+        } catch (NumberFormatException e) {
+            throw new IOException("Damaged manifest " + path, e);
+        }
+    }
+
+    /**
+     * @detail Writes a manifest, if that fails the chunks lose the references taken for it
+     */
+    private void writeOrRelease(Path manifest, List<Chunk> chunks) throws IOException {
+
+        try {
+            writeManifest(manifest, chunks);
+        } catch (IOException e) {
+            release(chunks);
+            Files.deleteIfExists(manifest);
+            throw e;
+        }
+    }
+
+    private static void writeManifest(Path manifest, List<Chunk> chunks) throws IOException {
+
+        try (Writer writer = Files.newBufferedWriter(manifest, StandardCharsets.ISO_8859_1)) {
+            writer.write(MAGIC);
+
+            for (Chunk chunk : chunks) {
+                writer.write(chunk.hash + ' ' + chunk.length + '\n');
+            }
+        }
+    }
+
+    private static boolean isStagedManifest(Path partFile) {
+        return partFile.getFileName().toString().endsWith(STAGED_MANIFEST);
+    }
+
+    private static long sizeOf(List<Chunk> chunks) {
+        long size = 0;
+
+        for (Chunk chunk : chunks) {
+            size += chunk.length;
+        }
+
+        return size;
+    }
+
+    private Path chunkPath(String hash) {
+        return _chunkDir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return hex.toString();
+    }
+
+    /**
+     * @detail One entry of a manifest
+     */
+    private static final class Chunk {
+        private final String hash;
+        private final long length;
+
+        private Chunk(String hash, long length) {
+            this.hash = hash;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package sftp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * @detail Read-only channel over the chunks of a manifest, so a file kept in the ChunkStore is sent
+ *         like any other file. Only the chunk being read is open, transferTo hands the socket one
+ *         chunk at a time. The channel can't be mapped or written
+ */
+final class ChunkedFileChannel extends FileChannel {
+
+    private final Path[] _chunks;
+    // First byte of every chunk and the size of the file as the last entry
+    private final long[] _starts;
+    private FileChannel _openChunk;
+    private int _openIndex = -1;
+    private long _position;
+
+    /**
+     * @param chunks Chunk files in the order of the file
+     * @param lengths Length of every chunk as the manifest lists it
+     */
+    ChunkedFileChannel(Path[] chunks, long[] lengths) {
+        this._chunks = chunks;
+        this._starts = new long[chunks.length + 1];
+
+        for (int i = 0; i < lengths.length; i++) {
+            _starts[i + 1] = _starts[i] + lengths[i];
+        }
+    }
+
+    /**
+     * @detail Opens the chunk that holds position, closing the one that was open
+     * @return Index of the chunk
+     * @throws IOException if the chunk is missing or doesn't have the length the manifest lists
+     */
+    private int openChunkAt(long position) throws IOException {
+        int index = Arrays.binarySearch(_starts, position);
+
+        // Chunks of length 0 share their start with the next chunk, the last of them holds position
+        if (index >= 0) {
+
+            while (index + 1 < _chunks.length && _starts[index + 1] == position) {
+                index++;
+            }
+
+        } else {
+            index = -index - 2;
+        }
+
+        if (index != _openIndex) {
+
+            if (_openChunk != null) {
+                _openChunk.close();
+                _openChunk = null;
+                _openIndex = -1;
+            }
+
+            FileChannel chunk = FileChannel.open(_chunks[index], StandardOpenOption.READ);
+
+            if (chunk.size() != _starts[index + 1] - _starts[index]) {
+                chunk.close();
+                throw new IOException("Chunk " + _chunks[index].getFileName() + " is damaged");
+            }
+
+            _openChunk = chunk;
+            _openIndex = index;
+        }
+
+        return index;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int read = read(dst, _position);
+
+        if (read > 0) {
+            _position += read;
+        }
+
+        return read;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+
+        for (int i = offset; i < offset + length; i++) {
+
+            while (dsts[i].hasRemaining()) {
+                int read = read(dsts[i]);
+
+                if (read <= 0) {
+                    return total == 0 ? read : total;
+                }
+
+                total += read;
+            }
+        }
+
+        return total;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+
+        if (position >= size()) {
+            return -1;
+        }
+
+        int index = openChunkAt(position);
+        long chunkEnd = _starts[index + 1];
+        int limit = dst.limit();
+
+        if (dst.remaining() > chunkEnd - position) {
+            dst.limit(dst.position() + (int) (chunkEnd - position));
+        }
+
+        try {
+            return _openChunk.read(dst, position - _starts[index]);
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+
+        if (position >= size()) {
+            return 0;
+        }
+
+        int index = openChunkAt(position);
+        long length = Math.min(count, _starts[index + 1] - position);
+
+        return _openChunk.transferTo(position - _starts[index], length, target);
+    }
+
+    @Override
+    public long position() {
+        return _position;
+    }
+
+    @Override
+    public FileChannel position(long newPosition) {
+        _position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return _starts[_chunks.length];
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public FileChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public void force(boolean metaData) {
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) {
+        throw new UnsupportedOperationException("Chunked files can't be mapped");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("Chunked files can't be locked");
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("Chunked files can't be locked");
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+
+        if (_openChunk != null) {
+            _openChunk.close();
+        }
+    }
+}
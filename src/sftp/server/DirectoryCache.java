@@ -0,0 +1,267 @@
+package sftp.server;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @detail Formatted LIST rows of recently listed directories, shared by all sessions.
+ *         Rows are collected while a full listing is streamed to a client. Every cached directory
+ *         is watched with a WatchService. Any event in it, or a change made through the FileSystem,
+ *         drops its rows and those of its parent and stops watching it, so listing an unchanged
+ *         directory again does no file I/O.
+ *         Rows hold nothing a read changes, as reads raise no event. Directories that can't be
+ *         watched are never cached.
+ */
+final class DirectoryCache {
+
+    private static final DirectoryCache _shared = new DirectoryCache(
+            Integer.getInteger("sftp.server.listCacheDirs", 64),
+            Integer.getInteger("sftp.server.listCacheMaxEntries", 65536));
+
+    private final Map<Path, Listing> _listings;
+    private final int _maxEntries;
+    private WatchService _watchService;
+
+    /**
+     * @detail Constructor for a cache
+     * @param maxDirs Least recently listed directories are dropped beyond this count
+     * @param maxEntries Directories with more entries than this are not cached
+     */
+    private DirectoryCache(int maxDirs, int maxEntries) {
+        this._maxEntries = maxEntries;
+        this._listings = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Listing> eldest) {
+
+                if (size() > maxDirs) {
+                    eldest.getValue().drop();
+                    eldest.getValue()._watchKey.cancel();
+                    return true;
+                }
+
+                return false;
+            }
+        };
+
+        try {
+            _watchService = FileSystems.getDefault().newWatchService();
+
+            Thread watcher = new Thread(this::watch, "sftp-list-cache-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+
+        } catch (IOException e) {
+            System.out.printf("Exception %s, LIST results will not be cached\n", e);
+            _watchService = null;
+        }
+    }
+
+    static DirectoryCache getInstance() {
+        return _shared;
+    }
+
+    /**
+     * @detail Returns the cached rows of a directory for a LIST mode
+     * @param dir Listed directory
+     * @param mode LIST mode, F or V
+     * @return null if the rows are not cached
+     */
+    String[] getRows(Path dir, String mode) {
+        Path key = dir.toAbsolutePath().normalize();
+
+        synchronized (_listings) {
+            Listing listing = _listings.get(key);
+            return listing == null ? null : listing._rows.get(mode);
+        }
+    }
+
+    /**
+     * @detail Starts watching a directory before it is listed. Rows added to the returned collector
+     *         are cached when it is finished, unless the directory changed meanwhile or had too many entries
+     * @param dir Directory about to be listed
+     * @param mode LIST mode, F or V
+     * @return
+     */
+    RowCollector collect(Path dir, String mode) {
+        Listing listing = getListing(dir.toAbsolutePath().normalize());
+
+        if (listing != null && listing._isTooLarge) {
+            listing = null;
+        }
+
+        return new RowCollector(listing, mode, _maxEntries);
+    }
+
+    /**
+     * @detail Drops the cached rows of a directory after a change made by this server,
+     *         so the next LIST doesn't wait for the WatchService event. The directory
+     *         is no longer watched till it is listed again
+     * @param dir
+     */
+    void invalidate(Path dir) {
+        Path key = dir.toAbsolutePath().normalize();
+
+        synchronized (_listings) {
+            Listing listing = _listings.remove(key);
+
+            if (listing != null) {
+                listing.drop();
+                listing._watchKey.cancel();
+            }
+        }
+    }
+
+    /**
+     * @detail Drops the cached rows a change to a file or folder makes stale: those of the directory
+     *         holding it, and those of that directory's parent, as the V row of the directory shows
+     *         its modification time and changing an entry of a directory raises no event in its parent
+     * @param entry File or folder that was created, changed, renamed or deleted
+     */
+    void invalidateEntry(Path entry) {
+        Path dir = entry.toAbsolutePath().normalize().getParent();
+
+        if (dir != null) {
+            invalidate(dir);
+
+            if (dir.getParent() != null) {
+                invalidate(dir.getParent());
+            }
+        }
+    }
+
+    /**
+     * @detail Finds or starts watching the listing of a directory
+     * @return null if the directory can't be watched
+     */
+    private Listing getListing(Path dir) {
+
+        if (_watchService == null) {
+            return null;
+        }
+
+        synchronized (_listings) {
+            Listing listing = _listings.get(dir);
+
+            if (listing == null) {
+
+                try {
+                    WatchKey watchKey = dir.register(_watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+                    listing = new Listing(watchKey);
+                    _listings.put(dir, listing);
+
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+
+            return listing;
+        }
+    }
+
+    /**
+     * @detail Runs on the watcher thread and invalidates every directory an event was reported for
+     */
+    private void watch() {
+
+        try {
+
+            while (true) {
+                WatchKey watchKey = _watchService.take();
+                watchKey.pollEvents();
+
+                // Cancels the key, the next listing of the directory registers it again.
+                // The parent's row of the directory shows its new modification time
+                Path dir = (Path) watchKey.watchable();
+                invalidate(dir);
+
+                if (dir.getParent() != null) {
+                    invalidate(dir.getParent());
+                }
+            }
+
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            System.out.printf("Exception %s, stopped watching listed directories\n", e);
+        }
+    }
+
+    /**
+     * @detail Gathers the rows of one full listing while it is streamed to a client
+     */
+    static class RowCollector {
+
+        private final Listing _listing;
+        private final String _mode;
+        private final int _maxEntries;
+        private ArrayList<String> _rows;
+
+        private RowCollector(Listing listing, String mode, int maxEntries) {
+            this._listing = listing;
+            this._mode = mode;
+            this._maxEntries = maxEntries;
+            this._rows = listing == null ? null : new ArrayList<>();
+        }
+
+        /**
+         * @detail Adds the next row, gives up collecting once there are more than maxEntries
+         * @param row
+         */
+        void add(String row) {
+
+            if (_rows != null) {
+
+                if (_rows.size() < _maxEntries) {
+                    _rows.add(row);
+                } else {
+                    _listing._isTooLarge = true;
+                    _rows = null;
+                }
+            }
+        }
+
+        /**
+         * @detail Caches the collected rows, call once the whole directory was listed
+         */
+        void finish() {
+
+            // An event during listing marks the listing stale, then the rows may already be out of date
+            if (_rows != null && !_listing._isStale) {
+                _listing._rows.putIfAbsent(_mode, _rows.toArray(new String[0]));
+            }
+
+            _rows = null;
+        }
+    }
+
+    /**
+     * @detail Rows of one directory per LIST mode. Once stale it is never filled again,
+     *         once too large it isn't collected again till the directory changes
+     */
+    private static class Listing {
+
+        private final WatchKey _watchKey;
+        private final Map<String, String[]> _rows;
+        private volatile boolean _isStale;
+        private volatile boolean _isTooLarge;
+
+        Listing(WatchKey watchKey) {
+            this._watchKey = watchKey;
+            this._rows = new ConcurrentHashMap<>();
+        }
+
+        void drop() {
+            _isStale = true;
+            _rows.clear();
+        }
+    }
+}
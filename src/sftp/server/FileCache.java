@@ -0,0 +1,681 @@
+package sftp.server;
+
+import sftp.FileOpener;
+import sftp.server.metrics.CacheStatistics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @detail Contents of recently sent files, shared by all sessions and held outside the Java heap.
+ *         The cache is split into PAGE_SIZE pages of direct slabs that are allocated once, when first
+ *         needed, up to -Dsftp.server.fileCacheSize bytes, 0 by default which turns it off. A cached
+ *         file only holds the numbers of its pages, so the heap doesn't grow with the cached bytes and
+ *         evicting a file frees no buffer. Eviction is a segmented LRU: files enter a probation segment
+ *         and move to the protected segment, at most PROTECTED_SHARE of the pages, when they are sent
+ *         again. Files evicted from protected go back to probation and files are evicted from probation
+ *         first, so a scan over many files sent once doesn't push out the files that are sent over and
+ *         over. A file is only copied into the cache when it is missed a second time, files that are sent
+ *         once are never copied. Files bigger than -Dsftp.server.fileCacheMaxFile bytes are never cached.
+ *         A cached file is dropped when the FileSystem changes it, and ignored when its size or
+ *         modification time differ
+ */
+final class FileCache implements CacheStatistics {
+
+    static final int PAGE_SIZE = 16 * 1024;
+
+    private static final int PAGES_PER_SLAB = 256;
+    private static final double PROTECTED_SHARE = 0.8;
+    // Pages written to a socket with one gathering write
+    private static final int PAGES_PER_WRITE = 64;
+    private static final int DOORKEEPER_SIZE = 4096;
+
+    private static final FileCache _shared = new FileCache(
+            Long.getLong("sftp.server.fileCacheSize", 0),
+            Long.getLong("sftp.server.fileCacheMaxFile", 1024L * 1024));
+
+    private final int _maxPages;
+    private final int _maxProtectedPages;
+    private final long _maxFileSize;
+    private final ByteBuffer[] _slabs;
+    // Freed pages, pages from _nextPage on were never handed out
+    private final int[] _freePages;
+    private int _freeCount;
+    private int _nextPage;
+
+    private final LinkedHashMap<Path, Entry> _probation;
+    private final LinkedHashMap<Path, Entry> _protected;
+    // Files missed once, least recently missed first
+    private final LinkedHashMap<Path, Boolean> _doorkeeper;
+    private int _protectedPages;
+    private long _cachedBytes;
+
+    private final LongAdder _hits, _misses, _evictions;
+
+    /**
+     * @detail Constructor for a cache
+     * @param maxBytes Bytes of file contents the cache holds at most, 0 turns it off
+     * @param maxFileSize Bytes of the biggest file that is cached
+     */
+    private FileCache(long maxBytes, long maxFileSize) {
+        this._maxPages = (int) Math.min(Integer.MAX_VALUE - PAGES_PER_SLAB, Math.max(0, maxBytes / PAGE_SIZE));
+        this._maxProtectedPages = (int) (_maxPages * PROTECTED_SHARE);
+        // A file has to fit in probation next to the files already there
+        this._maxFileSize = Math.min(maxFileSize, (long) (_maxPages - _maxProtectedPages) * PAGE_SIZE / 2);
+        this._slabs = new ByteBuffer[(_maxPages + PAGES_PER_SLAB - 1) / PAGES_PER_SLAB];
+        this._freePages = new int[_maxPages];
+        this._probation = new LinkedHashMap<>(16, 0.75f, true);
+        this._protected = new LinkedHashMap<>(16, 0.75f, true);
+        this._doorkeeper = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Boolean> eldest) {
+                return size() > DOORKEEPER_SIZE;
+            }
+        };
+        this._hits = new LongAdder();
+        this._misses = new LongAdder();
+        this._evictions = new LongAdder();
+    }
+
+    static FileCache getInstance() {
+        return _shared;
+    }
+
+    /**
+     * @detail Reports if files are cached, which -Dsftp.server.fileCacheSize turns on
+     * @return
+     */
+    static boolean isEnabled() {
+        return _shared._maxPages > 0;
+    }
+
+    /**
+     * @detail Returns an opener that sends cached files from the cache and caches the other files
+     *         it opens through fileOpener
+     * @param fileOpener Opens files that are not cached
+     * @return fileOpener itself if the cache is turned off
+     */
+    FileOpener cached(FileOpener fileOpener) {
+
+        if (!isEnabled()) {
+            return fileOpener;
+        }
+
+        return file -> open(file, fileOpener);
+    }
+
+    /**
+     * @detail Opens a cached file, or opens it with fileOpener and copies it into the cache first
+     * @param file File to be sent
+     * @param fileOpener Opens the file if it isn't cached
+     * @return Channel over the cached pages, or the channel fileOpener returned if the file can't be cached
+     * @throws IOException
+     */
+    private FileChannel open(File file, FileOpener fileOpener) throws IOException {
+        Path key = file.toPath().toAbsolutePath().normalize();
+        BasicFileAttributes attributes;
+
+        try {
+            attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return fileOpener.open(file);
+        }
+
+        long fileLength = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        Entry entry = acquire(key, fileLength, lastModified);
+
+        if (entry != null) {
+            _hits.increment();
+            return new CachedFileChannel(entry);
+        }
+
+        _misses.increment();
+
+        FileChannel fileChannel = fileOpener.open(file);
+        long size = fileChannel.size();
+
+        if (size > _maxFileSize || !admit(key)) {
+            return fileChannel;
+        }
+
+        entry = reserve(key, size, fileLength, lastModified);
+
+        if (entry == null) {
+            return fileChannel;
+        }
+
+        boolean isLoaded;
+
+        try {
+            isLoaded = load(entry, fileChannel);
+        } catch (IOException e) {
+            release(entry);
+            fileChannel.close();
+            throw e;
+        }
+
+        // The file stays uncached if it can't be read whole or changes while it is read
+        if (!isLoaded || file.length() != fileLength || file.lastModified() != lastModified) {
+            release(entry);
+            return fileChannel;
+        }
+
+        fileChannel.close();
+        insert(entry);
+
+        return new CachedFileChannel(entry);
+    }
+
+    /**
+     * @detail Finds a cached file and keeps its pages till its channel is closed. A file found in
+     *         probation moves to protected, which may move the least recently sent protected files back
+     * @return null if the file isn't cached or was changed since
+     */
+    private synchronized Entry acquire(Path key, long fileLength, long lastModified) {
+        Entry entry = _protected.get(key);
+
+        if (entry == null) {
+            entry = _probation.get(key);
+
+            if (entry == null) {
+                return null;
+            }
+        }
+
+        if (entry._fileLength != fileLength || entry._lastModified != lastModified) {
+            remove(entry);
+            return null;
+        }
+
+        if (!entry._isProtected) {
+            _probation.remove(key);
+            _protected.put(key, entry);
+            entry._isProtected = true;
+            _protectedPages += entry._pages.length;
+
+            Iterator<Entry> eldest = _protected.values().iterator();
+
+            while (_protectedPages > _maxProtectedPages && eldest.hasNext()) {
+                Entry demoted = eldest.next();
+
+                if (demoted != entry) {
+                    eldest.remove();
+                    demoted._isProtected = false;
+                    _protectedPages -= demoted._pages.length;
+                    _probation.put(demoted._key, demoted);
+                }
+            }
+        }
+
+        entry._references++;
+        return entry;
+    }
+
+    /**
+     * @detail Decides if a missed file is copied into the cache, which it is when it was missed before
+     *         and is still one of the last DOORKEEPER_SIZE missed files
+     */
+    private synchronized boolean admit(Path key) {
+        return _doorkeeper.remove(key) != null || _doorkeeper.put(key, Boolean.TRUE) != null;
+    }
+
+    /**
+     * @detail Takes the pages for a file, evicting probation before protected files if none are free.
+     *         Files that are being sent keep their pages till their channels close, so they are never
+     *         evicted, and nothing is evicted unless the other files free enough pages
+     * @return Entry that isn't cached yet and is referenced once, null if not enough pages can be freed
+     */
+    private synchronized Entry reserve(Path key, long size, long fileLength, long lastModified) {
+        int pageCount = (int) ((size + PAGE_SIZE - 1) / PAGE_SIZE);
+        int available = _freeCount + _maxPages - _nextPage;
+        ArrayList<Entry> victims = new ArrayList<>();
+
+        for (Map<Path, Entry> segment : List.of(_probation, _protected)) {
+            Iterator<Entry> eldest = segment.values().iterator();
+
+            while (available < pageCount && eldest.hasNext()) {
+                Entry entry = eldest.next();
+
+                if (entry._references == 0) {
+                    victims.add(entry);
+                    available += entry._pages.length;
+                }
+            }
+        }
+
+        if (available < pageCount) {
+            return null;
+        }
+
+        for (Entry victim : victims) {
+            remove(victim);
+            _evictions.increment();
+        }
+
+        int[] pages = new int[pageCount];
+
+        for (int i = 0; i < pageCount; i++) {
+            pages[i] = _freeCount > 0 ? _freePages[--_freeCount] : newPage();
+        }
+
+        Entry entry = new Entry(key, pages, size, fileLength, lastModified);
+        entry._references = 1;
+
+        return entry;
+    }
+
+    /**
+     * @detail Hands out a page that was never used, allocating its slab with the first of its pages
+     */
+    private int newPage() {
+        int page = _nextPage++;
+        int slab = page / PAGES_PER_SLAB;
+
+        if (_slabs[slab] == null) {
+            int pages = Math.min(PAGES_PER_SLAB, _maxPages - slab * PAGES_PER_SLAB);
+            _slabs[slab] = ByteBuffer.allocateDirect(pages * PAGE_SIZE);
+        }
+
+        return page;
+    }
+
+    /**
+     * @detail Copies a file into the pages of its entry
+     * @return false if the file is shorter than when the entry was reserved
+     * @throws IOException
+     */
+    private boolean load(Entry entry, FileChannel fileChannel) throws IOException {
+        long position = 0;
+
+        while (position < entry._size) {
+            ByteBuffer page = getPage(entry, position);
+
+            while (page.hasRemaining()) {
+                int read = fileChannel.read(page, position);
+
+                if (read == -1) {
+                    return false;
+                }
+
+                position += read;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @detail Caches a loaded file in probation, replacing an older copy
+     */
+    private synchronized void insert(Entry entry) {
+        Entry previous = _protected.get(entry._key);
+
+        if (previous == null) {
+            previous = _probation.get(entry._key);
+        }
+
+        if (previous != null) {
+            remove(previous);
+        }
+
+        _probation.put(entry._key, entry);
+        entry._isInserted = true;
+        _cachedBytes += entry._size;
+    }
+
+    /**
+     * @detail Drops a file the FileSystem overwrote, appended to, renamed or deleted
+     * @param path
+     */
+    synchronized void invalidate(Path path) {
+        Path key = path.toAbsolutePath().normalize();
+        Entry entry = _protected.get(key);
+
+        if (entry == null) {
+            entry = _probation.get(key);
+        }
+
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+
+    /**
+     * @detail Drops every file under a directory the FileSystem renamed or deleted
+     * @param dir
+     */
+    synchronized void invalidateTree(Path dir) {
+        Path prefix = dir.toAbsolutePath().normalize();
+        ArrayList<Entry> entries = new ArrayList<>();
+
+        for (Map<Path, Entry> segment : List.of(_probation, _protected)) {
+
+            for (Entry entry : segment.values()) {
+
+                if (entry._key.startsWith(prefix)) {
+                    entries.add(entry);
+                }
+            }
+        }
+
+        entries.forEach(this::remove);
+    }
+
+    /**
+     * @detail Removes a cached file, its pages are freed once no channel reads them
+     */
+    private void remove(Entry entry) {
+
+        if (entry._isProtected) {
+            _protected.remove(entry._key);
+            _protectedPages -= entry._pages.length;
+        } else {
+            _probation.remove(entry._key);
+        }
+
+        _cachedBytes -= entry._size;
+        entry._isRemoved = true;
+
+        if (entry._references == 0) {
+            freePages(entry);
+        }
+    }
+
+    /**
+     * @detail Ends one reference to an entry, e.g. when its channel is closed
+     */
+    private synchronized void release(Entry entry) {
+        entry._references--;
+
+        // Entries that were never inserted are only referenced by the one loading them
+        if (entry._references == 0 && (entry._isRemoved || !entry._isInserted)) {
+            freePages(entry);
+        }
+    }
+
+    private void freePages(Entry entry) {
+
+        for (int page : entry._pages) {
+            _freePages[_freeCount++] = page;
+        }
+    }
+
+    /**
+     * @detail Returns a buffer over the rest of the page that holds position, up to the end of the file.
+     *         Pages are only written while they are reserved, so they are read without holding the lock
+     */
+    private ByteBuffer getPage(Entry entry, long position) {
+        int page = entry._pages[(int) (position / PAGE_SIZE)];
+        int start = (page % PAGES_PER_SLAB) * PAGE_SIZE + (int) (position % PAGE_SIZE);
+        int length = (int) Math.min(PAGE_SIZE - position % PAGE_SIZE, entry._size - position);
+        ByteBuffer buffer = _slabs[page / PAGES_PER_SLAB].duplicate();
+
+        buffer.limit(start + length).position(start);
+
+        return buffer;
+    }
+
+    @Override
+    public long getHits() {
+        return _hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return _misses.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return _evictions.sum();
+    }
+
+    @Override
+    public synchronized long getCachedBytes() {
+        return _cachedBytes;
+    }
+
+    /**
+     * @detail One cached file. Its size and modification time are those of the file on disk,
+     *         which is a manifest for files kept in the ChunkStore
+     */
+    private static final class Entry {
+
+        private final Path _key;
+        private final int[] _pages;
+        private final long _size;
+        private final long _fileLength;
+        private final long _lastModified;
+        private int _references;
+        private boolean _isInserted;
+        private boolean _isProtected;
+        private boolean _isRemoved;
+
+        Entry(Path key, int[] pages, long size, long fileLength, long lastModified) {
+            this._key = key;
+            this._pages = pages;
+            this._size = size;
+            this._fileLength = fileLength;
+            this._lastModified = lastModified;
+        }
+    }
+
+    /**
+     * @detail Read-only channel over the pages of a cached file, so it is sent like any other file.
+     *         transferTo writes the pages straight from the slabs. The channel can't be mapped or written.
+     *         Consecutive pages of a slab are read through one view, and the views and the array they
+     *         are gathered in are kept for the whole transfer, so sending a file doesn't allocate per page
+     */
+    private final class CachedFileChannel extends FileChannel {
+
+        private final Entry _entry;
+        private final ByteBuffer[] _views = new ByteBuffer[PAGES_PER_WRITE];
+        // Slab each view is a duplicate of
+        private final int[] _viewSlabs = new int[PAGES_PER_WRITE];
+        private long _position;
+
+        CachedFileChannel(Entry entry) {
+            this._entry = entry;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            int read = read(dst, _position);
+
+            if (read > 0) {
+                _position += read;
+            }
+
+            return read;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) {
+            long total = 0;
+
+            for (int i = offset; i < offset + length; i++) {
+
+                while (dsts[i].hasRemaining()) {
+                    int read = read(dsts[i]);
+
+                    if (read <= 0) {
+                        return total == 0 ? read : total;
+                    }
+
+                    total += read;
+                }
+            }
+
+            return total;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) {
+
+            if (position >= _entry._size) {
+                return -1;
+            }
+
+            int read = 0;
+
+            while (dst.hasRemaining() && position + read < _entry._size) {
+                ByteBuffer run = getRun(0, position + read, Math.min(_entry._size, position + read + dst.remaining()));
+
+                read += run.remaining();
+                dst.put(run);
+            }
+
+            return read;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            long end = Math.min(_entry._size, position + count);
+            long first = position;
+
+            while (position < end) {
+                long writeEnd = Math.min(end, position + (long) PAGES_PER_WRITE * PAGE_SIZE);
+                int runCount = 0;
+                long requested = 0;
+
+                while (runCount < _views.length && position + requested < writeEnd) {
+                    ByteBuffer run = getRun(runCount++, position + requested, writeEnd);
+                    requested += run.remaining();
+                }
+
+                long written;
+
+                if (target instanceof GatheringByteChannel) {
+                    written = ((GatheringByteChannel) target).write(_views, 0, runCount);
+                } else {
+                    requested = _views[0].remaining();
+                    written = target.write(_views[0]);
+                }
+
+                position += written;
+
+                // A non-blocking target is full, the caller waits till it is writable
+                if (written < requested) {
+                    break;
+                }
+            }
+
+            return position - first;
+        }
+
+        /**
+         * @detail Points the view in slot at the bytes from position on that lie in consecutive pages
+         *         of one slab, up to end. A slot's view is only replaced when it reads another slab
+         */
+        private ByteBuffer getRun(int slot, long position, long end) {
+            int first = (int) (position / PAGE_SIZE);
+            int page = _entry._pages[first];
+            int slab = page / PAGES_PER_SLAB;
+            int last = first;
+
+            while ((long) (last + 1) * PAGE_SIZE < end
+                    && _entry._pages[last + 1] == page + last + 1 - first
+                    && (page + last + 1 - first) / PAGES_PER_SLAB == slab) {
+                last++;
+            }
+
+            int start = (page % PAGES_PER_SLAB) * PAGE_SIZE + (int) (position % PAGE_SIZE);
+            int length = (int) Math.min((long) (last + 1) * PAGE_SIZE - position, end - position);
+            ByteBuffer view = _views[slot];
+
+            if (view == null || _viewSlabs[slot] != slab) {
+                view = _slabs[slab].duplicate();
+                _views[slot] = view;
+                _viewSlabs[slot] = slab;
+            }
+
+            view.clear();
+            view.limit(start + length).position(start);
+
+            return view;
+        }
+
+        @Override
+        public long position() {
+            return _position;
+        }
+
+        @Override
+        public FileChannel position(long newPosition) {
+            _position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return _entry._size;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public FileChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public void force(boolean metaData) {
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) {
+            throw new UnsupportedOperationException("Cached files can't be mapped");
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException("Cached files can't be locked");
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException("Cached files can't be locked");
+        }
+
+        @Override
+        protected void implCloseChannel() {
+            release(_entry);
+        }
+    }
+}
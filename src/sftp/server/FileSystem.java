@@ -1,24 +1,47 @@
 package sftp.server;
 
+import sftp.ContainerEntry;
+import sftp.Delta;
+import sftp.PositionalOutputStream;
+import sftp.SFTP;
+import sftp.TransferChecksum;
+
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.nio.file.attribute.FileTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class FileSystem {
 
-    private File _rootDir, _baseDir, _currentDir;
+    private static final Set<Path> _uploadsInProgress = ConcurrentHashMap.newKeySet();
+
+    private static final DateTimeFormatter LIST_DATE_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss dd/MM/yyyy").withZone(ZoneId.systemDefault());
+
+    private File _rootDir, _baseDir, _currentDir, _stagingDir;
     private File _fileToSend;
     private String _fileToRename;
     private String _currSTOR;
-    private final long newFileLimit;
+    private String _fileToResume;
     private final long fileSizeLimit;
 
     /**
@@ -29,85 +52,144 @@ public class FileSystem {
         this._rootDir = new File(System.getProperty("user.dir") + "/resources/");
         this._baseDir = new File(_rootDir.toString() + "/" + baseDir);
         this._currentDir = new File(_baseDir.toString());
-        this.newFileLimit = 10000;
-        this.fileSizeLimit = 50;
+        this._stagingDir = new File(_rootDir.toString() + "/sftp.staging");
+        this.fileSizeLimit = Long.getLong("sftp.server.fileSizeLimit", 50);
+    }
+
+    /**
+     * @detail Scans the text and other folders once, so the STOR NEW generations of every file
+     *         are known before the first upload
+     * @param baseDir
+     */
+    static void recoverGenerations(String baseDir){
+        String base = System.getProperty("user.dir") + "/resources/" + baseDir;
+
+        GenerationAllocator.forDirectory(Paths.get(base + "/text/"));
+        GenerationAllocator.forDirectory(Paths.get(base + "/other/"));
+    }
+
+    /**
+     * @detail Counts which stored chunks the manifests in the server file system refer to,
+     *         if uploads are stored as chunks
+     * @param baseDir
+     */
+    static void recoverChunks(String baseDir){
+
+        if(ChunkStore.isEnabled()){
+            ChunkStore.getInstance().recover(Paths.get(System.getProperty("user.dir") + "/resources/" + baseDir));
+        }
     }
 
     /**
      * @detail If verbose mode (V) is selected it displays:
      *          -> Time of Creation
-     *          -> Last accessed
      *          -> Last modified
+     *         The last accessed time isn't shown, reads change it without an event that
+     *         would drop cached rows
+     *         Entries are streamed to the client as they are read, so memory use doesn't grow
+     *         with the directory. A page ends with "+Next <cursor>" if more entries follow.
+     *         Only full listings are served from and added to the DirectoryCache
      * @param dir  Specific directory's contents to list
      * @param mode F for standard formatted directory listing
      *             and V for verbose directory listing
-     * @return
+     * @param pageSize Maximum number of directory entries per page, 0 for all
+     * @param cursor Number of directory entries to skip, the cursor returned with the previous page
+     * @param out Writer for the response
+     * @throws IOException if the response can't be written
      */
-    String listDir(String dir, String mode){
-       String response;
-       Path path = Paths.get(_currentDir + "/" + dir);
-       File[] contentList = new File(_currentDir + "/" + dir).listFiles();
-       StringBuilder contents = new StringBuilder();
-
-       if(contentList == null){
-           contents.append("-Invalid Directory");
-       }else{
-           contents.append("\r\n+Contents");
-
-           if(mode.equals("F")){
-
-               for(File file : contentList){
+    void listDir(String dir, String mode, int pageSize, long cursor, Writer out) throws IOException {
+        Path path = Paths.get(_currentDir + "/" + dir);
+        boolean isFullListing = pageSize == 0 && cursor == 0;
+        String[] rows = isFullListing ? DirectoryCache.getInstance().getRows(path, mode) : null;
+
+        if(rows == null && !Files.isDirectory(path)){
+            out.write("-Invalid Directory\r\n\r\n");
+            return;
+        }
 
-                   if(file.isDirectory()){
-                       contents.append("\r\n    " + file.getName() + '/');
-                   }else if(file.isFile()){
-                       contents.append("\r\n    " + file.getName());
-                   }
+        out.write("\r\n+Contents\r\n");
 
-               }
+        if(rows != null){
 
-           }else if(mode.equals("V")){
+            for(String row : rows){
+                out.write(row);
+                out.write("\r\n");
+            }
 
-               BasicFileAttributes dateInfo;
-               String createdAt, lastAccessed, lastModified;
+        }else{
+            DirectoryCache.RowCollector collector = isFullListing ? DirectoryCache.getInstance().collect(path, mode) : null;
+            long index = 0;
+            long written = 0;
 
-               DateFormat date = new SimpleDateFormat("HH:mm:ss dd/MM/yyyy");
+            try(DirectoryStream<Path> entries = Files.newDirectoryStream(path)){
 
-               for(File file : contentList){
-                   try {
-                       dateInfo = Files.readAttributes(Paths.get(file.getPath()), BasicFileAttributes.class);
+                for(Path entry : entries){
 
-                       if(file.isDirectory()){
-                           contents.append("\r\n    " + file.getName() + "/ ");
-                       }else if(file.isFile()){
-                           contents.append("\r\n    " + file.getName() + "  ");
-                       }
+                    // The cursor counts directory entries, so skipping needs no attributes
+                    if(index++ < cursor){
+                        continue;
+                    }
 
-                       createdAt = " created time: " + date.format(dateInfo.creationTime().toMillis());
-                       lastAccessed= " last accessed time: " + date.format(dateInfo.lastAccessTime().toMillis());
-                       lastModified = " last modified time: " + date.format(dateInfo.lastModifiedTime().toMillis());
+                    if(pageSize > 0 && written == pageSize){
+                        out.write("+Next " + (index - 1) + "\r\n");
+                        break;
+                    }
 
-                       contents.append(createdAt + lastAccessed + lastModified);
+                    String row = formatRow(entry, mode);
 
+                    if(row != null){
+                        out.write(row);
+                        out.write("\r\n");
 
-                   } catch (IOException e) {
-                       e.printStackTrace();
-                   }
+                        if(collector != null){
+                            collector.add(row);
+                        }
+                    }
 
-               }
+                    written++;
+                }
 
+                if(collector != null){
+                    collector.finish();
+                }
 
-           }
+            }catch (IOException | DirectoryIteratorException e){
+                System.out.printf("Exception %s, listing of %s ended early\n", e, path);
+            }
+        }
 
+        out.write("\r\n");
+    }
 
-       }
+    /**
+     * @detail Formats the LIST row of one folder or file. Attributes are read once per entry
+     * @param entry
+     * @param mode F or V
+     * @return null if entry is neither a folder nor a file or can't be read
+     */
+    private static String formatRow(Path entry, String mode){
+        BasicFileAttributes attributes;
 
-       contents.append("\r\n");
+        try{
+            attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+        }catch (IOException e){
+            e.printStackTrace();
+            return null;
+        }
 
-       response = contents.toString();
+        if(!attributes.isDirectory() && !attributes.isRegularFile()){
+            return null;
+        }
 
-       return response;
+        String name = entry.getFileName().toString();
 
+        if(mode.equals("V")){
+            return "    " + name + (attributes.isDirectory() ? "/ " : "  ")
+                    + " created time: " + LIST_DATE_FORMAT.format(attributes.creationTime().toInstant())
+                    + " last modified time: " + LIST_DATE_FORMAT.format(attributes.lastModifiedTime().toInstant());
+        }else{
+            return "    " + name + (attributes.isDirectory() ? "/" : "");
+        }
     }
 
     /**
@@ -214,7 +296,19 @@ public class FileSystem {
             File oldFile = new File(_currentDir + "/" + _fileToRename);
             File renamedFile = new File(_currentDir + "/" + newFileName);
 
+            boolean isFile = oldFile.isFile();
+
             if(oldFile.renameTo(renamedFile)){
+                ChecksumStore.getInstance().move(oldFile, renamedFile);
+
+                if(isFile){
+                    FileCache.getInstance().invalidate(oldFile.toPath());
+                    FileCache.getInstance().invalidate(renamedFile.toPath());
+                }else{
+                    FileCache.getInstance().invalidateTree(oldFile.toPath());
+                }
+
+                DirectoryCache.getInstance().invalidateEntry(renamedFile.toPath());
                 response = "+" + oldFile.getPath() + " renamed to " + renamedFile.getPath();
                 _fileToRename = null;
             }else{
@@ -240,8 +334,19 @@ public class FileSystem {
         if(Files.exists(filePath)){
 
             File fileToDelete = new File(filePath.toString());
+            boolean isFile = fileToDelete.isFile();
 
-            if(fileToDelete.delete()){
+            if(deleteStoredFile(fileToDelete)){
+
+                if(isFile){
+                    ChecksumStore.getInstance().invalidate(filePath);
+                    FileCache.getInstance().invalidate(filePath);
+                }else{
+                    ChecksumStore.getInstance().invalidateTree(filePath);
+                    FileCache.getInstance().invalidateTree(filePath);
+                }
+
+                DirectoryCache.getInstance().invalidateEntry(filePath);
                 response = "+" + fileToDelete.getName() + " deleted";
             }else{
                 response = "-Not deleted because deleting process failed";
@@ -255,6 +360,60 @@ public class FileSystem {
         return response;
     }
 
+    /**
+     * @detail Deletes a file, releasing its chunks if it is a manifest
+     * @param file
+     * @return
+     */
+    private static boolean deleteStoredFile(File file){
+
+        if(!ChunkStore.isEnabled() || file.isDirectory()){
+            return file.delete();
+        }
+
+        try{
+            ChunkStore.getInstance().delete(file.toPath());
+            return true;
+        }catch (IOException e){
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * @detail Returns the number of bytes of a file, for a manifest those of the file it stands for
+     * @param file
+     * @return
+     */
+    static long getStoredSize(File file){
+
+        if(!ChunkStore.isEnabled()){
+            return file.length();
+        }
+
+        try{
+            return ChunkStore.getInstance().size(file.toPath());
+        }catch (IOException e){
+            e.printStackTrace();
+            return file.length();
+        }
+    }
+
+    /**
+     * @detail Opens a file for reading, a manifest through the chunks of the file it stands for
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    private static FileChannel openStoredFile(File file) throws IOException {
+
+        if(ChunkStore.isEnabled()){
+            return ChunkStore.getInstance().open(file);
+        }
+
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
     /**
      * @detail Returns fileSize and keeps a record of the file to be sent
      * @param fileName
@@ -265,7 +424,7 @@ public class FileSystem {
 
         if(checkFileExists(fileName, false)){
             File file = new File(_currentDir + "/" + fileName);
-            long fileSizeInBytes = file.length();
+            long fileSizeInBytes = getStoredSize(file);
             response = String.valueOf(fileSizeInBytes);
             _fileToSend = file;
 
@@ -371,109 +530,730 @@ public class FileSystem {
     }
 
     /**
-     * @detail Conducts an overwrite, new file creating or append
-     * @param fileBytes File in bytes from a client
+     * @detail Reports how many bytes of an interrupted upload are staged and lets the next
+     *         STOR of the same file continue from there instead of from byte 0
      * @param fileName Name of the file
+     * @param userName User the staged upload belongs to
      * @return
      */
-    String processSTORSequence(byte[] fileBytes, String fileName){
-        String response="";
-        boolean doesFileExist;
+    String getResumeOffset(String fileName, String userName){
+        String response;
+        Path partFile = getStagingPath(fileName, userName);
+
+        try{
+            long offset = 0;
+
+            if(Files.exists(partFile)){
+                offset = Files.size(partFile);
+            }
+
+            _fileToResume = fileName;
+            response = "+" + offset + " bytes of " + fileName + " received";
+
+        }catch (IOException e){
+            _fileToResume = null;
+            response = "-Couldn't check staged upload because " + e;
+        }
+
+        return response;
+    }
 
-        doesFileExist = checkFileExists(fileName, true);
+    /**
+     * @detail Completes a STOR without receiving the file if the client announced the SHA-256 of a
+     *         file the ChunkStore already holds. The file is published from the stored chunks
+     * @param fileName Name of the file
+     * @param fileSize Number of bytes announced by the client with SIZE
+     * @param fileHash SHA-256 of the file announced with SIZE
+     * @param userName User the staged upload belongs to
+     * @return Response of the saved file, null if the client has to send the file
+     */
+    String processKnownSTOR(String fileName, long fileSize, String fileHash, String userName){
+
+        if(!ChunkStore.isEnabled()){
+            return null;
+        }
+
+        try{
+            Path manifest = ChunkStore.getInstance().stageKnownFile(fileHash, fileSize, Paths.get(_stagingDir + "/" + userName));
+
+            if(manifest == null){
+                return null;
+            }
+
+            String response = publishUpload(manifest, fileName, _currSTOR);
+            _currSTOR = "IDLE";
+
+            return response;
+
+        }catch (IOException e){
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @detail Conducts an overwrite, new file creating or append.
+     *         File bytes are streamed from the client into a staged part file first, which is kept
+     *         if the connection drops. Only a complete upload of exactly fileSize bytes is
+     *         published under its final name
+     * @param sftp sftp.SFTP instance of the session the file is received on
+     * @param fileName Name of the file
+     * @param fileSize Number of bytes announced by the client with SIZE
+     * @param userName User the staged upload belongs to
+     * @return
+     */
+    String processSTORSequence(SFTP sftp, String fileName, long fileSize, String userName){
+        return processSTORSequence(sftp, fileName, fileSize, userName, -1, null);
+    }
+
+    /**
+     * @detail Conducts a STOR like processSTORSequence and gives a new or overwritten file the
+     *         modification time it had on the client
+     * @param lastModified milliseconds since the epoch, -1 to keep the time of the upload
+     */
+    String processSTORSequence(SFTP sftp, String fileName, long fileSize, String userName, long lastModified){
+        return processSTORSequence(sftp, fileName, fileSize, userName, lastModified, null);
+    }
+
+    /**
+     * @detail Conducts a STOR like processSTORSequence. A file received whole is checked against the
+     *         SHA-256 the client announced and has the checksum computed while it arrived recorded
+     *         and added to the response
+     * @param lastModified milliseconds since the epoch, -1 to keep the time of the upload
+     * @param fileHash SHA-256 announced with SIZE, null if none was
+     */
+    String processSTORSequence(SFTP sftp, String fileName, long fileSize, String userName, long lastModified, String fileHash){
+        String response="";
+        Path stagingPath = getStagingPath(fileName, userName);
+        Path partFile = stagingPath;
+        boolean isResumable = _uploadsInProgress.add(stagingPath);
+        long offset = 0;
 
         try {
+            Files.createDirectories(partFile.getParent());
 
-            if(!doesFileExist){
-                Path path;
+            // Another upload of the same file by the same user owns the resumable part file
+            if(!isResumable){
+                partFile = Files.createTempFile(partFile.getParent(), fileName, ".part");
+            }
 
-                if(fileName.contains(".txt")){
-                    path = Paths.get(_baseDir + "/text/" + fileName);
-                }else{
-                    path = Paths.get(_baseDir + "/other/" + fileName);
+            if(isResumable && fileName.equals(_fileToResume) && Files.exists(partFile) && Files.size(partFile) <= fileSize){
+                offset = Files.size(partFile);
+            }
+
+            _fileToResume = null;
+
+            receiveFile(sftp, partFile, fileSize - offset, offset > 0);
+
+            if(Files.size(partFile) != fileSize){
+                return "-Couldn't save because " + Files.size(partFile) + " of " + fileSize + " bytes were received";
+            }
+
+            // A resumed upload was only checksummed from where it resumed
+            String checksum = offset == 0 ? sftp.getLastChecksum() : null;
+
+            if(checksum != null && fileHash != null && !TransferChecksum.matches(checksum, TransferChecksum.SHA256 + ' ' + fileHash)){
+                Files.delete(partFile);
+                return "-Couldn't save because the file arrived damaged, send it again";
+            }
+
+            if(lastModified >= 0){
+                Files.setLastModifiedTime(partFile, FileTime.fromMillis(lastModified));
+            }
+
+            response = publishUpload(partFile, fileName, _currSTOR, checksum);
+
+            _currSTOR = "IDLE";
+
+        } catch (Exception e) {
+            response = " -Couldn't save because " + e;
+            e.printStackTrace();
+
+        } finally {
+
+            if(isResumable){
+                _uploadsInProgress.remove(stagingPath);
+            }else{
+
+                try{
+                    Files.deleteIfExists(partFile);
+                }catch (IOException e){
+                    e.printStackTrace();
                 }
+            }
+        }
+
+
+        return response;
+    }
+
+    /**
+     * @detail Moves a completely received part file to where a STOR of mode puts it:
+     *         a new file, a new generation, over the old file or appended to it
+     * @param partFile Staged file holding every byte of the upload
+     * @param fileName Name of the file
+     * @param mode NEW, OLD, APP or IDLE if no STOR operation was specified
+     * @return
+     * @throws IOException
+     */
+    private String publishUpload(Path partFile, String fileName, String mode) throws IOException {
+        return publishUpload(partFile, fileName, mode, null);
+    }
+
+    /**
+     * @detail Publishes a part file like publishUpload. The checksum of a new, new generation or
+     *         overwritten file is recorded and added to the response
+     * @param checksum Checksum of the part file computed while it was received, null if none is known
+     */
+    private String publishUpload(Path partFile, String fileName, String mode, String checksum) throws IOException {
+        String response = "";
+        Path published = null;
+        Path newPath = getOverwritePath(fileName);
+
+        // Manifests are linked like part files
+        if(ChunkStore.isEnabled()){
+            partFile = ChunkStore.getInstance().stage(partFile);
+        }
+
+        // Of concurrent uploads of a new name only the one that links it saves it as new,
+        // the others find the file existing and follow their mode
+        if(linkNewFile(partFile, newPath)){
+            published = newPath;
+            response = "+Saved " + newPath;
+
+        }else{
+
+                switch(mode){
+
+                    case "IDLE":
+                        discardPart(partFile);
+                        response = "-Couldn't save because STOR operation was not specified";
+
+                        break;
+
+                    case "NEW":
+                        Path generation;
+
+                        if(fileName.contains(".txt")){
+                            generation = GenerationAllocator.forDirectory(Paths.get(_baseDir + "/text/")).link(fileName, partFile);
+                        }else{
+                            generation = GenerationAllocator.forDirectory(Paths.get(_baseDir + "/other/")).link(fileName, partFile);
+                        }
+
+                        finishLink(partFile, generation);
+                        published = generation;
+                        response = "+Saved " + generation;
+
+                        break;
+
+                    case "OLD":
+                        Path path;
+
+                        if(fileName.contains(".txt")){
+                            path = Paths.get(_baseDir + "/text/" + fileName);
+
+                        }else{
+                            path = Paths.get(_baseDir + "/other/" + fileName);
+                        }
 
-                Files.write(path, fileBytes);
-                response = "+Saved " + path;
+                        publishFile(partFile, path);
+                        published = path;
+                        response = "+Saved " + path;
 
+                        break;
+
+                    case "APP":
+
+                        if(fileName.contains(".txt")){
+                            File fileToAppend = new File(_baseDir + "/text/" + fileName);
+                            appendFile(partFile, fileToAppend.toPath());
+                            response = "+Saved " + fileToAppend.getPath();
+
+                        }else{
+                            discardPart(partFile);
+                            response = " -Couldn't save because file is not of text type";
+                        }
+
+                        break;
+
+            }
+
+        }
+
+        if(published != null && checksum != null){
+            ChecksumStore.getInstance().put(published.toFile(), checksum);
+            response += ", " + checksum;
+        }
+
+        return response;
+    }
+
+    /**
+     * @detail Streams every regular file in the current directory that matches a glob to the client
+     *         in one container stream, reading each file only while it is sent
+     * @param sftp sftp.SFTP instance of the session the files are sent on
+     * @param glob Pattern such as *.txt, as accepted by Files.newDirectoryStream
+     * @return Response sent after the container
+     */
+    String sendBatch(SFTP sftp, String glob){
+        int sentFiles = 0;
+        long sentBytes = 0;
+
+        try(DirectoryStream<Path> entries = Files.newDirectoryStream(_currentDir.toPath(), glob)){
+            sftp.writeToOutputStream("+Sending files matching " + glob);
+
+            try{
+
+                for(Path entry : entries){
+
+                    if(Files.isRegularFile(entry) && sftp.writeContainerEntry(entry.toFile())){
+                        sentFiles++;
+                        sentBytes += getStoredSize(entry.toFile());
+                    }
+                }
+
+            }catch (DirectoryIteratorException e){
+                System.out.printf("Exception %s, batch of %s ended early\n", e, glob);
+            }
+
+            sftp.writeContainerEnd();
+
+        }catch (IllegalArgumentException e){
+            return "-Invalid pattern " + glob;
+        }catch (IOException e){
+            return "-Couldn't read directory because " + e;
+        }
+
+        return "+Sent " + sentFiles + " files, " + sentBytes + " bytes";
+    }
+
+    /**
+     * @detail Receives the files of a container stream one by one, each stored like a STOR of
+     *         the given mode through the staged part file. Files that are too large or have
+     *         unsafe names are skipped without storing them
+     * @param sftp sftp.SFTP instance of the session the files are received on
+     * @param mode NEW, OLD or APP as for STOR
+     * @param userName User the staged uploads belong to
+     * @return Response with the number of files saved and the reason every other file was not
+     * @throws IOException if the container stream broke off, then the session is closed
+     */
+    String receiveBatch(SFTP sftp, String mode, String userName) throws IOException {
+        StringBuilder failures = new StringBuilder();
+        int savedFiles = 0, receivedFiles = 0;
+        ContainerEntry entry;
+
+        while((entry = sftp.readContainerEntry()) != null){
+            String response;
+            receivedFiles++;
+
+            if(!entry.isSafeName()){
+                sftp.readInputStreamToStream(OutputStream.nullOutputStream(), entry.getSize());
+                response = "-Invalid file name";
             }else{
+                setFileOperation(entry.getName(), mode);
+                response = checkFreeSpaceForSTOR(entry.getSize());
 
-                    switch(_currSTOR){
+                if(response.startsWith("+")){
+                    response = processSTORSequence(sftp, entry.getName(), entry.getSize(), userName, entry.getLastModified());
+                }else{
+                    sftp.readInputStreamToStream(OutputStream.nullOutputStream(), entry.getSize());
+                }
+            }
 
-                        case "IDLE":
-                            response = "-Couldn't save because STOR operation was not specified";
+            if(response.startsWith("+")){
+                savedFiles++;
+            }else{
+                failures.append("\r\n    ").append(entry.getName()).append(' ').append(response.strip());
+            }
+        }
 
-                            break;
+        _currSTOR = "IDLE";
 
-                        case "NEW":
-                            String pathName;
+        return (savedFiles == receivedFiles ? "+" : "-") + "Saved " + savedFiles + " of " + receivedFiles + " files" + failures;
+    }
 
-                            if(fileName.contains(".txt")){
-                                pathName = _baseDir + "/text/";
-                            }else{
-                                pathName = _baseDir + "/other/";
-                            }
+    /**
+     * @detail Starts a file upload in byte ranges that may arrive over several connections
+     * @param fileName Name of the file
+     * @param mode NEW, OLD or APP as for STOR
+     * @param fileSize Size of the complete file
+     * @param userName User the ranges must be sent by
+     * @return Response with the assembly id the ranges are sent for
+     */
+    String createAssembly(String fileName, String mode, long fileSize, String userName){
 
-                            response = "-Couldn't save because file limit of duplicate files was reached";
+        if(fileSize <= 0){
+            return "-Size is invalid";
+        }else if(fileSizeLimit <= fileSize){
+            return "-Not enough room, don't send it";
+        }
 
-                            for(int i = 0; i < newFileLimit; i++){
+        try{
+            RangeAssembly assembly = RangeAssembly.create(Paths.get(_stagingDir + "/" + userName), userName, fileName, mode, fileSize);
+            return "+Assembly " + assembly.getId();
+        }catch (IOException e){
+            return "-Couldn't start upload because " + e;
+        }
+    }
 
-                                doesFileExist = checkFileExists("new_" + i + '_' + fileName, true);
+    /**
+     * @detail Receives one byte range of an assembly and writes it at its position in the part file.
+     *         The range that completes the file publishes it like a STOR of the assembly's mode
+     * @param sftp sftp.SFTP instance of the session the range is received on
+     * @param assemblyId Id returned by createAssembly
+     * @param offset First byte of the range
+     * @param length Number of bytes in the range
+     * @param userName User that started the assembly
+     * @return Final response for the range, sent after its bytes
+     */
+    String receiveRange(SFTP sftp, String assemblyId, long offset, long length, String userName){
+        RangeAssembly assembly = RangeAssembly.get(assemblyId, userName);
+        PositionalOutputStream range;
+        boolean isComplete;
+
+        if(assembly == null){
+            return "-No upload with id " + assemblyId;
+        }else if(length <= 0 || offset > assembly.getSize() - length){
+            return "-Range outside of file";
+        }
 
-                                if(!doesFileExist){
-                                    Path path = Paths.get(pathName + "new_" + i + '_' + fileName);
-                                    Files.write(path, fileBytes);
-                                    response = "+Saved " + path.toString();
-                                    break;
-                                }
+        range = assembly.openRange(offset);
+        sftp.writeToOutputStream("+ok, waiting for range");
 
-                            }
+        try{
+            sftp.readInputStreamToStream(range, length);
+        }catch (IOException e){
+            e.printStackTrace();
+        }finally {
+            isComplete = assembly.closeRange(offset, range.getPosition() - offset);
+        }
 
-                            break;
+        if(range.getPosition() - offset != length){
+            return "-Couldn't save range because " + (range.getPosition() - offset) + " of " + length + " bytes were received";
+        }else if(!isComplete){
+            return "+Range received, " + assembly.getReceivedBytes() + " of " + assembly.getSize() + " bytes";
+        }
 
-                        case "OLD":
-                            Path path;
+        try{
+            return publishUpload(assembly.finish(), assembly.getFileName(), assembly.getMode());
+        }catch (IOException e){
+            assembly.abandon();
+            return "-Couldn't save because " + e;
+        }
+    }
 
-                            if(fileName.contains(".txt")){
-                                path = Paths.get(_baseDir + "/text/" + fileName);
+    /**
+     * @detail Sends the block signatures of the file a STOR OLD of fileName would overwrite,
+     *         so the client only has to send the changes with DPUT. The signatures are written to
+     *         the user's staging directory first, their size is sent before them
+     * @param sftp sftp.SFTP instance of the session the signatures are sent on
+     * @param fileName
+     * @param userName User whose staging directory holds the signatures while they are sent
+     * @return Response if no signatures were sent, null once they were
+     */
+    String sendSignatures(SFTP sftp, String fileName, String userName){
+        Path signatures = null;
 
-                            }else{
-                                path = Paths.get(_baseDir + "/other/" + fileName);
-                            }
+        if(!checkFileExists(fileName, true)){
+            return "-No copy of " + fileName + " on the server, send it with STOR OLD";
+        }
 
-                            Files.write(path, fileBytes);
-                            response = "+Saved " + path;
+        try{
+            Path stagingDir = Paths.get(_stagingDir + "/" + userName);
+            Files.createDirectories(stagingDir);
+            signatures = Files.createTempFile(stagingDir, fileName, ".sig");
+
+            try(FileChannel base = openStoredFile(getOverwritePath(fileName).toFile());
+                OutputStream os = Files.newOutputStream(signatures)){
+                Delta.writeSignatures(base, os);
+            }
 
-                            break;
+            sftp.writeToOutputStream("+Signatures " + Files.size(signatures) + " bytes");
+            sftp.writeToOutputStream(signatures.toFile());
 
-                        case "APP":
+            return null;
 
-                            if(fileName.contains(".txt")){
-                                File fileToAppend = new File(_baseDir + "/text/" + fileName);
-                                OutputStream os = new FileOutputStream(fileToAppend, true);
-                                os.write(fileBytes, 0, fileBytes.length);
-                                os.close();
-                                response = "+Saved " + fileToAppend.getPath();
+        }catch (IOException e){
+            e.printStackTrace();
+            return "-Couldn't read " + fileName + " because " + e;
 
-                            }else{
-                                response = " -Couldn't save because file is not of text type";
-                            }
+        }finally {
 
-                            break;
+            try{
 
+                if(signatures != null){
+                    Files.deleteIfExists(signatures);
                 }
 
+            }catch (IOException e){
+                e.printStackTrace();
             }
+        }
+    }
 
-            _currSTOR = "IDLE";
+    /**
+     * @detail Rebuilds a file from the server's copy and a delta received from the client, then
+     *         publishes it over the old file like a STOR OLD. The rebuilt file is staged first and only
+     *         published if it has the length and SHA-256 the client announced
+     * @param sftp sftp.SFTP instance of the session the delta is received on
+     * @param fileName
+     * @param deltaLength Number of bytes of the delta
+     * @param fileLength Number of bytes of the rebuilt file
+     * @param fileHash SHA-256 of the rebuilt file
+     * @param userName User the staged file belongs to
+     * @return Final response, sent after the delta
+     */
+    String receiveDelta(SFTP sftp, String fileName, long deltaLength, long fileLength, String fileHash, String userName){
+        Path partFile = null;
+        String failure;
+
+        if(fileSizeLimit <= fileLength){
+            return "-Not enough room, don't send it";
+        }else if(!checkFileExists(fileName, true)){
+            return "-No copy of " + fileName + " on the server, send it with STOR OLD";
+        }
 
-        } catch (Exception e) {
-            response = " -Couldn't save because " + e;
+        try{
+            Path stagingDir = Paths.get(_stagingDir + "/" + userName);
+            Files.createDirectories(stagingDir);
+            partFile = Files.createTempFile(stagingDir, fileName, ".part");
+
+            try(FileChannel base = openStoredFile(getOverwritePath(fileName).toFile());
+                OutputStream os = new BufferedOutputStream(Files.newOutputStream(partFile))){
+                Delta.Applier applier = new Delta.Applier(base, os, fileLength);
+
+                sftp.writeToOutputStream("+ok, waiting for delta");
+                sftp.readInputStreamToStream(applier, deltaLength);
+                failure = applier.finish(fileHash);
+            }
+
+            if(failure != null){
+                return "-Couldn't save because " + failure + ", send it with STOR OLD";
+            }
+
+            String response = publishUpload(partFile, fileName, "OLD");
+            partFile = null;
+
+            return response;
+
+        }catch (IOException e){
             e.printStackTrace();
+            return "-Couldn't save because " + e;
+
+        }finally {
+
+            try{
+
+                if(partFile != null){
+                    Files.deleteIfExists(partFile);
+                }
+
+            }catch (IOException e){
+                e.printStackTrace();
+            }
         }
+    }
 
+    /**
+     * @detail Returns the checksum of a file in the current directory. A recorded checksum is returned
+     *         without reading the file, otherwise the file is read once and its checksum recorded
+     * @param fileName
+     * @return
+     */
+    String getChecksum(String fileName){
+        File file = new File(_currentDir + "/" + fileName);
+        String checksum;
 
-        return response;
+        if(!file.isFile()){
+            return "-File doesn't exist";
+        }
+
+        long size = getStoredSize(file);
+        long lastModified = file.lastModified();
+        checksum = ChecksumStore.getInstance().get(file, size, lastModified);
+
+        if(checksum != null && TransferChecksum.isComplete(checksum)){
+            return "+" + checksum;
+        }
+
+        TransferChecksum computed = TransferChecksum.create();
+
+        if(computed == null){
+            return "-Checksums are turned off";
+        }
+
+        try(FileChannel channel = openStoredFile(file)){
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+            while(channel.read(buffer) != -1){
+                buffer.flip();
+                computed.update(buffer);
+                buffer.clear();
+            }
+
+        }catch (IOException e){
+            return "-Couldn't read " + fileName + " because " + e;
+        }
+
+        checksum = computed.getValue();
+        ChecksumStore.getInstance().put(file, size, lastModified, checksum);
+
+        return "+" + checksum;
+    }
+
+    /**
+     * @detail Returns the file a STOR OLD of fileName overwrites
+     * @param fileName
+     * @return
+     */
+    private Path getOverwritePath(String fileName){
+
+        if(fileName.contains(".txt")){
+            return Paths.get(_baseDir + "/text/" + fileName);
+        }
+
+        return Paths.get(_baseDir + "/other/" + fileName);
+    }
+
+    /**
+     * @detail Publishes a complete part file, or staged manifest, under a name nothing is published under.
+     *         Linking it there fails if the name exists, so only one upload gets a name and readers see
+     *         no file or the whole upload, never an empty or partial one
+     * @param partFile
+     * @param path
+     * @return false if the file exists, the part file is left as it is
+     * @throws IOException if the directory can't be written
+     */
+    private boolean linkNewFile(Path partFile, Path path) throws IOException {
+
+        try{
+            Files.createLink(path, partFile);
+        }catch (FileAlreadyExistsException e){
+            return false;
+        }
+
+        finishLink(partFile, path);
+        return true;
+    }
+
+    /**
+     * @detail Removes the staged name of a part file that was linked under its final name
+     * @param partFile
+     * @param path
+     * @throws IOException
+     */
+    private void finishLink(Path partFile, Path path) throws IOException {
+        Files.delete(partFile);
+
+        ChecksumStore.getInstance().invalidate(path);
+        FileCache.getInstance().invalidate(path);
+        DirectoryCache.getInstance().invalidateEntry(path);
+    }
+
+    /**
+     * @detail Returns the staged part file of an upload, kept per user and file name
+     * @param fileName
+     * @param userName
+     * @return
+     */
+    private Path getStagingPath(String fileName, String userName){
+        return Paths.get(_stagingDir + "/" + userName + "/" + fileName + ".part");
+    }
+
+    /**
+     * @detail Moves a complete part file to its final name, atomically where the file system allows it
+     * @param partFile
+     * @param path
+     * @throws IOException
+     */
+    private void publishFile(Path partFile, Path path) throws IOException {
+
+        if(ChunkStore.isEnabled()){
+            ChunkStore.getInstance().publish(partFile, path);
+            ChecksumStore.getInstance().invalidate(path);
+            FileCache.getInstance().invalidate(path);
+            DirectoryCache.getInstance().invalidateEntry(path);
+            return;
+        }
+
+        try{
+            Files.move(partFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }catch (AtomicMoveNotSupportedException e){
+            Files.move(partFile, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        ChecksumStore.getInstance().invalidate(path);
+        FileCache.getInstance().invalidate(path);
+        DirectoryCache.getInstance().invalidateEntry(path);
+    }
+
+    /**
+     * @detail Appends a complete part file to an existing file and removes the part file
+     * @param partFile
+     * @param path
+     * @throws IOException
+     */
+    private void appendFile(Path partFile, Path path) throws IOException {
+
+        if(ChunkStore.isEnabled()){
+            ChunkStore.getInstance().append(partFile, path);
+            ChecksumStore.getInstance().invalidate(path);
+            FileCache.getInstance().invalidate(path);
+            DirectoryCache.getInstance().invalidateEntry(path);
+            return;
+        }
+
+        try(OutputStream os = new FileOutputStream(path.toFile(), true)){
+            Files.copy(partFile, os);
+        }
+
+        ChecksumStore.getInstance().invalidate(path);
+        FileCache.getInstance().invalidate(path);
+        DirectoryCache.getInstance().invalidateEntry(path);
+
+        Files.delete(partFile);
+    }
+
+    /**
+     * @detail Deletes a staged upload that won't be published
+     * @param partFile
+     * @throws IOException
+     */
+    private void discardPart(Path partFile) throws IOException {
+
+        if(ChunkStore.isEnabled()){
+            ChunkStore.getInstance().discard(partFile);
+        }else{
+            Files.delete(partFile);
+        }
+    }
+
+    /**
+     * @detail Streams fileSize bytes from the client into a file. Files bigger than one upload buffer
+     *         are written through an UploadPipeline, so the socket is read while the disk writes
+     * @param sftp sftp.SFTP instance of the session the file is received on
+     * @param path File to write
+     * @param fileSize Number of bytes to receive
+     * @param isAppend Appends to the file if true else overwrites it
+     * @throws IOException
+     */
+    private void receiveFile(SFTP sftp, Path path, long fileSize, boolean isAppend) throws IOException {
+
+        if(fileSize <= UploadPipeline.BUFFER_SIZE){
+
+            try(OutputStream os = new FileOutputStream(path.toFile(), isAppend)){
+                sftp.readInputStreamToStream(os, fileSize);
+            }
+
+            return;
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                isAppend ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+
+        try(OutputStream os = new UploadPipeline(channel)){
+            sftp.readInputStreamToStream(os, fileSize);
+        }
     }
 
     /**
@@ -0,0 +1,91 @@
+package sftp.server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @detail Hands out new_<i>_<name> generations for STOR NEW. Keeps the next generation of every
+ *         name in one directory, recovered by a single scan of the directory, and claims each name
+ *         by linking the upload there so concurrent uploads never get the same generation.
+ */
+final class GenerationAllocator {
+
+    private static final Pattern GENERATION_NAME = Pattern.compile("new_(\\d{1,18})_(.+)");
+    private static final Map<Path, GenerationAllocator> _allocators = new ConcurrentHashMap<>();
+
+    private final Path _dir;
+    private final Map<String, AtomicLong> _nextGenerations;
+
+    private GenerationAllocator(Path dir) {
+        this._dir = dir;
+        this._nextGenerations = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @detail Returns the allocator of a directory, scanning the directory the first time
+     * @param dir
+     * @return
+     */
+    static GenerationAllocator forDirectory(Path dir) {
+        return _allocators.computeIfAbsent(dir.toAbsolutePath().normalize(), GenerationAllocator::scan);
+    }
+
+    /**
+     * @detail Reads the highest existing generation of every name in a directory
+     */
+    private static GenerationAllocator scan(Path dir) {
+        GenerationAllocator allocator = new GenerationAllocator(dir);
+
+        if (Files.isDirectory(dir)) {
+
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "new_*")) {
+
+                for (Path entry : entries) {
+                    Matcher matcher = GENERATION_NAME.matcher(entry.getFileName().toString());
+
+                    if (matcher.matches()) {
+                        long next = Long.parseLong(matcher.group(1)) + 1;
+                        allocator._nextGenerations.computeIfAbsent(matcher.group(2), name -> new AtomicLong())
+                                .accumulateAndGet(next, Math::max);
+                    }
+                }
+
+            } catch (IOException e) {
+                System.out.printf("Exception %s, generations in %s will be found by probing\n", e, dir);
+            }
+        }
+
+        return allocator;
+    }
+
+    /**
+     * @detail Publishes a file under the next free generation of a name by linking it there.
+     *         Linking fails if the name exists, so concurrent uploads never get the same generation
+     *         and the generation holds the whole file from the moment it appears
+     * @param fileName Name without the new_<i>_ prefix
+     * @param file Complete file to publish, the caller removes it once it is linked
+     * @return Path of the generation
+     * @throws IOException if the directory can't be written
+     */
+    Path link(String fileName, Path file) throws IOException {
+        AtomicLong nextGeneration = _nextGenerations.computeIfAbsent(fileName, name -> new AtomicLong());
+
+        while (true) {
+            Path path = _dir.resolve("new_" + nextGeneration.getAndIncrement() + '_' + fileName);
+
+            try {
+                return Files.createLink(path, file);
+            } catch (FileAlreadyExistsException e) {
+                // Created outside the server since the scan, try the next generation
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package sftp.server;
+
+import sftp.PositionalOutputStream;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @detail A file uploaded in byte ranges over several connections (PSTR and PPUT).
+ *         Every range is written at its position into one staged part file, the file is only
+ *         published once the received ranges cover all of it. Assemblies are shared by all
+ *         sessions and found by their id, those not written to for a while are abandoned.
+ *         Bytes of a range that broke off are kept, so sending the range again completes it.
+ */
+final class RangeAssembly {
+
+    private static final Map<String, RangeAssembly> _assemblies = new ConcurrentHashMap<>();
+    private static final long IDLE_MILLIS = Long.getLong("sftp.server.assemblyTimeout", 600) * 1000;
+
+    private final String _id;
+    private final String _userName;
+    private final String _fileName;
+    private final String _mode;
+    private final long _size;
+    private final Path _partFile;
+    private final FileChannel _channel;
+    // Start of every received run of bytes mapped to its end, runs never overlap or touch
+    private final TreeMap<Long, Long> _received;
+    private long _receivedBytes;
+    private boolean _isComplete;
+    private int _activeRanges;
+    private volatile long _lastUsed;
+
+    private RangeAssembly(String id, String userName, String fileName, String mode, long size, Path partFile, FileChannel channel) {
+        this._id = id;
+        this._userName = userName;
+        this._fileName = fileName;
+        this._mode = mode;
+        this._size = size;
+        this._partFile = partFile;
+        this._channel = channel;
+        this._received = new TreeMap<>();
+        this._lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * @detail Starts an assembly in a new part file of the given size
+     * @param stagingDir Directory the part file is created in
+     * @param userName User the ranges must be sent by
+     * @param fileName Name the file is published under
+     * @param mode NEW, OLD or APP as for STOR
+     * @param size Size of the complete file
+     * @return
+     * @throws IOException if the part file can't be created
+     */
+    static RangeAssembly create(Path stagingDir, String userName, String fileName, String mode, long size) throws IOException {
+        expireIdle();
+
+        String id = UUID.randomUUID().toString().replace("-", "");
+        Path partFile = Files.createDirectories(stagingDir).resolve(fileName + '.' + id + ".part");
+        FileChannel channel = FileChannel.open(partFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        RangeAssembly assembly = new RangeAssembly(id, userName, fileName, mode, size, partFile, channel);
+
+        _assemblies.put(id, assembly);
+
+        return assembly;
+    }
+
+    /**
+     * @detail Finds an assembly that was started by a user
+     * @param id
+     * @param userName
+     * @return null if there is none
+     */
+    static RangeAssembly get(String id, String userName) {
+        RangeAssembly assembly = _assemblies.get(id);
+
+        if (assembly == null || !assembly._userName.equals(userName)) {
+            return null;
+        }
+
+        assembly._lastUsed = System.currentTimeMillis();
+        return assembly;
+    }
+
+    /**
+     * @detail Deletes the part files of assemblies that no range was written to for the assembly timeout
+     */
+    private static void expireIdle() {
+        long now = System.currentTimeMillis();
+
+        for (RangeAssembly assembly : _assemblies.values()) {
+
+            if (!assembly.isActive() && now - assembly._lastUsed > IDLE_MILLIS) {
+                assembly.abandon();
+            }
+        }
+    }
+
+    String getId() {
+        return _id;
+    }
+
+    String getFileName() {
+        return _fileName;
+    }
+
+    String getMode() {
+        return _mode;
+    }
+
+    long getSize() {
+        return _size;
+    }
+
+    /**
+     * @detail Opens a stream that writes a range from offset onwards. Every range opened
+     *         must be closed with closeRange
+     * @param offset
+     * @return
+     */
+    synchronized PositionalOutputStream openRange(long offset) {
+        _activeRanges++;
+        return new PositionalOutputStream(_channel, offset);
+    }
+
+    private synchronized boolean isActive() {
+        return _activeRanges > 0;
+    }
+
+    /**
+     * @detail Records the bytes written to a range and merges them with their neighbours
+     * @param offset First byte of the range
+     * @param length Number of bytes written from offset, fewer than requested if the range broke off
+     * @return true for the one call that completes the file, then it can be published
+     */
+    synchronized boolean closeRange(long offset, long length) {
+        _activeRanges--;
+        _lastUsed = System.currentTimeMillis();
+
+        if (length <= 0) {
+            return false;
+        }
+
+        long start = offset, end = offset + length;
+        Map.Entry<Long, Long> neighbour = _received.floorEntry(start);
+
+        if (neighbour != null && neighbour.getValue() >= start) {
+            start = neighbour.getKey();
+            end = Math.max(end, neighbour.getValue());
+            _receivedBytes -= neighbour.getValue() - neighbour.getKey();
+            _received.remove(neighbour.getKey());
+        }
+
+        while ((neighbour = _received.ceilingEntry(start)) != null && neighbour.getKey() <= end) {
+            end = Math.max(end, neighbour.getValue());
+            _receivedBytes -= neighbour.getValue() - neighbour.getKey();
+            _received.remove(neighbour.getKey());
+        }
+
+        _received.put(start, end);
+        _receivedBytes += end - start;
+
+        if (_receivedBytes == _size && !_isComplete) {
+            _isComplete = true;
+            return true;
+        }
+
+        return false;
+    }
+
+    synchronized long getReceivedBytes() {
+        return _receivedBytes;
+    }
+
+    /**
+     * @detail Ends a complete assembly, the caller publishes the returned part file
+     * @return
+     * @throws IOException if the part file can't be closed
+     */
+    Path finish() throws IOException {
+        _assemblies.remove(_id);
+        _channel.close();
+        return _partFile;
+    }
+
+    /**
+     * @detail Ends an assembly without publishing it and deletes its part file
+     */
+    void abandon() {
+        _assemblies.remove(_id);
+
+        try {
+            _channel.close();
+            Files.deleteIfExists(_partFile);
+        } catch (IOException e) {
+            System.out.printf("Exception %s, error removing %s\n", e, _partFile);
+        }
+    }
+}
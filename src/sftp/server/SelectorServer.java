@@ -0,0 +1,175 @@
+package sftp.server;
+
+import sftp.SFTP;
+import sftp.server.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * @detail Event driven server engine. Connections are spread over a few I/O threads, each with its
+ *         own Selector, which only read command lines. Commands, including FileSystem operations,
+ *         are processed on a fixed disk executor, so idle sessions cost a SelectionKey and a small
+ *         command buffer instead of a thread. Transfers and listings wait on their client, so they
+ *         run on a transfer executor that grows with them and stalled clients can't hold up the
+ *         commands of other sessions.
+ */
+class SelectorServer implements Runnable {
+
+    private final ServerSocketChannel _welcomeChannel;
+    private final IOLoop[] _ioLoops;
+    private final ExecutorService _diskExecutor;
+    private final ExecutorService _transferExecutor;
+    private final Semaphore _sessionPermits;
+    private final ServerMetrics _metrics;
+    private final String _localHost;
+    private final boolean _outToLunch;
+    private final boolean _isBypassLogin;
+    private int _nextLoop;
+
+    /**
+     * @detail Constructor for the Selector engine
+     * @param welcomeChannel Bound ServerSocketChannel in blocking mode
+     * @param ioThreads Number of I/O threads reading commands
+     * @param diskThreads Number of threads processing commands that don't stream data
+     * @param sessionPermits One permit per allowed simultaneous session
+     * @param metrics Metrics every Session records to
+     * @param localHost Host name used in responses
+     * @param outToLunch Every client is turned away if true
+     * @param isBypassLogin Login Process is skipped for all commands if true
+     */
+    SelectorServer(ServerSocketChannel welcomeChannel, int ioThreads, int diskThreads, Semaphore sessionPermits,
+                   ServerMetrics metrics, String localHost, boolean outToLunch, boolean isBypassLogin) throws IOException {
+        this._welcomeChannel = welcomeChannel;
+        this._ioLoops = new IOLoop[ioThreads];
+        this._diskExecutor = Executors.newFixedThreadPool(diskThreads, runnable -> newDaemonThread(runnable, "sftp-disk"));
+        this._transferExecutor = Executors.newCachedThreadPool(runnable -> newDaemonThread(() -> {
+            try {
+                runnable.run();
+            } finally {
+                ChannelSFTP.closeWaitSelector();
+            }
+        }, "sftp-transfer"));
+        this._sessionPermits = sessionPermits;
+        this._metrics = metrics;
+        this._localHost = localHost;
+        this._outToLunch = outToLunch;
+        this._isBypassLogin = isBypassLogin;
+
+        for (int i = 0; i < ioThreads; i++) {
+            _ioLoops[i] = new IOLoop(Selector.open());
+            Thread ioThread = new Thread(_ioLoops[i], "sftp-io-" + i);
+            ioThread.setDaemon(true);
+            ioThread.start();
+        }
+    }
+
+    /**
+     * @detail Accepts clients and assigns each to an I/O thread in turn.
+     *         Clients are turned away with (-) if Out To Lunch is true or no session permit is left
+     */
+    @Override
+    public void run() {
+
+        while (_welcomeChannel.isOpen()) {
+
+            try {
+                SocketChannel channel = _welcomeChannel.accept();
+                System.out.printf("Listening to Client at INetAddress: %s, connectionSocketPort: %s\n", channel.socket().getInetAddress(), channel.socket().getPort());
+
+                if (_outToLunch || !_sessionPermits.tryAcquire()) {
+                    SFTP sftp = new SFTP(channel.socket(), false);
+                    sftp.writeToOutputStream('-' + _localHost + ' ' + "Out to Lunch");
+                    sftp.terminateSession();
+                } else {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    ChannelSFTP sftp = new ChannelSFTP(channel, _diskExecutor, _transferExecutor, _sessionPermits::release);
+                    Session session = new Session(sftp, _localHost, _isBypassLogin, _metrics);
+
+                    _ioLoops[_nextLoop].register(sftp, session);
+                    _nextLoop = (_nextLoop + 1) % _ioLoops.length;
+                }
+
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static Thread newDaemonThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * @detail Selector loop of one I/O thread
+     */
+    private static class IOLoop implements Runnable {
+
+        private final Selector _selector;
+        private final Queue<Runnable> _pendingRegistrations;
+
+        IOLoop(Selector selector) {
+            this._selector = selector;
+            this._pendingRegistrations = new ConcurrentLinkedQueue<>();
+        }
+
+        /**
+         * @detail Registers a connection on this loop's thread, as registering while it selects would block
+         */
+        void register(ChannelSFTP sftp, Session session) {
+            _pendingRegistrations.add(() -> {
+                try {
+                    sftp.register(_selector, session);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    sftp.terminateSession();
+                }
+            });
+            _selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+
+            while (_selector.isOpen()) {
+
+                try {
+                    _selector.select();
+
+                    Runnable registration;
+
+                    while ((registration = _pendingRegistrations.poll()) != null) {
+                        registration.run();
+                    }
+
+                    Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        if (key.isValid() && key.isReadable()) {
+                            ((ChannelSFTP) key.attachment()).onReadable();
+                        }
+                    }
+
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
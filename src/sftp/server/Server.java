@@ -1,43 +1,47 @@
 package sftp.server;
 
 import sftp.SFTP;
-import sftp.server.credentials.CredentialsManager;
+import sftp.server.credentials.UserDirectory;
+import sftp.server.metrics.ServerMetrics;
 
-import java.io.File;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.util.ArrayList;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class Server {
 
-    private static SFTP _sftp;
     private static Integer _port;
     private static ServerSocket _welcomeSocket;
-    private static Boolean _isListening, _isConnected;
     private static Boolean _outToLunch;
     private static String _localHost;
-    private static CredentialsManager _credentialsManager;
     private static Logger _LOGGER = Logger.getLogger(Server.class.getName());
-    private static FileSystem _fileSystemHandle;
     private static boolean _isBypassLogin;
-    private static byte[] _fileBytesToReceive;
-    private static String _fileNameToReceive;
+    private static int _maxSessions;
+    private static Semaphore _sessionPermits;
+    private static ExecutorService _sessionPool;
+    private static String _engine;
+    private static ServerMetrics _metrics;
 
 
     /**
      * @detail Blocks till a sftp.client is accepted.
-     *         If Out To Lunch is true
+     *         If Out To Lunch is true or the maximum number of sessions is reached
      *              -> Client receives (-) response and the connection is closed
      *         Else
-     *              -> Client receives (+) response and can send further commands
      *              -> Creates a sftp.SFTP instance for the new Connection Socket
-     *              -> Creates a sftp.server.credentials.CredentialsManager instance for managing login process
-     *              -> Creates a sftp.server.FileSystem instance for file operations
+     *              -> Hands a new sftp.server.Session to the session pool which
+     *                 greets the client and serves its commands concurrently
      *
      *         If BypassLogin is true
      *              -> Login Process is skipped for all commands
@@ -45,36 +49,36 @@ public class Server {
     private static void acceptClient() {
         String response;
         Socket connectionSocket;
+        SFTP sftp;
 
         try {
             connectionSocket = _welcomeSocket.accept();
-            _sftp = new SFTP(connectionSocket, false);
-            _localHost = InetAddress.getLocalHost().toString();
+            sftp = new SFTP(connectionSocket, false);
             System.out.printf("Listening to Client at INetAddress: %s, connectionSocketPort: %s\n", connectionSocket.getInetAddress(), connectionSocket.getPort());
 
-            if (_outToLunch) {
+            if (_outToLunch || !_sessionPermits.tryAcquire()) {
                 response = '-' + _localHost + ' ' + "Out to Lunch";
-                _sftp.writeToOutputStream(response);
-                _sftp.terminateSession();
-                _isConnected = false;
+                sftp.writeToOutputStream(response);
+                sftp.terminateSession();
             } else {
-                response = '+' + _localHost + ' ' + "SFTP Service";
-                _credentialsManager = new CredentialsManager();
-
-                if (_isBypassLogin) {
-                    _credentialsManager.setIsBypass(_isBypassLogin);
-                    _LOGGER.info("BYPASS Login Mode\n");
+                Session session = new Session(sftp, _localHost, _isBypassLogin, _metrics);
+
+                try {
+                    _sessionPool.execute(() -> {
+                        try {
+                            session.run();
+                        } finally {
+                            _sessionPermits.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    _sessionPermits.release();
+                    sftp.terminateSession();
+                    e.printStackTrace();
                 }
-
-                _credentialsManager.loadUsers();
-                _sftp.writeToOutputStream(response);
-                _isConnected = true;
             }
 
-            _isListening = true;
-
         } catch (IOException e) {
-            response = '-' + _localHost + ' ' + "Error with SFTP Service";
             e.printStackTrace();
         }
 
@@ -85,7 +89,7 @@ public class Server {
      * @param request
      * @return If client request can be processed
      */
-    private static boolean isValidRequestFormat(String request[]) {
+    static boolean isValidRequestFormat(String request[]) {
 
         String cmd = null;
         boolean isValid = true;
@@ -172,13 +176,21 @@ public class Server {
 
                     break;
 
-                case "SIZE":
+                case "REST":
                     if (request.length != 2) {
                         isValid = false;
                     }
 
                     break;
 
+                case "SIZE":
+                    // An optional SHA-256 of the file lets the server skip receiving content it holds
+                    if (request.length != 2 && (request.length != 3 || !request[2].matches("[0-9a-f]{64}"))) {
+                        isValid = false;
+                    }
+
+                    break;
+
                 case "PASS":
                     if (request.length != 2) {
                         isValid = false;
@@ -186,10 +198,14 @@ public class Server {
                     break;
 
                 case "LIST":
-                    if (request.length != 2 && request.length != 3) {
+                    if (request.length < 2 || request.length > 5) {
                         isValid = false;
                     } else if (!request[1].equals("F") && !request[1].equals("V")) {
                         isValid = false;
+                    } else if (request.length > 3 && !request[3].matches("\\d{1,9}")) {
+                        isValid = false;
+                    } else if (request.length > 4 && !request[4].matches("\\d{1,18}")) {
+                        isValid = false;
                     }
                     break;
 
@@ -199,511 +215,139 @@ public class Server {
                     }
                     break;
 
-                default:
-                    isValid = false;
+                case "STAT":
+                    if (request.length > 1) {
+                        isValid = false;
+                    }
                     break;
-            }
-
-        } else {
-            isValid = false;
-        }
-
-        return isValid;
-    }
-
-    /**
-     * @detail Calls one of the handleX commands if the client request was in the correct format.
-     *         User must be the first command else it will respond demanding a user-id.
-     *         Commands after that might require logging in to be processed.
-     */
-    private static void processClientRequest() {
-
-        String[] request;
-        String message;
-
-        try {
-            message = _sftp.readInputStreamAsString();
-
-            if(message.isEmpty()){
-                request = null;
-
-            }else{
-                String cmd = null;
-                ArrayList<String> args = new ArrayList<>();
-                boolean isValid;
-
-                request = message.split(" ");
-
-                isValid = isValidRequestFormat(request);
-
-                if (isValid) {
-                    cmd = request[0];
-
-                    if (cmd.equals("USER")) {
-                        args.add(request[1]);
-                        handleUSER(args.get(0));
-                    } else {
-
-                        if (_credentialsManager.isCurrentUserSelected()) {
-
-                            switch (cmd) {
-
-                                case "ACCT":
-                                    args.add(request[1]);
-                                    handleACCT(args.get(0));
-
-                                    break;
-
-                                case "CDIR":
-                                    args.add(request[1]);
-                                    handleCDIR(args.get(0));
-
-                                    break;
-
-                                case "PASS":
-                                    args.add(request[1]);
-                                    handlePASS(args.get(0));
-
-                                    break;
-
-                                case "NAME":
-                                    args.add(request[1]);
-                                    handleNAME(args.get(0));
-
-                                    break;
-
-                                case "TOBE":
-                                    args.add(request[1]);
-                                    handleTOBE(args.get(0));
-
-                                    break;
-
-                                case "TYPE":
-                                    args.add(request[1]);
-                                    handleTYPE(args.get(0));
-
-                                    break;
-
-                                case "KILL":
-                                    args.add(request[1]);
-                                    handleKILL(args.get(0));
-
-                                    break;
-
-                                case "RETR":
-                                    args.add(request[1]);
-                                    handleRETR(args.get(0));
-
-                                    break;
-
-                                case "SEND":
-                                    handleSEND();
-
-                                    break;
-
-                                case "SIZE":
-                                    args.add(request[1]);
-                                    handleSIZE(args.get(0));
-
-                                    break;
-
-                                case "STOP":
-                                    handleSTOP();
-
-                                    break;
-
-                                case "STOR":
-                                    for (int i = 1; i < request.length; i++) {
-                                        args.add(request[i]);
-                                    }
-
-                                    handleSTOR(args);
-
-                                    break;
-
-                                case "LIST":
-                                    for (int i = 1; i < request.length; i++) {
-                                        args.add(request[i]);
-                                    }
-
-                                    handleLIST(args);
-
-                                    break;
-
-                                case "DONE":
-                                    handleDONE();
-
-                                    break;
-                            }
-
-                        } else {
-                            _sftp.writeToOutputStream("-No User-id selected");
-                        }
 
+                case "VERS":
+                    if (request.length != 2) {
+                        isValid = false;
                     }
+                    break;
 
-                } else {
-                    _sftp.writeToOutputStream("-Invalid command");
-                }
-
-            }
-
-        } catch (IOException e) {
-            request = null;
-            _isConnected = false;
-            e.printStackTrace();
-        }
-
-    }
-
-    /**
-     * @detail Sets Transfer Type in sftp instance
-     * @param type
-     */
-    private static void handleTYPE(String type) {
-        String response;
-
-
-        if(_credentialsManager.isAUserLoggedIn()) {
-
-
-           response = _sftp.setTransmissionType(type);
-
-        }else{
-
-            _fileNameToReceive = null;
-            response = "- No Login found";
-
-        }
-
-        _sftp.writeToOutputStream(response);
-    }
-
-    /**
-     * @detail Works only if a user is logged in.
-     *         Checks if free space is available in the server for storing files from client.
-     *         If free space exists:
-     *              -> Attempts to retrieve file byte array from client via sftp instance
-     *              -> Passes byte array to file system for continuing STOR sequence
-     *              -> Returns response on whether it was successful.
-     *         Else:
-     *              -> Quits STOR sequence.
-     * @param fileSize
-     */
-    private static void handleSIZE(String fileSize) {
-        String response;
-
-
-        if(_credentialsManager.isAUserLoggedIn()) {
-
-            try{
-
-                int clientFilesize = Integer.parseUnsignedInt(fileSize);
-                response = _fileSystemHandle.checkFreeSpaceForSTOR(clientFilesize);
-                _sftp.writeToOutputStream(response);
-
-                if(response.contains("-")){
-                    _fileNameToReceive = null;
-                }
-
-                if(_fileNameToReceive != null){
-                    _fileBytesToReceive = _sftp.readInputStreamAsBytes(clientFilesize);
-                    response = _fileSystemHandle.processSTORSequence(_fileBytesToReceive, _fileNameToReceive);
-                    _sftp.writeToOutputStream(response);
-                    _fileNameToReceive = null;
-                    _fileBytesToReceive = null;
-
-                }
-
-            }catch (NumberFormatException e){
-                response = "-Size is invalid";
-                _sftp.writeToOutputStream(response);
-                e.printStackTrace();
-            }
-
-        }else{
-
-            _fileNameToReceive = null;
-            response = "- No Login found";
-            _sftp.writeToOutputStream(response);
-
-        }
-
-    }
-
-    /**
-     * @detail Works only if a user is logged in.
-     *         Quits RETR sequence if Client determines that free space is not available for the selected file
-     */
-    private static void handleSTOP() {
-        String response;
-
-        if(_credentialsManager.isAUserLoggedIn()){
-
-            response = _fileSystemHandle.cancelSend();
-
-        }else{
-
-            response = "- No Login found";
-        }
+                case "MGET":
+                    if (request.length != 2) {
+                        isValid = false;
+                    }
+                    break;
 
-        _sftp.writeToOutputStream(response);
-    }
+                case "MPUT":
+                    if (request.length != 2) {
+                        isValid = false;
+                    } else if (!request[1].equals("NEW") && !request[1].equals("OLD") && !request[1].equals("APP")) {
+                        isValid = false;
+                    }
+                    break;
 
-    /**
-     * @detail Works only if a user is logged in.
-     *         Initiates a file storing process from client.
-     *         Depending on Mode:
-     *              -> NEW: Creates a file if it does note exist else makes a duplicate
-     *              -> OLD: Creates a file if it does not exist else will overwrite
-     *              -> APP: Creates a file if it does not exist else appends to it
-     * @param args
-     */
-    private static void handleSTOR(ArrayList<String> args) {
-        String response;
-        String fileName, mode;
-
-        mode = args.get(0);
-        fileName = args.get(1);
-
-        if(_credentialsManager.isAUserLoggedIn()) {
-            response = _fileSystemHandle.setFileOperation(fileName, mode);
-            _fileNameToReceive = fileName;
-        }else{
-            _fileBytesToReceive = null;
-            _fileNameToReceive = null;
-            response = "- No Login found";
-        }
+                case "RANG":
+                    if (request.length != 4) {
+                        isValid = false;
+                    } else if (!request[2].matches("\\d{1,18}") || !request[3].matches("\\d{1,18}")) {
+                        isValid = false;
+                    }
+                    break;
 
-        _sftp.writeToOutputStream(response);
+                case "PSTR":
+                    if (request.length != 4) {
+                        isValid = false;
+                    } else if (!request[1].equals("NEW") && !request[1].equals("OLD") && !request[1].equals("APP")) {
+                        isValid = false;
+                    } else if (!request[3].matches("\\d{1,18}")) {
+                        isValid = false;
+                    }
+                    break;
 
-    }
+                case "PPUT":
+                    if (request.length != 4) {
+                        isValid = false;
+                    } else if (!request[2].matches("\\d{1,18}") || !request[3].matches("\\d{1,18}")) {
+                        isValid = false;
+                    }
+                    break;
 
-    /**
-     * @detail Works only if a user is logged in.
-     *         Confirms file to be sent from server to client if space is available
-     */
-    private static void handleSEND() {
-        String response;
+                case "DELT":
+                    if (request.length != 2) {
+                        isValid = false;
+                    }
+                    break;
 
-        if(_credentialsManager.isAUserLoggedIn()){
+                case "CHKS":
+                    if (request.length != 2) {
+                        isValid = false;
+                    }
+                    break;
 
-            File serverFile = _fileSystemHandle.getFileToSend();
+                case "DPUT":
+                    if (request.length != 4) {
+                        isValid = false;
+                    } else if (!request[1].matches("\\d{1,18}") || !request[2].matches("\\d{1,18}") || !request[3].matches("[0-9a-f]{64}")) {
+                        isValid = false;
+                    }
+                    break;
 
-            if(serverFile != null){
-                _sftp.writeToOutputStream(serverFile);
-                response = "+File Saved on Client's side";
-            }else{
-                response = "-No File selected on remote server";
+                default:
+                    isValid = false;
+                    break;
             }
 
-        }else{
-            response = "- No Login found";
-        }
-
-        _sftp.writeToOutputStream(response);
-
-    }
-
-    /**
-     * @detail Works only if a user is logged in.
-     *         Initiates file transfer from Server to Client.
-     * @param fileName
-     */
-    private static void handleRETR(String fileName) {
-        String response;
-
-        if(_credentialsManager.isAUserLoggedIn()){
-            response = _fileSystemHandle.getRequestedFileSize(fileName);
-        }else{
-            response = "- No Login found";
-        }
-
-        _sftp.writeToOutputStream(response);
-
-    }
-
-    /**
-     * @detail Works only if a user is logged in.
-     *         Deletes a file in the Server Filesystem if it exists in the current directory
-     * @param fileName
-     */
-    private static void handleKILL(String fileName) {
-        String response;
-
-        if (_credentialsManager.isAUserLoggedIn()) {
-            response = _fileSystemHandle.deleteFile(fileName);
-        }else{
-            response = "- No Login found";
-        }
-
-        _sftp.writeToOutputStream(response);
-
-    }
-
-    /**
-     * @detail Works only if a user is logged in.
-     *         Requests Server for renaming a file if it exists
-     * @param fileName
-     */
-    private static void handleNAME(String fileName) {
-        String response;
-
-        if (_credentialsManager.isAUserLoggedIn()) {
-            response = _fileSystemHandle.checkFileName(fileName);
-        }else{
-            response = "- No Login found";
-        }
-
-        _sftp.writeToOutputStream(response);
-    }
-
-    /**
-     * @detail Works only if a user is logged in.
-     *         Renames a file in the Server FileSystem if NAME command sends a positive response
-     * @param fileName
-     */
-    private static void handleTOBE(String fileName){
-        String response;
-
-        if (_credentialsManager.isAUserLoggedIn()) {
-            response = _fileSystemHandle.changeFileName(fileName);
-        }else{
-            response = "- No Login found";
-        }
-
-        _sftp.writeToOutputStream(response);
-    }
-
-    /**
-     * @detail Works only if a user is logged in.
-     *         Requests FileSystem to change the current directory
-     * @param dir
-     */
-    private static void handleCDIR(String dir) {
-        String response;
-
-        if (_credentialsManager.isAUserLoggedIn()) {
-
-            response = _fileSystemHandle.changeCurrentDir(dir);
-
-        }else{
-            response = "- No Login found";
-        }
-
-        _sftp.writeToOutputStream(response);
-
-    }
-
-    /**
-     * @detail Works only if a user is logged in.
-     *         Lists files in a specified or current directory
-     * @param args F and V for File Listing Mode
-     */
-    private static void handleLIST(ArrayList<String> args) {
-        String response = "";
-        String dir, mode;
-
-        mode = args.get(0);
-
-        if (args.size() == 2) {
-            dir = args.get(1);
         } else {
-            dir = "";
-        }
-
-        if (_credentialsManager.isAUserLoggedIn()) {
-
-            response = _fileSystemHandle.listDir(dir, mode);
-
-            _sftp.writeToOutputStream(response);
-
-        } else {
-            _sftp.writeToOutputStream("- No Login found");
+            isValid = false;
         }
 
-    }
-
-    /**
-     * @detail Attempts Logging in a user for accessing the file system
-     * @param password
-     */
-    private static void handlePASS(String password) {
-        String response;
-
-        response = _credentialsManager.attemptLogin(password);
-
-        _sftp.writeToOutputStream(response);
-    }
-
-    /**
-     * @detail Closes Connection on both client and server
-     */
-    private static void handleDONE() {
-
-        _sftp.writeToOutputStream("+ Thanks for using " + _localHost + " SFTP Service. Goodbye!");
-        _sftp.terminateSession();
-        _isConnected = false;
-    }
-
-    /**
-     * @detail Selects a current account based on the User-id selected
-     * @param accountName
-     */
-    private static void handleACCT(String accountName) {
-
-        String response;
-
-        response = _credentialsManager.setCurrentAccount(accountName);
-
-        _sftp.writeToOutputStream(response);
-
-    }
-
-    /**
-     * @detail Selects a user-id to continue the login process
-     * @param userName
-     */
-    private static void handleUSER(String userName){
-
-        String response = _credentialsManager.setCurrentUser(userName);
-
-        _sftp.writeToOutputStream(response);
-
+        return isValid;
     }
 
     public static void main(String argv[]) throws Exception
     {
 
         _port = 6789;
-        _isListening = false;
-        _isConnected = false;
         _outToLunch = false;
         _isBypassLogin = false;
+        _engine = System.getProperty("sftp.server.engine", "threads");
 
-        _LOGGER.setLevel(Level.INFO);
-        _fileSystemHandle = new FileSystem("sftp.server");
-        _welcomeSocket = new ServerSocket(_port);
-        _LOGGER.info("Server Setup at port: " + _welcomeSocket.getLocalPort());
+        if (_engine.equals("nio")) {
+            _maxSessions = Integer.getInteger("sftp.server.maxSessions", 65536);
+        } else {
+            _maxSessions = Integer.getInteger("sftp.server.maxSessions", 256);
+        }
 
-        while(true){
-            try{
+        _LOGGER.setLevel(Level.INFO);
 
-                if(!_isListening && !_isConnected || _isListening && !_isConnected) {
-                    acceptClient();
+        if (_isBypassLogin) {
+            _LOGGER.info("BYPASS Login Mode\n");
+        }
 
-                }else if(_isListening && _isConnected){
-                    processClientRequest();
+        _localHost = InetAddress.getLocalHost().toString();
+        _sessionPermits = new Semaphore(_maxSessions);
+        _metrics = new ServerMetrics(() -> _maxSessions - _sessionPermits.availablePermits(), FileCache.isEnabled() ? FileCache.getInstance() : null);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(_metrics, new ObjectName("sftp.server:type=ServerMetrics"));
+        // Users are loaded once, every Session looks them up in the shared directory which is swapped when users.csv changes
+        UserDirectory.getInstance();
+        UserDirectory.watch();
+        FileSystem.recoverGenerations("sftp.server");
+        FileSystem.recoverChunks("sftp.server");
+        // Accepted sockets are backed by a SocketChannel so file transfers can use FileChannel.transferTo
+        ServerSocketChannel welcomeChannel = ServerSocketChannel.open();
+        welcomeChannel.bind(new InetSocketAddress(_port), 1024);
+        _welcomeSocket = welcomeChannel.socket();
+        _LOGGER.info("Server Setup at port: " + _welcomeSocket.getLocalPort() + ", engine: " + _engine + ", max sessions: " + _maxSessions);
+
+        if (_engine.equals("nio")) {
+            int ioThreads = Integer.getInteger("sftp.server.ioThreads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+            int diskThreads = Integer.getInteger("sftp.server.diskThreads", 16);
+
+            new SelectorServer(welcomeChannel, ioThreads, diskThreads, _sessionPermits, _metrics, _localHost, _outToLunch, _isBypassLogin).run();
 
-                }
+        } else {
+            _sessionPool = Executors.newCachedThreadPool();
 
-            }catch (NullPointerException e) {
-                _isConnected = false;
-                System.out.printf("Check if Client is alive! Try connecting again!\n");
+            while(true){
+                acceptClient();
             }
-
         }
 
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,911 @@
+package sftp.server;
+
+import sftp.FileOpener;
+import sftp.Protocol;
+import sftp.SFTP;
+import sftp.server.credentials.CredentialsManager;
+import sftp.server.metrics.ServerMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * @detail A single client connection. Owns its own sftp.SFTP instance, login state and
+ *         FileSystem cursor so that any number of Sessions can be served concurrently.
+ */
+class Session implements Runnable {
+
+    private SFTP _sftp;
+    private CredentialsManager _credentialsManager;
+    private FileSystem _fileSystemHandle;
+    private String _localHost;
+    private boolean _isConnected;
+    private String _fileNameToReceive;
+    private String _deltaFileName;
+    private ServerMetrics _metrics;
+
+    /**
+     * @detail Constructor for a Session on an accepted connection
+     * @param sftp sftp.SFTP instance for the connection socket
+     * @param localHost Host name used in the greeting and goodbye responses
+     * @param isBypassLogin Login Process is skipped for all commands if true
+     * @param metrics Server wide metrics that commands and transfers are recorded to
+     */
+    Session(SFTP sftp, String localHost, boolean isBypassLogin, ServerMetrics metrics) {
+        this._sftp = sftp;
+        this._metrics = metrics;
+        this._sftp.setTransferListener(metrics);
+
+        FileOpener fileOpener = file -> FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        if (ChunkStore.isEnabled()) {
+            fileOpener = ChunkStore.getInstance()::open;
+        }
+
+        this._sftp.setFileOpener(FileCache.getInstance().cached(fileOpener));
+
+        this._sftp.setChecksumCache(ChecksumStore.getInstance());
+
+        this._localHost = localHost;
+        this._fileSystemHandle = new FileSystem("sftp.server");
+        this._credentialsManager = new CredentialsManager();
+
+        if (isBypassLogin) {
+            _credentialsManager.setIsBypass(true);
+        }
+    }
+
+    /**
+     * @detail Greets the client and processes its requests until DONE is received
+     *         or the connection is lost
+     */
+    @Override
+    public void run() {
+        String[] request;
+
+        greet();
+
+        try {
+
+            while (_isConnected) {
+                request = _sftp.readRequest();
+
+                if (request == null) {
+                    System.out.printf("Check if Client is alive! Closing session for %s\n", _localHost);
+                    _sftp.terminateSession();
+                    _isConnected = false;
+                } else {
+                    processRequest(request);
+                }
+            }
+
+        } catch (IOException e) {
+            _isConnected = false;
+            _sftp.terminateSession();
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * @detail Sends the (+) greeting that lets the client send commands
+     */
+    void greet() {
+        _sftp.writeToOutputStream('+' + _localHost + ' ' + "SFTP Service");
+        _isConnected = true;
+    }
+
+    /**
+     * @detail Returns false once DONE was processed or the connection was lost
+     * @return
+     */
+    boolean isConnected() {
+        return _isConnected;
+    }
+
+    /**
+     * @detail Calls one of the handleX commands if the client request was in the correct format.
+     *         User must be the first command else it will respond demanding a user-id.
+     *         Commands after that might require logging in to be processed.
+     */
+    void processClientRequest(String message) {
+
+        if(!message.isEmpty()){
+            processRequest(message.split(" "));
+        }
+    }
+
+    /**
+     * @detail Processes a command already split into its words, as read from a text line or a binary frame.
+     *         File data attached to the request that its command didn't read is skipped afterwards
+     * @param request Command followed by its arguments, ignored if empty
+     */
+    void processRequest(String[] request) {
+
+        long start = System.nanoTime();
+
+        if(request.length > 0){
+            String cmd = null;
+            ArrayList<String> args = new ArrayList<>();
+            boolean isValid;
+
+            isValid = Server.isValidRequestFormat(request);
+
+            if (isValid) {
+                cmd = request[0];
+
+                if (cmd.equals("USER")) {
+                    args.add(request[1]);
+                    handleUSER(args.get(0));
+                } else if (cmd.equals("VERS")) {
+                    handleVERS(request[1]);
+                } else {
+
+                    if (_credentialsManager.isCurrentUserSelected()) {
+
+                        switch (cmd) {
+
+                            case "ACCT":
+                                args.add(request[1]);
+                                handleACCT(args.get(0));
+
+                                break;
+
+                            case "CDIR":
+                                args.add(request[1]);
+                                handleCDIR(args.get(0));
+
+                                break;
+
+                            case "PASS":
+                                args.add(request[1]);
+                                handlePASS(args.get(0));
+
+                                break;
+
+                            case "NAME":
+                                args.add(request[1]);
+                                handleNAME(args.get(0));
+
+                                break;
+
+                            case "TOBE":
+                                args.add(request[1]);
+                                handleTOBE(args.get(0));
+
+                                break;
+
+                            case "TYPE":
+                                args.add(request[1]);
+                                handleTYPE(args.get(0));
+
+                                break;
+
+                            case "KILL":
+                                args.add(request[1]);
+                                handleKILL(args.get(0));
+
+                                break;
+
+                            case "RETR":
+                                args.add(request[1]);
+                                handleRETR(args.get(0));
+
+                                break;
+
+                            case "SEND":
+                                handleSEND();
+
+                                break;
+
+                            case "SIZE":
+                                handleSIZE(request[1], request.length == 3 ? request[2] : null);
+
+                                break;
+
+                            case "STOP":
+                                handleSTOP();
+
+                                break;
+
+                            case "REST":
+                                args.add(request[1]);
+                                handleREST(args.get(0));
+
+                                break;
+
+                            case "STOR":
+                                for (int i = 1; i < request.length; i++) {
+                                    args.add(request[i]);
+                                }
+
+                                handleSTOR(args);
+
+                                break;
+
+                            case "LIST":
+                                for (int i = 1; i < request.length; i++) {
+                                    args.add(request[i]);
+                                }
+
+                                handleLIST(args);
+
+                                break;
+
+                            case "DONE":
+                                handleDONE();
+
+                                break;
+
+                            case "STAT":
+                                handleSTAT();
+
+                                break;
+
+                            case "MGET":
+                                args.add(request[1]);
+                                handleMGET(args.get(0));
+
+                                break;
+
+                            case "MPUT":
+                                args.add(request[1]);
+                                handleMPUT(args.get(0));
+
+                                break;
+
+                            case "RANG":
+                                handleRANG(request[1], Long.parseLong(request[2]), Long.parseLong(request[3]));
+
+                                break;
+
+                            case "PSTR":
+                                handlePSTR(request[1], request[2], Long.parseLong(request[3]));
+
+                                break;
+
+                            case "PPUT":
+                                handlePPUT(request[1], Long.parseLong(request[2]), Long.parseLong(request[3]));
+
+                                break;
+
+                            case "DELT":
+                                handleDELT(request[1]);
+
+                                break;
+
+                            case "CHKS":
+                                handleCHKS(request[1]);
+
+                                break;
+
+                            case "DPUT":
+                                handleDPUT(Long.parseLong(request[1]), Long.parseLong(request[2]), request[3]);
+
+                                break;
+                        }
+
+                    } else {
+                        _sftp.writeToOutputStream("-No User-id selected");
+                    }
+
+                }
+
+                _metrics.recordCommand(cmd, System.nanoTime() - start);
+
+            } else {
+                _sftp.writeToOutputStream("-Invalid command");
+                _metrics.recordCommand("INVALID", System.nanoTime() - start);
+            }
+
+        }
+
+        _sftp.skipAttachedData();
+    }
+
+    /**
+     * @detail Switches the connection to another protocol version. Needs no login so that a client
+     *         can negotiate right after the greeting. The response is sent in the old protocol
+     * @param version 1 for text commands and responses, 2 for binary frames
+     */
+    private void handleVERS(String version) {
+
+        switch (version) {
+
+            case "1":
+                _sftp.writeToOutputStream("+Using protocol 1");
+                _sftp.setProtocol(Protocol.TEXT);
+
+                break;
+
+            case "2":
+                if (_sftp.getTransmissionType().equals("Z")) {
+                    _sftp.writeToOutputStream("-Protocol 2 is not available in Compressed mode");
+                } else {
+                    _sftp.writeToOutputStream("+Using protocol 2");
+                    _sftp.setProtocol(Protocol.BINARY);
+                }
+
+                break;
+
+            default:
+                _sftp.writeToOutputStream("-Protocol version not supported");
+                break;
+        }
+    }
+
+    /**
+     * @detail Works only if an admin is logged in.
+     *         Responds with the server's session, transfer and per command latency metrics
+     */
+    private void handleSTAT() {
+
+        if (_credentialsManager.isAUserLoggedIn() && _credentialsManager.isAdminLoggedIn()) {
+            _sftp.writeToOutputStream("+Server statistics\r\n" + _metrics.getReport());
+        } else {
+            _sftp.writeToOutputStream("-STAT is only available to admin");
+        }
+    }
+
+    /**
+     * @detail Sets Transfer Type in sftp instance
+     * @param type
+     */
+    private void handleTYPE(String type) {
+        String response;
+
+
+        if(_credentialsManager.isAUserLoggedIn()) {
+
+
+           response = _sftp.setTransmissionType(type);
+
+        }else{
+
+            _fileNameToReceive = null;
+            response = "- No Login found";
+
+        }
+
+        _sftp.writeToOutputStream(response);
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Checks if free space is available in the server for storing files from client.
+     *         If free space exists:
+     *              -> Passes the sftp instance to file system which streams the file
+     *                 from the client straight into the target file
+     *              -> Returns response on whether it was successful.
+     *         Else:
+     *              -> Quits STOR sequence.
+     *         A file whose SHA-256 the client announced and the ChunkStore holds is saved without receiving it
+     * @param fileSize
+     * @param fileHash SHA-256 of the file, null if none was announced
+     */
+    private void handleSIZE(String fileSize, String fileHash) {
+        String response;
+
+
+        if(_credentialsManager.isAUserLoggedIn()) {
+
+            try{
+
+                long clientFilesize = Long.parseUnsignedLong(fileSize);
+                response = _fileSystemHandle.checkFreeSpaceForSTOR(clientFilesize);
+
+                if(fileHash != null && _fileNameToReceive != null && !response.contains("-")){
+                    String savedResponse = _fileSystemHandle.processKnownSTOR(_fileNameToReceive, clientFilesize, fileHash, _credentialsManager.getCurrentUserName());
+
+                    if(savedResponse != null){
+                        _sftp.writeToOutputStream(savedResponse);
+                        _fileNameToReceive = null;
+                        return;
+                    }
+                }
+
+                _sftp.writeToOutputStream(response);
+
+                if(response.contains("-")){
+                    _fileNameToReceive = null;
+                }
+
+                if(_fileNameToReceive != null){
+                    response = _fileSystemHandle.processSTORSequence(_sftp, _fileNameToReceive, clientFilesize, _credentialsManager.getCurrentUserName(), -1, fileHash);
+                    _sftp.writeToOutputStream(response);
+                    _fileNameToReceive = null;
+
+                }
+
+            }catch (NumberFormatException e){
+                response = "-Size is invalid";
+                _sftp.writeToOutputStream(response);
+                e.printStackTrace();
+            }
+
+        }else{
+
+            _fileNameToReceive = null;
+            response = "- No Login found";
+            _sftp.writeToOutputStream(response);
+
+        }
+
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Quits RETR sequence if Client determines that free space is not available for the selected file
+     */
+    private void handleSTOP() {
+        String response;
+
+        if(_credentialsManager.isAUserLoggedIn()){
+
+            response = _fileSystemHandle.cancelSend();
+
+        }else{
+
+            response = "- No Login found";
+        }
+
+        _sftp.writeToOutputStream(response);
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Initiates a file storing process from client.
+     *         Depending on Mode:
+     *              -> NEW: Creates a file if it does note exist else makes a duplicate
+     *              -> OLD: Creates a file if it does not exist else will overwrite
+     *              -> APP: Creates a file if it does not exist else appends to it
+     *         A binary STOR with the file attached is stored at once and only the final response is sent
+     * @param args
+     */
+    private void handleSTOR(ArrayList<String> args) {
+        String response;
+        String fileName, mode;
+
+        mode = args.get(0);
+        fileName = args.get(1);
+
+        if(_credentialsManager.isAUserLoggedIn()) {
+            response = _fileSystemHandle.setFileOperation(fileName, mode);
+            _fileNameToReceive = fileName;
+
+            if (_sftp.hasAttachedData()) {
+                long fileSize = _sftp.getAttachedDataLength();
+                response = _fileSystemHandle.checkFreeSpaceForSTOR(fileSize);
+
+                if (response.startsWith("+")) {
+                    response = _fileSystemHandle.processSTORSequence(_sftp, fileName, fileSize, _credentialsManager.getCurrentUserName());
+                }
+
+                _fileNameToReceive = null;
+            }
+
+        }else{
+            _fileNameToReceive = null;
+            response = "- No Login found";
+        }
+
+        _sftp.writeToOutputStream(response);
+
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Sends every file in the current directory that matches a glob in one container stream,
+     *         followed by a response with the number of files sent
+     * @param glob
+     */
+    private void handleMGET(String glob) {
+
+        if (_credentialsManager.isAUserLoggedIn()) {
+            _sftp.writeToOutputStream(_fileSystemHandle.sendBatch(_sftp, glob));
+        } else {
+            _sftp.writeToOutputStream("- No Login found");
+        }
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Receives a container stream of files from the client, each stored like a STOR of mode
+     * @param mode NEW, OLD or APP
+     */
+    private void handleMPUT(String mode) {
+
+        if (_credentialsManager.isAUserLoggedIn()) {
+            _sftp.writeToOutputStream("+Send files");
+
+            try {
+                _sftp.writeToOutputStream(_fileSystemHandle.receiveBatch(_sftp, mode, _credentialsManager.getCurrentUserName()));
+            } catch (IOException e) {
+                _isConnected = false;
+            }
+
+        } else {
+            _sftp.writeToOutputStream("- No Login found");
+        }
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Sends one byte range of a file in the current directory, so a client can fetch
+     *         the stripes of a large file over several connections at once
+     * @param fileName
+     * @param offset First byte of the range
+     * @param length Number of bytes in the range
+     */
+    private void handleRANG(String fileName, long offset, long length) {
+        String response;
+
+        if (_credentialsManager.isAUserLoggedIn()) {
+            response = _fileSystemHandle.getRequestedFileSize(fileName);
+            File file = _fileSystemHandle.getFileToSend();
+
+            if (file != null) {
+
+                if (offset > Long.parseLong(response) - length) {
+                    response = "-Range outside of file";
+                } else {
+                    _sftp.writeToOutputStream("+Sending " + length + " bytes");
+                    _sftp.writeToOutputStream(file, offset, length);
+                    return;
+                }
+            }
+
+        } else {
+            response = "- No Login found";
+        }
+
+        _sftp.writeToOutputStream(response);
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Starts an upload whose byte ranges are sent with PPUT, over any number of connections
+     * @param mode NEW, OLD or APP as for STOR
+     * @param fileName
+     * @param fileSize Size of the complete file
+     */
+    private void handlePSTR(String mode, String fileName, long fileSize) {
+        String response;
+
+        if (_credentialsManager.isAUserLoggedIn()) {
+            response = _fileSystemHandle.createAssembly(fileName, mode, fileSize, _credentialsManager.getCurrentUserName());
+        } else {
+            response = "- No Login found";
+        }
+
+        _sftp.writeToOutputStream(response);
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Receives one byte range of an upload started with PSTR. The range that completes
+     *         the file gets the response of the saved file
+     * @param assemblyId
+     * @param offset First byte of the range
+     * @param length Number of bytes in the range
+     */
+    private void handlePPUT(String assemblyId, long offset, long length) {
+        String response;
+
+        if (_credentialsManager.isAUserLoggedIn()) {
+            response = _fileSystemHandle.receiveRange(_sftp, assemblyId, offset, length, _credentialsManager.getCurrentUserName());
+        } else {
+            response = "- No Login found";
+        }
+
+        _sftp.writeToOutputStream(response);
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Starts a delta upload of a file a STOR OLD would overwrite by sending the block
+     *         signatures of the server's copy. The client answers with DPUT
+     * @param fileName
+     */
+    private void handleDELT(String fileName) {
+        String response;
+
+        _deltaFileName = null;
+
+        if (_credentialsManager.isAUserLoggedIn()) {
+            response = _fileSystemHandle.sendSignatures(_sftp, fileName, _credentialsManager.getCurrentUserName());
+
+            if (response == null) {
+                _deltaFileName = fileName;
+                return;
+            }
+
+        } else {
+            response = "- No Login found";
+        }
+
+        _sftp.writeToOutputStream(response);
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Receives the delta of the file whose signatures DELT sent and saves the rebuilt file
+     * @param deltaLength Number of bytes of the delta
+     * @param fileLength Number of bytes of the rebuilt file
+     * @param fileHash SHA-256 of the rebuilt file
+     */
+    private void handleDPUT(long deltaLength, long fileLength, String fileHash) {
+        String response;
+        String fileName = _deltaFileName;
+
+        _deltaFileName = null;
+
+        if (!_credentialsManager.isAUserLoggedIn()) {
+            response = "- No Login found";
+        } else if (fileName == null) {
+            response = "-No signatures were sent, send DELT first";
+        } else {
+            response = _fileSystemHandle.receiveDelta(_sftp, fileName, deltaLength, fileLength, fileHash, _credentialsManager.getCurrentUserName());
+        }
+
+        _sftp.writeToOutputStream(response);
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Returns the checksum of a file in the current directory, recorded when it was uploaded
+     *         or sent so the file isn't read for it
+     * @param fileName
+     */
+    private void handleCHKS(String fileName) {
+        String response;
+
+        if (_credentialsManager.isAUserLoggedIn()) {
+            response = _fileSystemHandle.getChecksum(fileName);
+        } else {
+            response = "- No Login found";
+        }
+
+        _sftp.writeToOutputStream(response);
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Reports how many bytes of an interrupted upload the server already holds.
+     *         The next STOR and SIZE of the same file only need to send the remaining bytes
+     * @param fileName
+     */
+    private void handleREST(String fileName) {
+        String response;
+
+        if(_credentialsManager.isAUserLoggedIn()){
+            response = _fileSystemHandle.getResumeOffset(fileName, _credentialsManager.getCurrentUserName());
+        }else{
+            response = "- No Login found";
+        }
+
+        _sftp.writeToOutputStream(response);
+
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Confirms file to be sent from server to client if space is available
+     */
+    private void handleSEND() {
+        String response;
+
+        if(_credentialsManager.isAUserLoggedIn()){
+
+            File serverFile = _fileSystemHandle.getFileToSend();
+
+            if(serverFile != null){
+                _sftp.writeToOutputStream(serverFile);
+                response = "+File Saved on Client's side";
+
+                // The client compares it with the checksum of the bytes it received
+                if (_sftp.getLastChecksum() != null) {
+                    response += ", " + _sftp.getLastChecksum();
+                }
+            }else{
+                response = "-No File selected on remote server";
+            }
+
+        }else{
+            response = "- No Login found";
+        }
+
+        _sftp.writeToOutputStream(response);
+
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Initiates file transfer from Server to Client.
+     *         A binary RETR that sets FLAG_DATA gets the file size and the file in one frame, without SEND
+     * @param fileName
+     */
+    private void handleRETR(String fileName) {
+        String response;
+
+        if(_credentialsManager.isAUserLoggedIn()){
+            response = _fileSystemHandle.getRequestedFileSize(fileName);
+
+            if (_sftp.hasAttachedData() && !response.startsWith("-")) {
+                _sftp.writeToOutputStream(response, _fileSystemHandle.getFileToSend());
+                return;
+            }
+
+        }else{
+            response = "- No Login found";
+        }
+
+        _sftp.writeToOutputStream(response);
+
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Deletes a file in the Server Filesystem if it exists in the current directory
+     * @param fileName
+     */
+    private void handleKILL(String fileName) {
+        String response;
+
+        if (_credentialsManager.isAUserLoggedIn()) {
+            response = _fileSystemHandle.deleteFile(fileName);
+        }else{
+            response = "- No Login found";
+        }
+
+        _sftp.writeToOutputStream(response);
+
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Requests Server for renaming a file if it exists
+     * @param fileName
+     */
+    private void handleNAME(String fileName) {
+        String response;
+
+        if (_credentialsManager.isAUserLoggedIn()) {
+            response = _fileSystemHandle.checkFileName(fileName);
+        }else{
+            response = "- No Login found";
+        }
+
+        _sftp.writeToOutputStream(response);
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Renames a file in the Server FileSystem if NAME command sends a positive response
+     * @param fileName
+     */
+    private void handleTOBE(String fileName){
+        String response;
+
+        if (_credentialsManager.isAUserLoggedIn()) {
+            response = _fileSystemHandle.changeFileName(fileName);
+        }else{
+            response = "- No Login found";
+        }
+
+        _sftp.writeToOutputStream(response);
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Requests FileSystem to change the current directory
+     * @param dir
+     */
+    private void handleCDIR(String dir) {
+        String response;
+
+        if (_credentialsManager.isAUserLoggedIn()) {
+
+            response = _fileSystemHandle.changeCurrentDir(dir);
+
+        }else{
+            response = "- No Login found";
+        }
+
+        _sftp.writeToOutputStream(response);
+
+    }
+
+    /**
+     * @detail Works only if a user is logged in.
+     *         Lists files in a specified or current directory, optionally one page at a time
+     * @param args F and V for File Listing Mode, then optional directory, page size and cursor
+     */
+    private void handleLIST(ArrayList<String> args) {
+        String dir, mode;
+        int pageSize = 0;
+        long cursor = 0;
+
+        mode = args.get(0);
+
+        if (args.size() >= 2) {
+            dir = args.get(1);
+        } else {
+            dir = "";
+        }
+
+        if (args.size() >= 3) {
+            pageSize = Integer.parseInt(args.get(2));
+        }
+
+        if (args.size() == 4) {
+            cursor = Long.parseLong(args.get(3));
+        }
+
+        if (_credentialsManager.isAUserLoggedIn()) {
+
+            try (Writer response = _sftp.openResponseWriter()) {
+                _fileSystemHandle.listDir(dir, mode, pageSize, cursor, response);
+            } catch (IOException e) {
+                System.out.printf("Exception %s, check if connection is alive!\n", e);
+            }
+
+        } else {
+            _sftp.writeToOutputStream("- No Login found");
+        }
+
+    }
+
+    /**
+     * @detail Attempts Logging in a user for accessing the file system
+     * @param password
+     */
+    private void handlePASS(String password) {
+        String response;
+
+        response = _credentialsManager.attemptLogin(password);
+
+        _sftp.writeToOutputStream(response);
+    }
+
+    /**
+     * @detail Closes Connection on both client and server
+     */
+    private void handleDONE() {
+
+        _sftp.writeToOutputStream("+ Thanks for using " + _localHost + " SFTP Service. Goodbye!");
+        _sftp.terminateSession();
+        _isConnected = false;
+    }
+
+    /**
+     * @detail Selects a current account based on the User-id selected
+     * @param accountName
+     */
+    private void handleACCT(String accountName) {
+
+        String response;
+
+        response = _credentialsManager.setCurrentAccount(accountName);
+
+        _sftp.writeToOutputStream(response);
+
+    }
+
+    /**
+     * @detail Selects a user-id to continue the login process
+     * @param userName
+     */
+    private void handleUSER(String userName){
+
+        String response = _credentialsManager.setCurrentUser(userName);
+
+        _sftp.writeToOutputStream(response);
+
+    }
+
+}
@@ -0,0 +1,228 @@
+package sftp.server;
+
+import sftp.BufferPool;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @detail Stream an upload is received into, writing it to disk on another thread. The session's
+ *         thread, the network stage, copies the bytes it reads from the socket into direct buffers
+ *         leased from the BufferPool and hands every full buffer to the disk stage through a ring of
+ *         -Dsftp.server.uploadBuffers buffers of -Dsftp.server.uploadBufferSize bytes. The disk stage
+ *         writes them to the channel and returns them to the ring. When all buffers wait for the disk
+ *         the network stage waits for the next free one, so a slow disk slows the sender down through
+ *         the TCP window instead of filling memory. A slow network leaves the disk stage idle without
+ *         holding up the socket reads. close waits till every byte is written and reports a failed write
+ */
+final class UploadPipeline extends OutputStream {
+
+    private static final int BUFFER_COUNT = Math.max(2, Integer.getInteger("sftp.server.uploadBuffers", 8));
+    static final int BUFFER_SIZE = Integer.getInteger("sftp.server.uploadBufferSize", 256 * 1024);
+    // Tells the disk stage that no more buffers follow
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private static final ExecutorService _diskStages = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "sftp-upload-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final WritableByteChannel _channel;
+    private final BlockingQueue<ByteBuffer> _free;
+    private final BlockingQueue<ByteBuffer> _filled;
+    private final CountDownLatch _isDrained;
+    private ByteBuffer _current;
+    private volatile IOException _failure;
+    private boolean _isClosed;
+
+    /**
+     * @detail Constructor for a pipeline that starts its disk stage
+     * @param channel Channel the upload is written to, closed with the pipeline
+     */
+    UploadPipeline(WritableByteChannel channel) {
+        this._channel = channel;
+        this._free = new ArrayBlockingQueue<>(BUFFER_COUNT);
+        this._filled = new ArrayBlockingQueue<>(BUFFER_COUNT + 1);
+        this._isDrained = new CountDownLatch(1);
+
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            // Leased buffers may be larger than asked for
+            _free.add(BufferPool.lease(BUFFER_SIZE).limit(BUFFER_SIZE));
+        }
+
+        _diskStages.execute(this::drain);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+
+        while (len > 0) {
+
+            if (_current == null) {
+                _current = takeFree();
+            }
+
+            int length = Math.min(len, _current.remaining());
+            _current.put(b, off, length);
+            off += length;
+            len -= length;
+
+            if (!_current.hasRemaining()) {
+                handOff();
+            }
+        }
+    }
+
+    /**
+     * @detail Does nothing, buffers are only handed to the disk stage when they are full or the
+     *         pipeline is closed, so every write to disk is a whole buffer
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * @detail Hands the last buffer to the disk stage, waits till it has written everything and
+     *         closes the channel. The buffers go back to the BufferPool
+     * @throws IOException if a write failed
+     */
+    @Override
+    public void close() throws IOException {
+
+        if (_isClosed) {
+            return;
+        }
+
+        _isClosed = true;
+
+        try {
+
+            if (_current != null && _current.position() > 0) {
+                handOff();
+            }
+
+            put(_filled, END);
+            await();
+
+        } finally {
+
+            if (_current != null) {
+                _free.add(_current);
+                _current = null;
+            }
+
+            _channel.close();
+            release();
+        }
+
+        if (_failure != null) {
+            throw _failure;
+        }
+    }
+
+    /**
+     * @detail Waits for a buffer the disk stage has written, this is where backpressure applies
+     */
+    private ByteBuffer takeFree() throws IOException {
+
+        if (_failure != null) {
+            throw _failure;
+        }
+
+        try {
+            return _free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the disk");
+        }
+    }
+
+    private void handOff() throws IOException {
+        _current.flip();
+        put(_filled, _current);
+        _current = null;
+    }
+
+    private static void put(BlockingQueue<ByteBuffer> queue, ByteBuffer buffer) throws IOException {
+
+        try {
+            queue.put(buffer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while handing a buffer to the disk");
+        }
+    }
+
+    private void await() throws IOException {
+
+        try {
+            _isDrained.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the disk");
+        }
+    }
+
+    /**
+     * @detail Runs as the disk stage and writes the filled buffers in order till END.
+     *         After a failed write the buffers are returned without being written,
+     *         the network stage throws the failure when it takes the next one
+     */
+    private void drain() {
+
+        try {
+
+            while (true) {
+                ByteBuffer buffer = _filled.take();
+
+                if (buffer == END) {
+                    break;
+                }
+
+                try {
+
+                    while (_failure == null && buffer.hasRemaining()) {
+                        _channel.write(buffer);
+                    }
+
+                } catch (IOException e) {
+                    _failure = e;
+                }
+
+                buffer.clear().limit(BUFFER_SIZE);
+                _free.add(buffer);
+            }
+
+        } catch (InterruptedException e) {
+            _failure = new InterruptedIOException("Disk stage was interrupted");
+
+        } finally {
+            _isDrained.countDown();
+        }
+    }
+
+    /**
+     * @detail Returns the buffers of a closed pipeline to the BufferPool
+     */
+    private void release() {
+        ByteBuffer buffer;
+
+        while ((buffer = _free.poll()) != null) {
+            BufferPool.release(buffer);
+        }
+    }
+}
@@ -2,10 +2,9 @@ package sftp.server.credentials;
 
 public class Account{
 
-    private String _accountName;
-    private String _password;
-    private boolean _isLoggedIn;
-    private boolean _isRoot;
+    private final String _accountName;
+    private final String _password;
+    private final boolean _isRoot;
 
 
     /**
@@ -25,6 +24,7 @@ public class Account{
      */
     Account( String rootName) {
         this._accountName = rootName;
+        this._password = null;
         this._isRoot = true;
     }
 
@@ -55,21 +55,4 @@ public class Account{
     boolean isRoot() {
         return _isRoot;
     }
-
-    /**
-     * @detail Sets status to logged In if password is correct and logged out
-     *          if accounts or user is switched
-     * @param isLoggedIn
-     */
-    void setIsLoggedIn(boolean isLoggedIn) {
-        this._isLoggedIn = isLoggedIn;
-    }
-
-    /**
-     * @detail return LoggedIn status for account
-     * @return
-     */
-    boolean isLoggedIn(){
-        return _isLoggedIn;
-    }
 }
@@ -1,20 +1,14 @@
 package sftp.server.credentials;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.ArrayList;
-
-
 /**
- * @detail Manages Users, Accounts and authentication process
+ * @detail Manages the authentication process of one session. Users and Accounts are looked up
+ *         in the shared UserDirectory, only the selection and login state are kept here
  */
 public class CredentialsManager {
 
     private User _currentUser;
     private Account _currentAccount;
-    private ArrayList<User> _users;
+    private boolean _isAccountLoggedIn;
     private boolean _isBypass;
 
     /**
@@ -27,28 +21,19 @@ public class CredentialsManager {
 
         if(_isBypass){
             response = "+ Bypass Login";
-        }else if(!_users.isEmpty()){
-            for(User user : _users){
-
-                if(user.getUserName().equals(userName)){
-                    this._currentUser = user;
-
-                    if(user.isAdmin()){
-                        this._currentAccount = null;
-                        response = "!" + userName + " logged in";
-                    }else{
-
-                        if(this._currentAccount != null){
-                            this._currentAccount.setIsLoggedIn(false);
-                            this._currentAccount = null;
-                        }
+        }else{
+            User user = UserDirectory.getInstance().getUser(userName);
 
-                        response = "+" + userName +  " valid, send account and password";
-                    }
+            if(user != null){
+                this._currentUser = user;
+                this._currentAccount = null;
+                this._isAccountLoggedIn = false;
 
-                    break;
+                if(user.isAdmin()){
+                    response = "!" + userName + " logged in";
+                }else{
+                    response = "+" + userName +  " valid, send account and password";
                 }
-
             }
         }
 
@@ -77,25 +62,18 @@ public class CredentialsManager {
 
             response = "+ Bypass Login";
 
-        }else if(!(_currentUser.getUserName().equals("admin"))) {
-
-            for (Account acct: _currentUser.getAccountList()){
-
-                String acctName = acct.getAccountName();
+        }else if(!_currentUser.isAdmin()) {
+            Account acct = _currentUser.getAccount(accountName);
 
-                if(acctName.equals(accountName)){
+            if(acct != null){
+                this._currentAccount = acct;
 
-                    if(acct.isRoot()){
-                        this._currentAccount = acct;
-                        this._currentAccount.setIsLoggedIn(true);
-                        response = "! Account valid, logged-in";
-                    }else{
-                        this._currentAccount = acct;
-                        this._currentAccount.setIsLoggedIn(false);
-                        response = "+Account valid, send password";
-                    }
-
-                    break;
+                if(acct.isRoot()){
+                    this._isAccountLoggedIn = true;
+                    response = "! Account valid, logged-in";
+                }else{
+                    this._isAccountLoggedIn = false;
+                    response = "+Account valid, send password";
                 }
             }
         }
@@ -115,77 +93,18 @@ public class CredentialsManager {
 
             response = "+ Bypass Login";
 
-        }else if(_currentAccount == null || _currentAccount.isLoggedIn()) {
+        }else if(_currentAccount == null || _isAccountLoggedIn) {
 
             response = "+Send account";
 
         }else if(_currentAccount.getPassword().equals(password)) {
-            _currentAccount.setIsLoggedIn(true);
+            _isAccountLoggedIn = true;
             response = "! Logged in";
         }
 
         return response;
     }
 
-    /**
-     * @detail Reads a users.csv and generates users and accounts
-     * @throws IOException
-     * @throws FileNotFoundException
-     */
-    public void loadUsers(){
-
-        _users = new ArrayList<User>();
-        String root = System.getProperty("user.dir");
-        String pathToCsv = root+"/src/sftp/server/credentials/users.csv";
-        BufferedReader csvReader = null;
-        try {
-            csvReader = new BufferedReader(new FileReader(pathToCsv));
-
-            String row;
-
-            while ((row = csvReader.readLine()) != null) {
-                User user;
-                String[] data = row.split(",");
-
-                if(data[0].equals("admin")){
-
-                    user = new User(data[0], true);
-
-                }else{
-                    user = new User(data[0], false);
-
-                    ArrayList<Account> accountList= new ArrayList<Account>();
-
-                    for(int i = 1; i < data.length; i++){
-                        String[] credentials = data[i].split("\\.");
-                        Account account;
-
-                        if(credentials[0].equals("root")){
-                            account = new Account(credentials[0]);
-                        }else{
-                            account = new Account(credentials[0], credentials[1]);
-                        }
-
-                        accountList.add(account);
-                    }
-
-                    user.setAccounts(accountList);
-                }
-
-                _users.add(user);
-
-            }
-
-            csvReader.close();
-
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
     /**
      * @detail Returns if a valid User was accepted
      * @return
@@ -201,6 +120,27 @@ public class CredentialsManager {
         }
     }
 
+    /**
+     * @detail Returns the name of the selected User, anonymous if Login is bypassed
+     * @return
+     */
+    public String getCurrentUserName(){
+
+        if(_currentUser == null){
+            return "anonymous";
+        }else{
+            return _currentUser.getUserName();
+        }
+    }
+
+    /**
+     * @detail Returns if the selected User has admin rights
+     * @return
+     */
+    public boolean isAdminLoggedIn(){
+        return _isBypass || (_currentUser != null && _currentUser.isAdmin());
+    }
+
     /**
      * @detail Returns if a valid User with or without an account was logged in
      * @return
@@ -213,7 +153,7 @@ public class CredentialsManager {
         }else if(_currentUser.isAdmin()){
             isLoggedIn = true;
         }else if(_currentAccount != null){
-            isLoggedIn =  _currentAccount.isLoggedIn();
+            isLoggedIn =  _isAccountLoggedIn;
         }else{
             isLoggedIn = false;
         }
@@ -1,20 +1,30 @@
 package sftp.server.credentials;
 
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class User {
 
-    private ArrayList<Account> _accounts;
-    private String _userName;
-    private boolean _isAdmin;
+    private final Map<String, Account> _accounts;
+    private final String _userName;
+    private final boolean _isAdmin;
 
     /**
      * @detail Constructor for User object
      * @param userName
      * @param isAdmin password is needed if false
+     * @param accounts associated accounts, indexed by account name
      */
-    User(String userName, boolean isAdmin) {
-        this._accounts = new ArrayList<Account>();
+    User(String userName, boolean isAdmin, List<Account> accounts) {
+        Map<String, Account> accountIndex = new HashMap<>();
+
+        for (Account account : accounts) {
+            accountIndex.putIfAbsent(account.getAccountName(), account);
+        }
+
+        this._accounts = Collections.unmodifiableMap(accountIndex);
         this._userName = userName;
         this._isAdmin = isAdmin;
     }
@@ -28,19 +38,12 @@ public class User {
     }
 
     /**
-     * @detail Assigns associated accounts for the user
-     * @param accounts
-     */
-    void setAccounts(ArrayList<Account> accounts) {
-        this._accounts = accounts;
-    }
-
-    /**
-     * @detail Returns accounts for User object
-     * @return
+     * @detail Finds an associated account by name
+     * @param accountName
+     * @return null if the user has no such account
      */
-    ArrayList<Account> getAccountList(){
-        return this._accounts;
+    Account getAccount(String accountName){
+        return this._accounts.get(accountName);
     }
 
     /**
@@ -0,0 +1,191 @@
+package sftp.server.credentials;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @detail Immutable index of the Users and Accounts in users.csv. One instance is shared by all
+ *         sessions and replaced as a whole when the file changes, so a session only ever sees a
+ *         complete directory. Login state is kept per session by CredentialsManager.
+ */
+public final class UserDirectory {
+
+    private static final long RELOAD_QUIET_MILLIS = 200;
+    private static volatile UserDirectory _current;
+
+    private final Map<String, User> _users;
+
+    private UserDirectory(Map<String, User> users) {
+        this._users = Collections.unmodifiableMap(users);
+    }
+
+    /**
+     * @detail Returns the shared directory, loading it on first use
+     * @return
+     */
+    public static UserDirectory getInstance() {
+        UserDirectory directory = _current;
+
+        if (directory == null) {
+
+            synchronized (UserDirectory.class) {
+
+                if (_current == null) {
+                    reload();
+                }
+
+                directory = _current;
+            }
+        }
+
+        return directory;
+    }
+
+    /**
+     * @detail Path of users.csv, set with -Dsftp.server.usersFile
+     * @return
+     */
+    public static Path getUsersFile() {
+        String defaultPath = System.getProperty("user.dir") + "/src/sftp/server/credentials/users.csv";
+        return Paths.get(System.getProperty("sftp.server.usersFile", defaultPath));
+    }
+
+    /**
+     * @detail Reads users.csv again and swaps the shared directory.
+     *         If the file can't be read or parsed the previous directory is kept
+     */
+    public static synchronized void reload() {
+        Path usersFile = getUsersFile();
+
+        try {
+            _current = load(usersFile);
+            System.out.printf("Loaded %d users from %s\n", _current.size(), usersFile);
+
+        } catch (IOException | RuntimeException e) {
+            System.out.printf("Exception %s, keeping previous users for %s\n", e, usersFile);
+
+            if (_current == null) {
+                _current = new UserDirectory(new HashMap<>());
+            }
+        }
+    }
+
+    /**
+     * @detail Starts a daemon thread that reloads the directory whenever users.csv is created or modified
+     * @throws IOException if the file's folder can't be watched
+     */
+    public static void watch() throws IOException {
+        Path usersFile = getUsersFile().toAbsolutePath();
+        WatchService watchService = FileSystems.getDefault().newWatchService();
+        usersFile.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        Thread watcher = new Thread(() -> {
+
+            try {
+
+                while (true) {
+                    WatchKey key = watchService.take();
+                    boolean isChanged = false;
+
+                    // An editor or copy usually writes the file in several steps, reload once it has been quiet for a moment
+                    while (key != null) {
+
+                        for (WatchEvent<?> event : key.pollEvents()) {
+
+                            if (usersFile.getFileName().equals(event.context())) {
+                                isChanged = true;
+                            }
+                        }
+
+                        key.reset();
+                        key = watchService.poll(RELOAD_QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+
+                    if (isChanged) {
+                        reload();
+                    }
+                }
+
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                System.out.printf("Exception %s, stopped watching %s\n", e, usersFile);
+            }
+
+        }, "sftp-users-watcher");
+
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * @detail Parses a users.csv. Every row is a user name followed by its accounts,
+     *         either account.password or root. The admin row has no accounts
+     * @param usersFile
+     * @return
+     * @throws IOException
+     */
+    public static UserDirectory load(Path usersFile) throws IOException {
+        Map<String, User> users = new HashMap<>();
+
+        try (BufferedReader csvReader = Files.newBufferedReader(usersFile)) {
+            String row;
+
+            while ((row = csvReader.readLine()) != null) {
+
+                if (row.isBlank()) {
+                    continue;
+                }
+
+                String[] data = row.split(",");
+                ArrayList<Account> accountList = new ArrayList<>();
+
+                if (!data[0].equals("admin")) {
+
+                    for (int i = 1; i < data.length; i++) {
+                        String[] credentials = data[i].split("\\.");
+
+                        if (credentials[0].equals("root")) {
+                            accountList.add(new Account(credentials[0]));
+                        } else {
+                            accountList.add(new Account(credentials[0], credentials[1]));
+                        }
+                    }
+                }
+
+                users.putIfAbsent(data[0], new User(data[0], data[0].equals("admin"), accountList));
+            }
+        }
+
+        return new UserDirectory(users);
+    }
+
+    /**
+     * @detail Finds a User by name
+     * @param userName
+     * @return null if there is no such user
+     */
+    User getUser(String userName) {
+        return _users.get(userName);
+    }
+
+    /**
+     * @detail Returns the number of users
+     * @return
+     */
+    public int size() {
+        return _users.size();
+    }
+}
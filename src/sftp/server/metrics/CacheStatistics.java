@@ -0,0 +1,18 @@
+package sftp.server.metrics;
+
+/**
+ * @detail Counters of a cache that ServerMetrics reports
+ */
+public interface CacheStatistics {
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    /**
+     * @return Bytes of the cached entries
+     */
+    long getCachedBytes();
+}
@@ -0,0 +1,92 @@
+package sftp.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @detail Lock and allocation free histogram of durations in nanoseconds.
+ *         Values are counted in buckets of 8 linear steps per power of two, so
+ *         reported percentiles are at most 12.5% above the recorded value
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray _counts;
+
+    public LatencyHistogram() {
+        this._counts = new AtomicLongArray(BUCKETS);
+    }
+
+    /**
+     * @detail Counts one duration
+     * @param nanos Negative durations are counted as 0
+     */
+    public void record(long nanos) {
+        _counts.incrementAndGet(bucketIndex(Math.max(0, nanos)));
+    }
+
+    /**
+     * @detail Returns the number of recorded durations
+     * @return
+     */
+    public long getCount() {
+        long count = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            count += _counts.get(i);
+        }
+
+        return count;
+    }
+
+    /**
+     * @detail Returns the upper bound of the bucket holding the given percentile
+     * @param percentile Between 0 and 100, e.g. 99.9
+     * @return Duration in nanoseconds, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+
+        if (count == 0) {
+            return 0;
+        }
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += _counts.get(i);
+
+            if (seen >= rank && seen > 0) {
+                return bucketUpperBound(i);
+            }
+        }
+
+        return bucketUpperBound(BUCKETS - 1);
+    }
+
+    private static int bucketIndex(long value) {
+
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long bucketUpperBound(int index) {
+
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
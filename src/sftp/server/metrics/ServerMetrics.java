@@ -0,0 +1,179 @@
+package sftp.server.metrics;
+
+import sftp.TransferListener;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * @detail Per-command counts and latency histograms, file bytes in/out, transfer rates and active
+ *         sessions of a Server. Recording a command or transfer does not allocate once a command
+ *         has been seen. Exposed through JMX and the admin-only STAT command
+ */
+public class ServerMetrics implements ServerMetricsMXBean, TransferListener {
+
+    private final ConcurrentHashMap<String, LatencyHistogram> _commandLatencies;
+    private final IntSupplier _activeSessions;
+    private final CacheStatistics _fileCache;
+    private final LongAdder _bytesIn, _bytesOut;
+    private final LongAdder _receiveNanos, _sendNanos;
+
+    /**
+     * @detail Constructor for ServerMetrics
+     * @param activeSessions Reports the number of sessions currently served
+     */
+    public ServerMetrics(IntSupplier activeSessions) {
+        this(activeSessions, null);
+    }
+
+    /**
+     * @detail Constructor for ServerMetrics that also reports the cache RETR sends files from
+     * @param activeSessions Reports the number of sessions currently served
+     * @param fileCache Counters of the file cache, null if there is none
+     */
+    public ServerMetrics(IntSupplier activeSessions, CacheStatistics fileCache) {
+        this._commandLatencies = new ConcurrentHashMap<>();
+        this._activeSessions = activeSessions;
+        this._fileCache = fileCache;
+        this._bytesIn = new LongAdder();
+        this._bytesOut = new LongAdder();
+        this._receiveNanos = new LongAdder();
+        this._sendNanos = new LongAdder();
+    }
+
+    /**
+     * @detail Records one processed command
+     * @param cmd Name of a valid command, invalid commands should be recorded as INVALID
+     * @param nanos Time taken to process and respond to the command
+     */
+    public void recordCommand(String cmd, long nanos) {
+        _commandLatencies.computeIfAbsent(cmd, name -> new LatencyHistogram()).record(nanos);
+    }
+
+    @Override
+    public void onFileSent(long bytes, long nanos) {
+        _bytesOut.add(bytes);
+        _sendNanos.add(nanos);
+    }
+
+    @Override
+    public void onFileReceived(long bytes, long nanos) {
+        _bytesIn.add(bytes);
+        _receiveNanos.add(nanos);
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return _activeSessions.getAsInt();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return _bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return _bytesOut.sum();
+    }
+
+    @Override
+    public double getReceiveRateMBps() {
+        return rateMBps(_bytesIn.sum(), _receiveNanos.sum());
+    }
+
+    @Override
+    public double getSendRateMBps() {
+        return rateMBps(_bytesOut.sum(), _sendNanos.sum());
+    }
+
+    @Override
+    public long getFileCacheHits() {
+        return _fileCache == null ? 0 : _fileCache.getHits();
+    }
+
+    @Override
+    public long getFileCacheMisses() {
+        return _fileCache == null ? 0 : _fileCache.getMisses();
+    }
+
+    @Override
+    public long getFileCacheEvictions() {
+        return _fileCache == null ? 0 : _fileCache.getEvictions();
+    }
+
+    @Override
+    public long getFileCacheBytes() {
+        return _fileCache == null ? 0 : _fileCache.getCachedBytes();
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        return summarise(LatencyHistogram::getCount);
+    }
+
+    @Override
+    public Map<String, Long> getP50LatencyMicros() {
+        return summarise(histogram -> histogram.getPercentile(50) / 1000);
+    }
+
+    @Override
+    public Map<String, Long> getP99LatencyMicros() {
+        return summarise(histogram -> histogram.getPercentile(99) / 1000);
+    }
+
+    @Override
+    public Map<String, Long> getP999LatencyMicros() {
+        return summarise(histogram -> histogram.getPercentile(99.9) / 1000);
+    }
+
+    /**
+     * @detail Returns every metric as indented lines, the format used by the STAT command
+     * @return
+     */
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+
+        report.append(String.format("    active sessions: %d\r\n", getActiveSessions()));
+        report.append(String.format("    bytes in: %d bytes out: %d\r\n", getBytesIn(), getBytesOut()));
+        report.append(String.format("    receive rate: %.2f MB/s send rate: %.2f MB/s", getReceiveRateMBps(), getSendRateMBps()));
+
+        if (_fileCache != null) {
+            report.append(String.format("\r\n    file cache hits: %d misses: %d evictions: %d cached bytes: %d",
+                    getFileCacheHits(), getFileCacheMisses(), getFileCacheEvictions(), getFileCacheBytes()));
+        }
+
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(_commandLatencies).entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+
+            report.append(String.format("\r\n    %s count: %d p50: %dus p99: %dus p999: %dus", entry.getKey(), histogram.getCount(),
+                    histogram.getPercentile(50) / 1000, histogram.getPercentile(99) / 1000, histogram.getPercentile(99.9) / 1000));
+        }
+
+        return report.toString();
+    }
+
+    private Map<String, Long> summarise(ToLongFunction<LatencyHistogram> value) {
+        Map<String, Long> summary = new TreeMap<>();
+
+        for (Map.Entry<String, LatencyHistogram> entry : _commandLatencies.entrySet()) {
+            summary.put(entry.getKey(), value.applyAsLong(entry.getValue()));
+        }
+
+        return summary;
+    }
+
+    private static double rateMBps(long bytes, long nanos) {
+
+        if (nanos == 0) {
+            return 0;
+        }
+
+        return (bytes / 1e6) / (nanos / 1e9);
+    }
+}
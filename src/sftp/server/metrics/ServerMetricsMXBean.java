@@ -0,0 +1,37 @@
+package sftp.server.metrics;
+
+import java.util.Map;
+
+/**
+ * @detail JMX view of ServerMetrics, registered as sftp.server:type=ServerMetrics
+ */
+public interface ServerMetricsMXBean {
+
+    int getActiveSessions();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getReceiveRateMBps();
+
+    double getSendRateMBps();
+
+    long getFileCacheHits();
+
+    long getFileCacheMisses();
+
+    long getFileCacheEvictions();
+
+    long getFileCacheBytes();
+
+    Map<String, Long> getCommandCounts();
+
+    Map<String, Long> getP50LatencyMicros();
+
+    Map<String, Long> getP99LatencyMicros();
+
+    Map<String, Long> getP999LatencyMicros();
+
+    String getReport();
+}